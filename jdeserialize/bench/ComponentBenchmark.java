@@ -0,0 +1,225 @@
+package org.unsynchronized.bench;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.unsynchronized.*;
+
+/**
+ * Throughput of individual parser stages: string decoding (read_newString), primitive
+ * array decoding (read_arrayValues), instance field decoding (read_Classdata), member
+ * class connection (connectMemberClasses) and output generation (dump).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComponentBenchmark {
+    static final int BATCH = 1000;
+
+    /**
+     * Returns a parser that's ready to read content outside of run().
+     */
+    static jdeserialize newParser() {
+        jdeserialize jd = new jdeserialize("bench");
+        jd.setOutput(ParseBenchmark.NULL_OUTPUT);
+        jd.reset();
+        return jd;
+    }
+
+    @State(Scope.Benchmark)
+    public static class strings {
+        @Param({ "ascii", "mixed" })
+        public String kind;
+
+        @Param({ "16", "1024" })
+        public int length;
+
+        byte[] data;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            Random r = new Random(length);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            for(int i = 0; i < BATCH; i++) {
+                if(kind.equals("ascii")) {
+                    StringBuilder sb = new StringBuilder();
+                    for(int j = 0; j < length; j++) {
+                        sb.append((char)('a' + r.nextInt(26)));
+                    }
+                    dos.writeUTF(sb.toString());
+                } else {
+                    dos.writeUTF(Corpus.text(r, length));
+                }
+            }
+            dos.close();
+            data = bos.toByteArray();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class arrays {
+        @Param({ "B", "I", "J", "D" })
+        public String type;
+
+        @Param({ "1048576" })
+        public int size;
+
+        byte[] data;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            Random r = new Random(size);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeInt(size);
+            for(int i = 0; i < size; i++) {
+                switch(type.charAt(0)) {
+                    case 'B': dos.writeByte(r.nextInt()); break;
+                    case 'I': dos.writeInt(r.nextInt()); break;
+                    case 'J': dos.writeLong(r.nextLong()); break;
+                    case 'D': dos.writeDouble(r.nextDouble()); break;
+                }
+            }
+            dos.close();
+            data = bos.toByteArray();
+        }
+    }
+
+    /**
+     * Class data for BATCH instances of a class with primitive, string and null object
+     * fields.
+     */
+    @State(Scope.Benchmark)
+    public static class classdata {
+        classdesc cd;
+        byte[] data;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            cd = new classdesc(classdesctype.NORMALCLASS);
+            cd.name = "bench.record";
+            cd.descflags = ObjectStreamConstants.SC_SERIALIZABLE;
+            stringobj strtype = new stringobj(0, "Ljava/lang/String;".getBytes("UTF-8"));
+            stringobj objtype = new stringobj(0, "Ljava/lang/Object;".getBytes("UTF-8"));
+            cd.fields = new field[] {
+                new field(fieldtype.BOOLEAN, "active"),
+                new field(fieldtype.INTEGER, "id"),
+                new field(fieldtype.DOUBLE, "score"),
+                new field(fieldtype.LONG, "timestamp"),
+                new field(fieldtype.OBJECT, "name", strtype),
+                new field(fieldtype.OBJECT, "parent", objtype),
+            };
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            for(int i = 0; i < BATCH; i++) {
+                dos.writeBoolean((i & 1) == 0);
+                dos.writeInt(i);
+                dos.writeDouble(i * 0.5);
+                dos.writeLong(1300000000000L + i);
+                dos.writeByte(ObjectStreamConstants.TC_STRING);
+                dos.writeUTF("record-" + i);
+                dos.writeByte(ObjectStreamConstants.TC_NULL);
+            }
+            dos.close();
+            data = bos.toByteArray();
+        }
+    }
+
+    /**
+     * A freshly-parsed (unconnected) stream of member classes for each invocation, since
+     * connectMemberClasses() renames the classes it connects.
+     */
+    @State(Scope.Benchmark)
+    public static class unconnected {
+        byte[] data;
+        jdeserialize jd;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            data = Corpus.blobs(1)[0];
+        }
+
+        @Setup(Level.Invocation)
+        public void parse() throws IOException {
+            jd = new jdeserialize("bench");
+            jd.setOutput(ParseBenchmark.NULL_OUTPUT);
+            jd.run(new StreamInput(new ByteArrayInputStream(data)), false);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class parsed {
+        @Param({ Corpus.STRINGS, Corpus.DEEP, Corpus.ARRAYS, Corpus.RESETS })
+        public String corpus;
+
+        @Param({ "10000" })
+        public int size;
+
+        jdeserialize jd;
+        Getopt go;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            byte[] data = Corpus.generate(corpus, size);
+            jd = new jdeserialize("bench");
+            jd.setOutput(ParseBenchmark.NULL_OUTPUT);
+            jd.run(new StreamInput(new ByteArrayInputStream(data)), true);
+            go = new Getopt();
+            go.parse(new String[0]);
+        }
+    }
+
+    /**
+     * Decodes BATCH strings; the score is in strings per second.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int readNewString(strings s) throws IOException {
+        jdeserialize jd = newParser();
+        StreamInput in = new StreamInput(new ByteArrayInputStream(s.data), s.data.length);
+        int n = 0;
+        for(int i = 0; i < BATCH; i++) {
+            n += jd.read_newString(ObjectStreamConstants.TC_STRING, in).value.length();
+        }
+        return n;
+    }
+
+    @Benchmark
+    public arraycoll readArrayValues(arrays a) throws IOException {
+        StreamInput in = new StreamInput(new ByteArrayInputStream(a.data));
+        return newParser().read_arrayValues(a.type, in);
+    }
+
+    /**
+     * Decodes the fields of BATCH instances; the score is in instances per second.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int readClassdata(classdata c) throws IOException {
+        jdeserialize jd = newParser();
+        StreamInput in = new StreamInput(new ByteArrayInputStream(c.data), c.data.length);
+        int n = 0;
+        for(int i = 0; i < BATCH; i++) {
+            instance inst = new instance();
+            inst.classdesc = c.cd;
+            jd.read_Classdata(in, inst);
+            n += inst.fielddata.size();
+        }
+        return n;
+    }
+
+    @Benchmark
+    public jdeserialize connectMemberClasses(unconnected u) throws IOException {
+        u.jd.connectMemberClasses();
+        return u.jd;
+    }
+
+    @Benchmark
+    public void dump(parsed p) throws IOException {
+        p.jd.dump(p.go);
+    }
+}
@@ -0,0 +1,206 @@
+package org.unsynchronized.bench;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>
+ * Synthetic serialized-stream corpora for the benchmarks.  Each corpus is generated in
+ * memory with an ObjectOutputStream, from the classes defined below, so that the
+ * benchmarks don't depend on any files.
+ * </p>
+ *
+ * <p>
+ * The corpora are deterministic: the same name and size always produce the same
+ * bytes, so results from different runs are comparable.
+ * </p>
+ */
+public class Corpus {
+    /**
+     * Names of the corpora that are single streams.
+     */
+    public static final String STRINGS = "strings";
+    public static final String DEEP = "deep";
+    public static final String ARRAYS = "arrays";
+    public static final String RESETS = "resets";
+
+    public static class entry implements Serializable {
+        public static final long serialVersionUID = 1L;
+        int id;
+        long timestamp;
+        double score;
+        boolean active;
+        String name;
+        String description;
+        entry parent;
+
+        entry(int id, String name, String description) {
+            this.id = id;
+            this.timestamp = 1300000000000L + id;
+            this.score = id * 0.5;
+            this.active = (id & 1) == 0;
+            this.name = name;
+            this.description = description;
+        }
+    }
+
+    public static class node implements Serializable {
+        public static final long serialVersionUID = 1L;
+        int value;
+        node next;
+
+        node(int value, node next) {
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    public static class samples implements Serializable {
+        public static final long serialVersionUID = 1L;
+        int[] ints;
+        double[] doubles;
+        byte[] bytes;
+        long[] longs;
+    }
+
+    public static class session implements Serializable {
+        public static final long serialVersionUID = 1L;
+        String user;
+        long created;
+        int hits;
+        HashMap<String, String> attributes = new HashMap<String, String>();
+        outer.member member;
+    }
+
+    public static class outer implements Serializable {
+        public static final long serialVersionUID = 1L;
+        int level;
+
+        public class member implements Serializable {
+            public static final long serialVersionUID = 1L;
+            String role;
+
+            member(String role) {
+                this.role = role;
+            }
+        }
+    }
+
+    /**
+     * Generates a single-stream corpus.
+     *
+     * @param name one of STRINGS, DEEP, ARRAYS or RESETS
+     * @param size the number of items in the corpus (strings, list nodes, array
+     * elements, or objects between resets)
+     * @return the serialized stream
+     * @throws IOException if the stream can't be written
+     */
+    public static byte[] generate(String name, final int size) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(bos);
+        if(name.equals(STRINGS)) {
+            Random r = new Random(size);
+            ArrayList<entry> entries = new ArrayList<entry>();
+            for(int i = 0; i < size; i++) {
+                entries.add(new entry(i, "record-" + i, text(r, 20 + r.nextInt(200))));
+            }
+            oos.writeObject(entries);
+        } else if(name.equals(DEEP)) {
+            // Writing a long chain of references recurses once per node, so it's done
+            // on a thread with a large stack.
+            final IOException[] err = new IOException[1];
+            Thread t = new Thread(null, new Runnable() {
+                public void run() {
+                    node head = null;
+                    for(int i = 0; i < size; i++) {
+                        head = new node(i, head);
+                    }
+                    try {
+                        oos.writeObject(head);
+                    } catch (IOException ioe) {
+                        err[0] = ioe;
+                    }
+                }
+            }, "corpus-writer", 1L << 30);
+            t.start();
+            try {
+                t.join();
+            } catch (InterruptedException ie) {
+                throw new InterruptedIOException("interrupted while generating corpus");
+            }
+            if(err[0] != null) {
+                throw err[0];
+            }
+        } else if(name.equals(ARRAYS)) {
+            Random r = new Random(size);
+            samples s = new samples();
+            s.ints = new int[size];
+            s.doubles = new double[size];
+            s.bytes = new byte[size * 4];
+            s.longs = new long[size];
+            for(int i = 0; i < size; i++) {
+                s.ints[i] = r.nextInt();
+                s.doubles[i] = r.nextDouble();
+                s.longs[i] = r.nextLong();
+            }
+            r.nextBytes(s.bytes);
+            oos.writeObject(s);
+        } else if(name.equals(RESETS)) {
+            for(int i = 0; i < size; i++) {
+                entry rec = new entry(i, "record-" + i, "reset " + (i % 10));
+                rec.parent = new entry(-i, "parent-" + i, null);
+                oos.writeObject(rec);
+                oos.reset();
+            }
+        } else {
+            throw new IllegalArgumentException("unknown corpus: " + name);
+        }
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Generates many small, independent streams, each holding one session object, as
+     * they might be stored in a database.
+     *
+     * @param count the number of streams
+     * @return the serialized streams
+     * @throws IOException if a stream can't be written
+     */
+    public static byte[][] blobs(int count) throws IOException {
+        Random r = new Random(count);
+        outer o = new outer();
+        byte[][] blobs = new byte[count][];
+        for(int i = 0; i < count; i++) {
+            session s = new session();
+            s.user = "user" + r.nextInt(100000);
+            s.created = 1300000000000L + r.nextInt();
+            s.hits = r.nextInt(1000);
+            for(int j = 0, n = r.nextInt(4); j < n; j++) {
+                s.attributes.put("attr" + j, text(r, 10));
+            }
+            s.member = o.new member((i & 1) == 0 ? "admin" : "guest");
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(s);
+            oos.close();
+            blobs[i] = bos.toByteArray();
+        }
+        return blobs;
+    }
+
+    /**
+     * Returns random text; about one character in ten is outside ASCII.
+     */
+    static String text(Random r, int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for(int i = 0; i < len; i++) {
+            int k = r.nextInt(10);
+            if(k == 0) {
+                sb.append((char)(0xa0 + r.nextInt(0x2000)));
+            } else {
+                sb.append((char)('a' + r.nextInt(26)));
+            }
+        }
+        return sb.toString();
+    }
+}
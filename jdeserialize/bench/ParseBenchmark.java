@@ -0,0 +1,145 @@
+package org.unsynchronized.bench;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.unsynchronized.*;
+
+/**
+ * Throughput of whole-stream parsing: jdeserialize.run() in tree-building, lazy and
+ * streaming (visitor) modes, over stream and memory-mapped input, and batch parsing of
+ * many small blobs with and without a shared classdesc cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+    static final PrintStream NULL_OUTPUT = new PrintStream(OutputStream.nullOutputStream());
+    static final int BLOB_COUNT = 10000;
+
+    @State(Scope.Benchmark)
+    public static class stream {
+        @Param({ Corpus.STRINGS, Corpus.DEEP, Corpus.ARRAYS, Corpus.RESETS })
+        public String corpus;
+
+        @Param({ "10000" })
+        public int size;
+
+        @Param({ "stream", "mmap" })
+        public String input;
+
+        byte[] data;
+        File file;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            data = Corpus.generate(corpus, size);
+            file = File.createTempFile("jdeserialize-bench-", ".ser");
+            file.deleteOnExit();
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write(data);
+            } finally {
+                fos.close();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() {
+            file.delete();
+        }
+
+        StreamInput open() throws IOException {
+            if(input.equals("mmap")) {
+                return new MappedStreamInput(file);
+            }
+            return new StreamInput(new ByteArrayInputStream(data));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class blobs {
+        @Param({ "false", "true" })
+        public boolean cache;
+
+        byte[][] blobs;
+        ClassDescCache desccache;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            blobs = Corpus.blobs(BLOB_COUNT);
+            desccache = cache ? new ClassDescCache() : null;
+        }
+    }
+
+    @Benchmark
+    public List<content> run(stream s) throws IOException {
+        jdeserialize jd = new jdeserialize("bench");
+        jd.setOutput(NULL_OUTPUT);
+        jd.run(s.open(), true);
+        return jd.getContent();
+    }
+
+    /**
+     * Parses in lazy mode, then decodes the field data of the first instance only.
+     */
+    @Benchmark
+    public int runLazy(stream s) throws IOException {
+        jdeserialize jd = new jdeserialize("bench");
+        jd.setOutput(NULL_OUTPUT);
+        jd.setLazy(true);
+        StreamInput in = new MappedStreamInput(s.file);
+        try {
+            jd.run(in, true);
+            for(content c: jd.getContent()) {
+                if(c instanceof instance) {
+                    return ((instance)c).fielddata.size();
+                }
+            }
+            return 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public ParseStats scan(stream s) throws IOException {
+        return new StreamScanner().scan(s.open());
+    }
+
+    @Benchmark
+    public int runVisitor(stream s) throws IOException {
+        final int[] count = new int[1];
+        jdeserialize jd = new jdeserialize("bench");
+        jd.setOutput(NULL_OUTPUT);
+        jd.run(s.open(), new StreamVisitorAdapter() {
+            public void fieldValue(field f, int value) {
+                count[0] += value;
+            }
+            public void topLevel(content c) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Parses every blob; the score is in blobs per second.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BLOB_COUNT)
+    public int runBlobs(blobs b) throws IOException {
+        int n = 0;
+        for(byte[] blob: b.blobs) {
+            jdeserialize jd = new jdeserialize("bench");
+            jd.setOutput(NULL_OUTPUT);
+            jd.setClassDescCache(b.desccache);
+            jd.run(new StreamInput(new ByteArrayInputStream(blob), blob.length), false);
+            n += jd.getContent().size();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,214 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * <p>
+ * Cache of class descriptions that can be shared by any number of jdeserialize instances
+ * (and threads).  When many small streams are parsed that describe the same classes, the
+ * class descriptions, their field arrays and their names are only decoded and validated
+ * once; later streams resolve them to the same shared classdesc.  See
+ * jdeserialize.setClassDescCache().
+ * </p>
+ *
+ * <p>
+ * Entries are keyed by the raw bytes of the description (name, serialVersionUID, flags
+ * and fields), the handle it was assigned in the stream, and the values of any type
+ * strings it refers to by handle; an entry is only used if its superclass matches the
+ * one read from the stream.  Descriptions with class annotations, enum descriptions and
+ * proxy class descriptions are never cached.
+ * </p>
+ *
+ * <p>
+ * The cache holds at most a fixed number of entries.  When it is full, entries are
+ * evicted using the CLOCK (second-chance) policy: an entry that has been used since the
+ * last sweep is passed over once.
+ * </p>
+ *
+ * <p>
+ * Shared class descriptions must be treated as read-only; see classdesc.isShared().
+ * </p>
+ */
+public class ClassDescCache {
+    /**
+     * Default maximum number of entries.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Key: a range of descriptor bytes.  Lookups use the parser's buffer directly; keys
+     * stored in the map own a copy.
+     */
+    static class key {
+        final byte[] data;
+        final int off;
+        final int len;
+        final int hash;
+
+        key(byte[] data, int off, int len) {
+            this.data = data;
+            this.off = off;
+            this.len = len;
+            int h = 1;
+            for(int i = off; i < off + len; i++) {
+                h = 31 * h + data[i];
+            }
+            this.hash = h;
+        }
+        public int hashCode() {
+            return hash;
+        }
+        public boolean equals(Object o) {
+            if(!(o instanceof key)) {
+                return false;
+            }
+            key k = (key)o;
+            return hash == k.hash && Arrays.equals(data, off, off + len, k.data, k.off, k.off + k.len);
+        }
+    }
+
+    /**
+     * A cached class description.
+     */
+    static class entry {
+        final key key;
+        final classdesc cd;
+        volatile boolean referenced;
+
+        entry(key key, classdesc cd) {
+            this.key = key;
+            this.cd = cd;
+        }
+    }
+
+    private final int capacity;
+    private final ConcurrentHashMap<key, entry> entries;
+    private final ConcurrentLinkedQueue<entry> clock = new ConcurrentLinkedQueue<entry>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of entries
+     */
+    public ClassDescCache(int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("invalid cache capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<key, entry>(Math.min(capacity, 1024));
+    }
+
+    /**
+     * Constructor; the cache holds up to DEFAULT_CAPACITY entries.
+     */
+    public ClassDescCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Looks up the class description for a range of descriptor bytes.
+     *
+     * @param data the buffer holding the key
+     * @param off offset of the key in data
+     * @param len length of the key
+     * @return the shared class description, or null if it isn't cached
+     */
+    classdesc lookup(byte[] data, int off, int len) {
+        entry e = entries.get(new key(data, off, len));
+        if(e == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        e.referenced = true;
+        return e.cd;
+    }
+
+    /**
+     * Adds a class description.  The description is made read-only, and must already
+     * have been validated.  If another thread has added an entry for the same key (and
+     * superclass) in the meantime, that entry's description is returned instead.  An
+     * entry whose superclass differs (because the superclass's own entry was evicted and
+     * replaced) is replaced.
+     *
+     * @param data the buffer holding the key; the key is copied
+     * @param off offset of the key in data
+     * @param len length of the key
+     * @param cd the class description
+     * @return the shared class description for the key
+     */
+    classdesc add(byte[] data, int off, int len, classdesc cd) {
+        cd.share();
+        entry e = new entry(new key(Arrays.copyOfRange(data, off, off + len), 0, len), cd);
+        entry prev = entries.putIfAbsent(e.key, e);
+        if(prev != null) {
+            if(prev.cd.superclass == cd.superclass) {
+                return prev.cd;
+            }
+            entries.put(e.key, e);
+        }
+        clock.add(e);
+        while(entries.size() > capacity) {
+            entry victim = clock.poll();
+            if(victim == null) {
+                break;
+            }
+            if(victim.referenced) {
+                victim.referenced = false;
+                clock.add(victim);
+            } else {
+                entries.remove(victim.key, victim);
+            }
+        }
+        return e.cd;
+    }
+
+    /**
+     * Gets the maximum number of entries.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of entries currently cached.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of lookups that found a cached description.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that didn't find a cached description.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Removes all entries.  Class descriptions that were already shared remain
+     * read-only.
+     */
+    public void clear() {
+        entries.clear();
+        clock.clear();
+    }
+}
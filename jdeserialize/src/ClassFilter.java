@@ -0,0 +1,201 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>
+ * Selects the classes whose instances are decoded; see jdeserialize.setClassFilter().
+ * The filter is made of include and exclude patterns.  A class is accepted if its name
+ * matches at least one include pattern (or there are none), and no exclude pattern.
+ * </p>
+ *
+ * <p>
+ * Patterns are globs over the class name as it appears in the stream (e.g.
+ * "com.example.Order$Line"): '*' matches any sequence of characters, including dots,
+ * and every other character matches itself.  A prefix is written as a pattern ending
+ * in '*', e.g. "com.example.*".  Each set of patterns is compiled into a trie, so a
+ * name is matched against all of them in one pass over its characters, without
+ * backtracking.
+ * </p>
+ *
+ * <p>
+ * Patterns must all be added before the filter is used; after that, it's read-only and
+ * can be shared by any number of parsers.
+ * </p>
+ */
+public class ClassFilter {
+    /**
+     * Trie node.  Children are kept in parallel arrays, since most nodes have one or two.
+     */
+    private static class node {
+        final int id;           // index of the node in its filter
+        char[] keys = new char[0];
+        node[] children = new node[0];
+        node star;              // child for a '*'
+        boolean loop;           // this is a '*' child, which matches any character
+        boolean terminal;       // a pattern ends here
+
+        node(int id) {
+            this.id = id;
+        }
+
+        node child(char c) {
+            for(int i = 0; i < keys.length; i++) {
+                if(keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+        node addChild(char c, node n) {
+            int len = keys.length;
+            keys = Arrays.copyOf(keys, len + 1);
+            children = Arrays.copyOf(children, len + 1);
+            keys[len] = c;
+            children[len] = n;
+            return n;
+        }
+    }
+
+    private int nnodes;
+    private final node includes = new node(nnodes++);
+    private final node excludes = new node(nnodes++);
+    private int nincludes;
+    private int nexcludes;
+
+    /**
+     * Constructor for a filter that accepts every class.
+     */
+    public ClassFilter() {
+    }
+
+    /**
+     * Parses a comma-separated list of patterns, as given to the -include and -exclude
+     * options.
+     *
+     * @param filter the filter to add the patterns to
+     * @param list the patterns
+     * @param include true to add them as include patterns, false for exclude patterns
+     */
+    static void addAll(ClassFilter filter, String list, boolean include) {
+        for(String p: list.split(",")) {
+            p = p.trim();
+            if(p.length() == 0) {
+                continue;
+            }
+            if(include) {
+                filter.include(p);
+            } else {
+                filter.exclude(p);
+            }
+        }
+    }
+
+    private void add(node root, String pattern) {
+        node n = root;
+        for(int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if(c == '*') {
+                if(n.star == null) {
+                    n.star = new node(nnodes++);
+                    n.star.loop = true;
+                }
+                n = n.star;
+                // "**" is the same as "*"
+                while(i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                    i++;
+                }
+            } else {
+                node child = n.child(c);
+                n = (child != null) ? child : n.addChild(c, new node(nnodes++));
+            }
+        }
+        n.terminal = true;
+    }
+
+    /**
+     * Adds an include pattern.
+     *
+     * @param pattern the pattern
+     * @return this filter
+     */
+    public ClassFilter include(String pattern) {
+        add(includes, pattern);
+        nincludes++;
+        return this;
+    }
+
+    /**
+     * Adds an exclude pattern.
+     *
+     * @param pattern the pattern
+     * @return this filter
+     */
+    public ClassFilter exclude(String pattern) {
+        add(excludes, pattern);
+        nexcludes++;
+        return this;
+    }
+
+    /**
+     * Matches a name against the patterns in a trie.  Every pattern that could match is
+     * followed at once: the set of nodes that the characters read so far lead to is
+     * carried from one character to the next.  A node's '*' child is in the set whenever
+     * the node is, and stays in it on any character.  This takes time proportional to the
+     * length of the name times the number of nodes, however many '*'s the patterns have.
+     */
+    private boolean matches(node root, String name) {
+        node[] cur = new node[nnodes];
+        node[] next = new node[nnodes];
+        int[] added = new int[nnodes];  // the step at which each node was last added
+        int ncur = addState(cur, 0, root, added, 1);
+        for(int i = 0; i < name.length() && ncur > 0; i++) {
+            char c = name.charAt(i);
+            int nnext = 0;
+            for(int k = 0; k < ncur; k++) {
+                node n = cur[k];
+                if(n.loop) {
+                    nnext = addState(next, nnext, n, added, i + 2);
+                }
+                node child = n.child(c);
+                if(child != null) {
+                    nnext = addState(next, nnext, child, added, i + 2);
+                }
+            }
+            node[] t = cur;
+            cur = next;
+            next = t;
+            ncur = nnext;
+        }
+        for(int k = 0; k < ncur; k++) {
+            if(cur[k].terminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+    private static int addState(node[] set, int size, node n, int[] added, int step) {
+        while(n != null && added[n.id] != step) {
+            added[n.id] = step;
+            set[size++] = n;
+            n = n.star;
+        }
+        return size;
+    }
+
+    /**
+     * Determines whether instances of a class should be decoded.
+     *
+     * @param name the class name
+     * @return true if the class is accepted
+     */
+    public boolean accepts(String name) {
+        if(name == null) {
+            return nincludes == 0;
+        }
+        if(nincludes > 0 && !matches(includes, name)) {
+            return false;
+        }
+        return nexcludes == 0 || !matches(excludes, name);
+    }
+}
@@ -0,0 +1,218 @@
+package org.unsynchronized;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * <p>
+ * Buffered character output for jdeserialize.dump() and the dump_*() methods.  Text is
+ * collected in a large buffer and handed to the underlying sink in chunks, so rendering
+ * the dump doesn't go through a synchronized PrintStream call (and a line-separator
+ * write) for every line, and doesn't build an intermediate string for each item.
+ * </p>
+ *
+ * <p>
+ * Any Appendable can be the sink; Writers are written to directly from the buffer.  The
+ * buffer is only passed on when it fills up and when flush() is called, so callers must
+ * flush the writer when they're done with it.  A DumpWriter isn't thread-safe.
+ * </p>
+ */
+public class DumpWriter implements Appendable, Flushable {
+    /**
+     * Default buffer size, in chars.
+     */
+    public static final int DEFAULT_BUFSIZE = 64 * 1024;
+
+    private static final char[] HEXDIGITS = "0123456789abcdef".toCharArray();
+    private static final String[] INDENTS = new String[16];
+    static {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < INDENTS.length; i++) {
+            INDENTS[i] = sb.toString();
+            sb.append(jdeserialize.INDENT);
+        }
+    }
+
+    private final Appendable sink;
+    private final Writer writer;
+    private final char[] buf;
+    private int len;
+    private long drained;
+
+    /**
+     * Constructor.
+     *
+     * @param sink where the output is written
+     */
+    public DumpWriter(Appendable sink) {
+        this(sink, DEFAULT_BUFSIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sink where the output is written
+     * @param bufsize the size of the buffer, in chars
+     */
+    public DumpWriter(Appendable sink, int bufsize) {
+        if(bufsize < 1) {
+            throw new IllegalArgumentException("invalid buffer size: " + bufsize);
+        }
+        this.sink = sink;
+        this.writer = (sink instanceof Writer) ? (Writer)sink : null;
+        this.buf = new char[bufsize];
+    }
+
+    /**
+     * Returns the indentation string for the given level.  Strings for the most common
+     * levels are cached.
+     *
+     * @param level the indentation level
+     * @return a string of level copies of jdeserialize.INDENT
+     */
+    public static String indentation(int level) {
+        if(level < INDENTS.length) {
+            return INDENTS[level];
+        }
+        StringBuilder sb = new StringBuilder(INDENTS[INDENTS.length - 1]);
+        for(int i = INDENTS.length - 1; i < level; i++) {
+            sb.append(jdeserialize.INDENT);
+        }
+        return sb.toString();
+    }
+
+    private void drain() throws IOException {
+        if(len == 0) {
+            return;
+        }
+        if(writer != null) {
+            writer.write(buf, 0, len);
+        } else {
+            sink.append(CharBuffer.wrap(buf, 0, len));
+        }
+        drained += len;
+        len = 0;
+    }
+
+    /**
+     * Writes a string.
+     *
+     * @param s the string; null is written as "null"
+     * @return this writer
+     * @throws IOException if the sink throws it
+     */
+    public DumpWriter append(String s) throws IOException {
+        if(s == null) {
+            s = "null";
+        }
+        int off = 0, n = s.length();
+        while(n > 0) {
+            if(len == buf.length) {
+                drain();
+            }
+            int chunk = Math.min(n, buf.length - len);
+            s.getChars(off, off + chunk, buf, len);
+            len += chunk;
+            off += chunk;
+            n -= chunk;
+        }
+        return this;
+    }
+
+    public DumpWriter append(CharSequence csq) throws IOException {
+        return append(String.valueOf(csq));
+    }
+
+    public DumpWriter append(CharSequence csq, int start, int end) throws IOException {
+        if(csq == null) {
+            csq = "null";
+        }
+        for(int i = start; i < end; i++) {
+            append(csq.charAt(i));
+        }
+        return this;
+    }
+
+    public DumpWriter append(char c) throws IOException {
+        if(len == buf.length) {
+            drain();
+        }
+        buf[len++] = c;
+        return this;
+    }
+
+    /**
+     * Writes indentation.
+     *
+     * @param level the indentation level
+     * @return this writer
+     * @throws IOException if the sink throws it
+     */
+    public DumpWriter indent(int level) throws IOException {
+        return append(indentation(level));
+    }
+
+    /**
+     * Writes a value in the format of jdeserialize.hex(), without creating the string.
+     *
+     * @param value the value
+     * @return this writer
+     * @throws IOException if the sink throws it
+     */
+    public DumpWriter hex(long value) throws IOException {
+        if(value < 0) {
+            value = 256 + value;
+            if(value < 0) {
+                return append(jdeserialize.hex(value - 256));
+            }
+        }
+        append('0').append('x');
+        int digits = Math.max(2, (64 - Long.numberOfLeadingZeros(value) + 3) / 4);
+        for(int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            append(HEXDIGITS[(int)(value >>> shift) & 0xf]);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a line separator.
+     *
+     * @return this writer
+     * @throws IOException if the sink throws it
+     */
+    public DumpWriter newline() throws IOException {
+        return append(jdeserialize.linesep);
+    }
+
+    /**
+     * Writes a string followed by a line separator.
+     *
+     * @param s the string
+     * @return this writer
+     * @throws IOException if the sink throws it
+     */
+    public DumpWriter println(String s) throws IOException {
+        return append(s).newline();
+    }
+
+    /**
+     * Returns the number of chars written so far, including those still in the buffer.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return drained + len;
+    }
+
+    /**
+     * Passes any buffered output to the sink, and flushes the sink if it's Flushable.
+     *
+     * @throws IOException if the sink throws it
+     */
+    public void flush() throws IOException {
+        drain();
+        if(sink instanceof Flushable) {
+            ((Flushable)sink).flush();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>
+ * Layout of the field values of an instance of a class, across its whole hierarchy.
+ * Instances don't keep their field values in maps; primitive values are widened to
+ * long and stored in one array, and object values are stored in another (see
+ * instance.fielddata).  Both arrays are filled in the order the values appear in the
+ * stream: superclass first, then each class's fields in declaration order.
+ * </p>
+ *
+ * <p>
+ * The layout for a class is computed once, and cached on its classdesc.
+ * </p>
+ */
+class FieldLayout {
+    /**
+     * The serializable classes in the hierarchy, in stream order.  Only these classes
+     * have field data.
+     */
+    final classdesc[] classes;
+
+    /**
+     * For each class, the index of each of its fields in the primitive or object value
+     * array (depending on the field's type).
+     */
+    final int[][] slots;
+
+    /**
+     * Number of primitive values.
+     */
+    final int nprims;
+
+    /**
+     * Number of object values.
+     */
+    final int nrefs;
+
+    private FieldLayout(classdesc cd) {
+        ArrayList<classdesc> serializable = new ArrayList<classdesc>();
+        for(classdesc c: ReadPlan.of(cd).classes) {
+            if((c.descflags & ObjectStreamConstants.SC_SERIALIZABLE) != 0) {
+                serializable.add(c);
+            }
+        }
+        this.classes = serializable.toArray(new classdesc[serializable.size()]);
+        this.slots = new int[classes.length][];
+        int p = 0, r = 0;
+        for(int i = 0; i < classes.length; i++) {
+            field[] fields = classes[i].fields;
+            int n = (fields == null) ? 0 : fields.length;
+            slots[i] = new int[n];
+            for(int j = 0; j < n; j++) {
+                slots[i][j] = fields[j].type.isPrimitive() ? p++ : r++;
+            }
+        }
+        this.nprims = p;
+        this.nrefs = r;
+    }
+
+    /**
+     * Gets the layout for instances of a class.
+     *
+     * @param cd the class (the most-derived class of the instance)
+     * @return the layout
+     */
+    static FieldLayout of(classdesc cd) {
+        FieldLayout l = cd.layout;
+        if(l == null) {
+            l = new FieldLayout(cd);
+            cd.layout = l;
+        }
+        return l;
+    }
+
+    /**
+     * Finds a class in the layout.
+     *
+     * @param cd the class
+     * @return its index in classes, or -1 if it has no field data
+     */
+    int indexOf(Object cd) {
+        for(int i = 0; i < classes.length; i++) {
+            if(classes[i] == cd) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Widens a primitive value to a slot.
+     */
+    static long toSlot(float value) {
+        return Float.floatToRawIntBits(value);
+    }
+    static long toSlot(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+    static long toSlot(boolean value) {
+        return value ? 1 : 0;
+    }
+
+    /**
+     * Boxes the primitive value in a slot.
+     *
+     * @param type the field's type
+     * @param slot the slot
+     * @return the value
+     */
+    static Object fromSlot(fieldtype type, long slot) {
+        switch(type) {
+            case BYTE:
+                return Byte.valueOf((byte)slot);
+            case CHAR:
+                return Character.valueOf((char)slot);
+            case DOUBLE:
+                return Double.valueOf(Double.longBitsToDouble(slot));
+            case FLOAT:
+                return Float.valueOf(Float.intBitsToFloat((int)slot));
+            case INTEGER:
+                return Integer.valueOf((int)slot);
+            case LONG:
+                return Long.valueOf(slot);
+            case SHORT:
+                return Short.valueOf((short)slot);
+            case BOOLEAN:
+                return Boolean.valueOf(slot != 0);
+            default:
+                throw new IllegalArgumentException("not a primitive type: " + type);
+        }
+    }
+}
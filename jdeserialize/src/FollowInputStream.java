@@ -0,0 +1,112 @@
+package org.unsynchronized;
+import java.io.*;
+
+/**
+ * <p>
+ * A FileInputStream for a file that another process is still appending to; see
+ * jdeserialize.follow().  When a read reaches the end of the file, it waits for more
+ * data to be written, polling the file, rather than returning -1; a reader that stops in
+ * the middle of an item just resumes when the rest of it arrives.
+ * </p>
+ *
+ * <p>
+ * Reads only report the end of the stream once stop() has been called, or once no data
+ * has arrived for the idle timeout (if one is set).  If the file shrinks below the
+ * current position (it was truncated or replaced), reads throw an IOException.  If the
+ * waiting thread is interrupted, reads throw InterruptedIOException.
+ * </p>
+ */
+public class FollowInputStream extends FileInputStream {
+    /**
+     * Default interval between polls of the file, in milliseconds.
+     */
+    public static final long DEFAULT_POLL_INTERVAL = 250;
+
+    private final File file;
+    private volatile long pollInterval = DEFAULT_POLL_INTERVAL;
+    private volatile long idleTimeout;
+    private volatile boolean stopped;
+
+    /**
+     * Constructor.
+     *
+     * @param file the file to read
+     * @throws FileNotFoundException if the file can't be opened
+     */
+    public FollowInputStream(File file) throws FileNotFoundException {
+        super(file);
+        this.file = file;
+    }
+
+    /**
+     * Sets the interval between polls of the file while waiting for data.
+     *
+     * @param millis the interval, in milliseconds; must be positive
+     */
+    public void setPollInterval(long millis) {
+        if(millis <= 0) {
+            throw new IllegalArgumentException("invalid poll interval: " + millis);
+        }
+        this.pollInterval = millis;
+    }
+
+    /**
+     * Sets how long a read waits for data before reporting the end of the stream.
+     *
+     * @param millis the timeout, in milliseconds, or 0 to wait indefinitely
+     */
+    public void setIdleTimeout(long millis) {
+        if(millis < 0) {
+            throw new IllegalArgumentException("invalid idle timeout: " + millis);
+        }
+        this.idleTimeout = millis;
+    }
+
+    /**
+     * Makes reads report the end of the stream once they reach the end of the file,
+     * instead of waiting; a read that's already waiting returns within one poll
+     * interval.  This may be called from any thread.
+     */
+    public void stop() {
+        this.stopped = true;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+    }
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+    public int read(byte[] b, int off, int len) throws IOException {
+        long waited = 0;
+        while(true) {
+            int r = super.read(b, off, len);
+            if(r >= 0) {
+                return r;
+            }
+            long size = getChannel().size();
+            long pos = getChannel().position();
+            if(size < pos) {
+                throw new IOException("file " + file + " was truncated to " + size + " bytes while reading at offset " + pos);
+            }
+            if(size > pos) {
+                continue;
+            }
+            long timeout = idleTimeout;
+            if(stopped || (timeout > 0 && waited >= timeout)) {
+                return -1;
+            }
+            long interval = pollInterval;
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException iioe = new InterruptedIOException("interrupted while waiting for data from " + file);
+                iioe.initCause(ie);
+                throw iioe;
+            }
+            waited += interval;
+        }
+    }
+}
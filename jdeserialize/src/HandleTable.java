@@ -0,0 +1,248 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>
+ * Map of handles to the content objects they refer to.  Since handles are assigned
+ * sequentially starting at ObjectStreamConstants.baseWireHandle, the table is stored as a
+ * dense array indexed by (handle - baseWireHandle); lookups don't box the handle, and
+ * iteration is in handle order.
+ * </p>
+ *
+ * <p>
+ * The Map interface is provided for compatibility; the primitive-keyed methods get(int),
+ * contains(int) and put(int, content) should be preferred.  Only put(int, content)
+ * modifies the table through the Map interface; other mutators are unsupported.
+ * </p>
+ *
+ * <p>
+ * Once a table is frozen (see freeze()), it can no longer be modified, and may be handed
+ * out to callers directly.
+ * </p>
+ */
+public class HandleTable extends AbstractMap<Integer,content> {
+    private content[] entries;
+    private int limit;
+    private int size;
+    private boolean frozen;
+
+    /**
+     * Constructor.
+     */
+    public HandleTable() {
+        this.entries = new content[64];
+    }
+
+    /**
+     * Converts a handle to an index into the table, or returns -1 if the handle is
+     * below the base handle value.
+     */
+    private static int index(int handle) {
+        long idx = (long)handle - ObjectStreamConstants.baseWireHandle;
+        if(idx < 0 || idx > Integer.MAX_VALUE) {
+            return -1;
+        }
+        return (int)idx;
+    }
+
+    /**
+     * Gets the content for a handle.
+     *
+     * @param handle the handle
+     * @return the content, or null if the handle isn't in the table
+     */
+    public content get(int handle) {
+        int idx = index(handle);
+        if(idx < 0 || idx >= limit) {
+            return null;
+        }
+        return entries[idx];
+    }
+
+    /**
+     * Determines whether a handle is in the table.
+     *
+     * @param handle the handle
+     * @return true iff the table has an entry for the handle
+     */
+    public boolean contains(int handle) {
+        return get(handle) != null;
+    }
+
+    /**
+     * Adds an entry to the table.
+     *
+     * @param handle the handle
+     * @param c the content for the handle; must not be null
+     * @return the previous content for the handle, or null
+     */
+    public content put(int handle, content c) {
+        if(frozen) {
+            throw new UnsupportedOperationException("handle table is frozen");
+        }
+        if(c == null) {
+            throw new NullPointerException("null content for handle " + jdeserialize.hex(handle));
+        }
+        int idx = index(handle);
+        if(idx < 0) {
+            throw new IllegalArgumentException("handle below base wire handle: " + jdeserialize.hex(handle));
+        }
+        if(idx >= entries.length) {
+            long ncap = Math.max((long)idx + 1, entries.length * 2L);
+            entries = Arrays.copyOf(entries, (int)Math.min(Integer.MAX_VALUE - 8, ncap));
+        }
+        content old = entries[idx];
+        entries[idx] = c;
+        if(old == null) {
+            size++;
+        }
+        if(idx >= limit) {
+            limit = idx + 1;
+        }
+        return old;
+    }
+
+    public content get(Object key) {
+        if(!(key instanceof Integer)) {
+            return null;
+        }
+        return get(((Integer)key).intValue());
+    }
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+    public content put(Integer key, content value) {
+        return put(key.intValue(), value);
+    }
+    public int size() {
+        return size;
+    }
+    public void clear() {
+        if(frozen) {
+            throw new UnsupportedOperationException("handle table is frozen");
+        }
+        Arrays.fill(entries, 0, limit, null);
+        limit = 0;
+        size = 0;
+    }
+
+    /**
+     * Removes the entries for a range of handles.
+     *
+     * @param from the first handle to remove
+     * @param to the handle after the last one to remove
+     */
+    void remove(int from, int to) {
+        if(frozen) {
+            throw new UnsupportedOperationException("handle table is frozen");
+        }
+        int start = Math.max(index(from), 0);
+        int end = Math.min((to < from) ? start : index(to), limit);
+        for(int idx = start; idx < end; idx++) {
+            if(entries[idx] != null) {
+                entries[idx] = null;
+                size--;
+            }
+        }
+        while(limit > 0 && entries[limit - 1] == null) {
+            limit--;
+        }
+    }
+
+    /**
+     * Returns the number of slots up to and including the highest occupied one; every
+     * handle in the table is below baseWireHandle + extent().
+     *
+     * @return the extent of the table
+     */
+    int extent() {
+        return limit;
+    }
+
+    /**
+     * Makes this table read-only.  Further attempts to modify it will throw
+     * UnsupportedOperationException.
+     *
+     * @return this table
+     */
+    public HandleTable freeze() {
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * Tells whether this table has been frozen.
+     *
+     * @return true iff the table is read-only
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Returns the content objects in the table, in handle order.
+     *
+     * @return a view of the values
+     */
+    public Collection<content> values() {
+        return new AbstractCollection<content>() {
+            public Iterator<content> iterator() {
+                return new TableIterator<content>() {
+                    content value(int idx) {
+                        return entries[idx];
+                    }
+                };
+            }
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    public Set<Map.Entry<Integer,content>> entrySet() {
+        return new AbstractSet<Map.Entry<Integer,content>>() {
+            public Iterator<Map.Entry<Integer,content>> iterator() {
+                return new TableIterator<Map.Entry<Integer,content>>() {
+                    Map.Entry<Integer,content> value(int idx) {
+                        return new AbstractMap.SimpleImmutableEntry<Integer,content>(
+                                Integer.valueOf(idx + ObjectStreamConstants.baseWireHandle), entries[idx]);
+                    }
+                };
+            }
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Iterates over the occupied slots of the table, in order.
+     */
+    private abstract class TableIterator<T> implements Iterator<T> {
+        private int next = advance(0);
+
+        private int advance(int idx) {
+            while(idx < limit && entries[idx] == null) {
+                idx++;
+            }
+            return idx;
+        }
+        abstract T value(int idx);
+
+        public boolean hasNext() {
+            return next < limit;
+        }
+        public T next() {
+            if(next >= limit) {
+                throw new NoSuchElementException();
+            }
+            T t = value(next);
+            next = advance(next + 1);
+            return t;
+        }
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
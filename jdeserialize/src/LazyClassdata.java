@@ -0,0 +1,149 @@
+package org.unsynchronized;
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+
+/**
+ * <p>
+ * The class data of an instance that was read in lazy mode (see jdeserialize.setLazy()).
+ * Only the span of the stream holding the data is recorded while parsing; the
+ * instance's fielddata and annotations are views that decode the span the first time
+ * they're accessed.
+ * </p>
+ *
+ * <p>
+ * Decoding re-reads the span from the (still open) input, and resolves every handle in
+ * it against the handle table of the original parse: field values are the same content
+ * objects that the rest of the stream refers to.  Nested instances are skipped over,
+ * and decoded on their own when they're accessed.  The decoded values are held through
+ * a soft reference, so they may be dropped under memory pressure and decoded again.
+ * </p>
+ *
+ * <p>
+ * The views are read-only.  If the span can't be decoded (e.g. the input was closed),
+ * accessing them throws UncheckedIOException.
+ * </p>
+ */
+class LazyClassdata {
+    private final instance inst;
+    private final StreamInput source;
+    private final HandleTable handles;
+    final long start;
+    final long end;
+    final int firsthandle;
+    final int nexthandle;
+    private volatile SoftReference<instance> decoded;
+
+    /**
+     * Constructor.
+     *
+     * @param inst the instance
+     * @param source the input the instance was read from
+     * @param handles the handle table that was in use while the instance was read
+     * @param start offset of the instance's class data
+     * @param end offset just past the instance's class data
+     * @param firsthandle the first handle assigned inside the class data
+     * @param nexthandle the first handle assigned after the class data
+     */
+    LazyClassdata(instance inst, StreamInput source, HandleTable handles, long start, long end,
+            int firsthandle, int nexthandle) {
+        this.inst = inst;
+        this.source = source;
+        this.handles = handles;
+        this.start = start;
+        this.end = end;
+        this.firsthandle = firsthandle;
+        this.nexthandle = nexthandle;
+    }
+
+    /**
+     * Replaces the instance's fielddata and annotations with views of this object.
+     */
+    void install() {
+        inst.fielddata = new view<Map<field, Object>>() {
+            Map<classdesc, Map<field, Object>> map() {
+                return decode().fielddata;
+            }
+        };
+        inst.annotations = new view<List<content>>() {
+            Map<classdesc, List<content>> map() {
+                return decode().annotations;
+            }
+        };
+    }
+
+    /**
+     * Gets the lazy class data of an instance.
+     *
+     * @param inst the instance
+     * @return the class data, or null if the instance wasn't read in lazy mode (or its
+     * data was interrupted by an exception)
+     */
+    static LazyClassdata of(instance inst) {
+        if(inst.fielddata instanceof view) {
+            return ((view<?>)inst.fielddata).owner();
+        }
+        return null;
+    }
+
+    /**
+     * Returns an instance holding the decoded field data and annotations, decoding them
+     * if they aren't cached.
+     */
+    private instance decode() {
+        SoftReference<instance> ref = decoded;
+        instance d = (ref == null) ? null : ref.get();
+        if(d != null) {
+            return d;
+        }
+        d = new instance();
+        d.handle = inst.handle;
+        d.classdesc = inst.classdesc;
+        try {
+            StreamInput in = source.reopen(start);
+            try {
+                jdeserialize jd = new jdeserialize(null);
+                jd.replay(in, handles, firsthandle, d);
+                if(in.getPosition() != end) {
+                    throw new ValidityException("class data of instance " + jdeserialize.hex(inst.handle)
+                            + " ended at offset " + in.getPosition() + ", expected " + end);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("can't decode class data of instance "
+                    + jdeserialize.hex(inst.handle), ioe);
+        }
+        d.fielddata = Collections.unmodifiableMap(d.fielddata);
+        d.annotations = Collections.unmodifiableMap(d.annotations);
+        decoded = new SoftReference<instance>(d);
+        return d;
+    }
+
+    /**
+     * Read-only map view of a part of the decoded class data.
+     */
+    private abstract class view<V> extends AbstractMap<classdesc, V> {
+        abstract Map<classdesc, V> map();
+
+        LazyClassdata owner() {
+            return LazyClassdata.this;
+        }
+        public Set<Map.Entry<classdesc, V>> entrySet() {
+            return map().entrySet();
+        }
+        public V get(Object key) {
+            return map().get(key);
+        }
+        public boolean containsKey(Object key) {
+            return map().containsKey(key);
+        }
+        public Set<classdesc> keySet() {
+            return map().keySet();
+        }
+        public int size() {
+            return map().size();
+        }
+    }
+}
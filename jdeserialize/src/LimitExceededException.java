@@ -0,0 +1,84 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Exception that denotes that a stream exceeded one of the budgets set with
+ * jdeserialize.setLimits() or StreamScanner.setLimits(); see ParseLimits.  The stream
+ * may well be valid, but it was rejected before any memory was committed to the item
+ * that was over budget.
+ */
+public class LimitExceededException extends IOException {
+    public static final long serialVersionUID = 2277356908919273L;
+    private final String limit;
+    private final long max;
+    private final long value;
+    private long offset = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param limit the name of the limit, as accepted by ParseLimits.set()
+     * @param max the value of the limit
+     * @param value the value that exceeded it
+     */
+    public LimitExceededException(String limit, long max, long value) {
+        super(limit + " limit of " + max + " exceeded: " + value);
+        this.limit = limit;
+        this.max = max;
+        this.value = value;
+    }
+
+    /**
+     * Constructor for an exception that annotates another with the offset at which it
+     * was detected.
+     *
+     * @param e the exception
+     * @param where a description of the offset, appended to the message
+     * @param offset the stream offset
+     */
+    LimitExceededException(LimitExceededException e, String where, long offset) {
+        super(e.getMessage() + where, e);
+        this.limit = e.limit;
+        this.max = e.max;
+        this.value = e.value;
+        this.offset = offset;
+    }
+
+    /**
+     * Gets the name of the limit that was exceeded.
+     *
+     * @return the name, as accepted by ParseLimits.set()
+     */
+    public String getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gets the value of the limit that was exceeded.
+     *
+     * @return the limit
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Gets the value that exceeded the limit.
+     *
+     * @return the value
+     */
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the stream offset at which the limit was exceeded.  Exceptions thrown out of
+     * jdeserialize.run() and StreamScanner.scan() have one.
+     *
+     * @return the offset, or -1 if it's unknown
+     */
+    public long getOffset() {
+        return offset;
+    }
+}
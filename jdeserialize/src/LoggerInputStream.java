@@ -16,7 +16,11 @@ import java.util.*;
  * <b>Note</b>: calls to mark() and reset() are merely passed through to the inner stream; if
  * recording is active, the buffer won't be backtracked by reset().
  * </p>
+ *
+ * @deprecated jdeserialize no longer uses this class; StreamInput tracks stream offsets,
+ * and can re-read earlier ranges of the stream with readRange().
  */
+@Deprecated
 public class LoggerInputStream extends InputStream {
     private InputStream innerStream = null;
     private ByteArrayOutputStream baos = null;
@@ -0,0 +1,202 @@
+package org.unsynchronized;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * <p>
+ * StreamInput implementation that reads a file through memory mappings instead of a
+ * stream.  The file is mapped in windows of a configurable size; when a read runs past
+ * the end of the current window, a new window is mapped starting at the current
+ * position.  This allows files larger than 2 GB to be read.
+ * </p>
+ *
+ * <p>
+ * Slices returned by readSlice() point directly into the mapping, and remain valid after
+ * this object is closed; blockdata and string contents are read without being copied
+ * through an intermediate buffer.
+ * </p>
+ *
+ * <p>
+ * Offsets (as returned by getPosition() and accepted by readRange()) are absolute file
+ * offsets.
+ * </p>
+ */
+public class MappedStreamInput extends StreamInput {
+    /**
+     * Default size of each mapped window, in bytes.
+     */
+    public static final int DEFAULT_WINDOWSIZE = 256 * 1024 * 1024;
+
+    /**
+     * Maximum window size of inputs returned by reopen(), which typically read short
+     * ranges.
+     */
+    static final int REOPEN_WINDOWSIZE = 1024 * 1024;
+
+    private FileChannel channel;
+    private long size;
+    private int windowsize;
+    private boolean shared;
+
+    /**
+     * Constructor.
+     *
+     * @param channel the channel to map; reading starts at its current position
+     * @param windowsize the size of each mapped window
+     * @throws IOException if an I/O error occurs
+     */
+    public MappedStreamInput(FileChannel channel, int windowsize) throws IOException {
+        super();
+        if(windowsize < 4096) {
+            windowsize = 4096;
+        }
+        this.channel = channel;
+        this.size = channel.size();
+        this.windowsize = windowsize;
+        this.buf = ByteBuffer.allocate(0);
+        this.bufoffset = channel.position();
+    }
+
+    /**
+     * Constructor; uses windows of DEFAULT_WINDOWSIZE bytes.
+     *
+     * @param channel the channel to map; reading starts at its current position
+     * @throws IOException if an I/O error occurs
+     */
+    public MappedStreamInput(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_WINDOWSIZE);
+    }
+
+    /**
+     * Constructor; opens the given file for reading.
+     *
+     * @param file the file to map
+     * @throws IOException if an I/O error occurs
+     */
+    public MappedStreamInput(File file) throws IOException {
+        this(new RandomAccessFile(file, "r").getChannel());
+    }
+
+    /**
+     * Gets the size of the mapped file.
+     *
+     * @return the file size, in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    protected void fill(int n) throws IOException {
+        if(buf.remaining() >= n) {
+            return;
+        }
+        long pos = getPosition();
+        long avail = size - pos;
+        if(avail < n) {
+            throw new EOFException("unexpected end of file: needed " + n + " bytes at offset " + pos
+                    + ", " + avail + " available");
+        }
+        long len = Math.min(avail, Math.max((long)windowsize, (long)n));
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+        bufoffset = pos;
+    }
+
+    public void skipFully(long n) throws IOException {
+        if(n <= buf.remaining()) {
+            buf.position(buf.position() + (int)n);
+            return;
+        }
+        long pos = getPosition();
+        if(size - pos < n) {
+            throw new EOFException("unexpected end of file: can't skip " + n + " bytes at offset " + pos);
+        }
+        buf = ByteBuffer.allocate(0);
+        bufoffset = pos + n;
+    }
+
+    public byte[] readBytes(int len) throws IOException {
+        long pos = getPosition();
+        if(size - pos < len) {
+            throw new EOFException("unexpected end of file: needed " + len + " bytes at offset " + pos
+                    + ", " + (size - pos) + " available");
+        }
+        byte[] b = new byte[len];
+        readFully(b);
+        return b;
+    }
+
+    public ByteBuffer readSlice(int len) throws IOException {
+        fill(len);
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(buf.position() + len);
+        buf.position(buf.position() + len);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    public boolean hasStableSlices() {
+        return true;
+    }
+
+    public boolean isSeekable() {
+        return true;
+    }
+
+    public byte[] readRange(long start, long end) throws IOException {
+        if(start < 0 || end > size || end < start) {
+            throw new IOException("invalid file range: " + start + "-" + end);
+        }
+        byte[] data = new byte[(int)(end - start)];
+        ByteBuffer dst = ByteBuffer.wrap(data);
+        while(dst.hasRemaining()) {
+            if(channel.read(dst, start + dst.position()) < 0) {
+                throw new EOFException("unexpected end of file reading range " + start + "-" + end);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Returns a view of the mapped file between two offsets, without copying the data.
+     * The view stays valid after this object is closed.
+     */
+    public ByteBuffer sliceRange(long start, long end) throws IOException {
+        if(start < 0 || end > size || end < start || end - start > Integer.MAX_VALUE) {
+            throw new IOException("invalid file range: " + start + "-" + end);
+        }
+        if(start >= bufoffset && end <= bufoffset + buf.limit()) {
+            ByteBuffer slice = buf.duplicate();
+            slice.limit((int)(end - bufoffset)).position((int)(start - bufoffset));
+            return slice.slice().asReadOnlyBuffer();
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start).asReadOnlyBuffer();
+    }
+
+    public long transferRange(long start, long end, WritableByteChannel target) throws IOException {
+        if(start < 0 || end > size || end < start) {
+            throw new IOException("invalid file range: " + start + "-" + end);
+        }
+        return transfer(channel, start, end - start, target);
+    }
+
+    public StreamInput reopen(long start) throws IOException {
+        if(start < 0 || start > size) {
+            throw new IOException("invalid file offset: " + start);
+        }
+        MappedStreamInput m = new MappedStreamInput(channel, windowsize);
+        m.bufoffset = start;
+        m.windowsize = Math.min(windowsize, REOPEN_WINDOWSIZE);
+        m.shared = true;
+        return m;
+    }
+
+    /**
+     * Closes the underlying channel, unless this input was returned by reopen().
+     * Existing mappings (and slices of them) remain valid.
+     */
+    public void close() throws IOException {
+        if(!shared) {
+            channel.close();
+        }
+    }
+}
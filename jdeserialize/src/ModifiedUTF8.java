@@ -0,0 +1,163 @@
+package org.unsynchronized;
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * <p>
+ * Decoder for the "modified UTF-8" encoding used by DataOutput.writeUTF() and by the
+ * serialization protocol for strings.
+ * </p>
+ *
+ * <p>
+ * The decoder works directly on a ByteBuffer.  Runs of ASCII are checked eight bytes at
+ * a time, and a string that turns out to be entirely ASCII is converted with a single
+ * bulk copy; only multi-byte sequences are decoded a byte at a time.
+ * </p>
+ *
+ * <p>
+ * Two levels of validation are supported.  Lenient decoding follows
+ * DataInputStream.readUTF(), and throws UTFDataFormatException on malformed input.
+ * Strict decoding is used for serialized string objects; in addition to malformed
+ * sequences, it rejects unencoded null bytes (which modified UTF-8 never produces).
+ * </p>
+ */
+public class ModifiedUTF8 {
+    private static final long HIGHBITS = 0x8080808080808080L;
+    private static final long LOWBITS = 0x0101010101010101L;
+
+    private ModifiedUTF8() {
+    }
+
+    /**
+     * Decodes a string.  On success, the buffer's position is advanced past the encoded
+     * data.
+     *
+     * @param buf the buffer; decoding starts at its position
+     * @param len the number of bytes to decode; at most buf.remaining()
+     * @param strict true to apply the validation used for serialized string objects,
+     * false for DataInputStream.readUTF() semantics
+     * @return the decoded string
+     * @throws IOException if the data isn't valid modified UTF-8
+     */
+    public static String decode(ByteBuffer buf, int len, boolean strict) throws IOException {
+        int start = buf.position();
+        int end = start + len;
+        int pos = asciiRun(buf, start, end, strict);
+        if(pos == end) {
+            byte[] b;
+            int off;
+            if(buf.hasArray()) {
+                b = buf.array();
+                off = buf.arrayOffset() + start;
+            } else {
+                b = new byte[len];
+                off = 0;
+                buf.get(b);
+            }
+            buf.position(end);
+            return new String(b, off, len, StandardCharsets.ISO_8859_1);
+        }
+
+        char[] chars = new char[len];
+        int nchars = 0;
+        for(int i = start; i < pos; i++) {
+            chars[nchars++] = (char)buf.get(i);
+        }
+        while(pos < end) {
+            int a = buf.get(pos) & 0xff;
+            if(a < 0x80) {
+                if(a == 0 && strict) {
+                    throw new IOException("improperly-encoded null in modified UTF8 string!");
+                }
+                int stop = asciiRun(buf, pos + 1, end, strict);
+                chars[nchars++] = (char)a;
+                for(int i = pos + 1; i < stop; i++) {
+                    chars[nchars++] = (char)buf.get(i);
+                }
+                pos = stop;
+            } else if((a & 0xf0) == 0xe0) {        /* U+0800..U+FFFF */
+                if(pos + 3 > end && !strict) {
+                    throw truncated();
+                }
+                int b = next(buf, pos + 1, end);
+                if((b & 0xc0) != 0x80) {
+                    throw malformed(strict, pos - start + 2, "byte b in 0800-FFFF seq doesn't begin with correct prefix");
+                }
+                int c = next(buf, pos + 2, end);
+                if((c & 0xc0) != 0x80) {
+                    throw malformed(strict, pos - start + 2, "byte c in 0800-FFFF seq doesn't begin with correct prefix");
+                }
+                chars[nchars++] = (char)(((a & 0x0f) << 12) | ((b & 0x3f) << 6) | (c & 0x3f));
+                pos += 3;
+            } else if((a & 0xe0) == 0xc0) {        /* U+0080..U+07FF */
+                if(pos + 2 > end && !strict) {
+                    throw truncated();
+                }
+                int b = next(buf, pos + 1, end);
+                if((b & 0xc0) != 0x80) {
+                    throw malformed(strict, pos - start + 2, "byte b in 0080-07FF seq doesn't begin with correct prefix");
+                }
+                chars[nchars++] = (char)(((a & 0x1f) << 6) | (b & 0x3f));
+                pos += 2;
+            } else {
+                throw malformed(strict, pos - start, "invalid byte in modified utf-8 string: " + jdeserialize.hex(a));
+            }
+        }
+        buf.position(end);
+        return new String(chars, 0, nchars);
+    }
+
+    /**
+     * Returns the index of the first byte at or after pos (and before end) that can't be
+     * copied as-is: a byte with its high bit set, or, in strict mode, a null byte.
+     */
+    private static int asciiRun(ByteBuffer buf, int pos, int end, boolean strict) {
+        while(pos + 8 <= end) {
+            long v = buf.getLong(pos);
+            long stop = v;
+            if(strict) {
+                stop |= (v - LOWBITS) & ~v;
+            }
+            if((stop & HIGHBITS) != 0) {
+                break;
+            }
+            pos += 8;
+        }
+        while(pos < end) {
+            byte b = buf.get(pos);
+            if(b < 0 || (b == 0 && strict)) {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the continuation byte at pos, throwing EOFException if the data ends first.
+     * (Lenient decoding checks for a partial character before reading any continuation
+     * bytes, as DataInputStream does.)
+     */
+    private static int next(ByteBuffer buf, int pos, int end) throws EOFException {
+        if(pos >= end) {
+            throw new EOFException("unexpected eof in modified utf-8 string");
+        }
+        return buf.get(pos) & 0xff;
+    }
+    private static IOException truncated() {
+        return new UTFDataFormatException("malformed input: partial character at end");
+    }
+    /**
+     * Returns the exception for a malformed sequence.  In lenient mode, index is the byte
+     * count that DataInputStream.readUTF() reports: two bytes past the start of the
+     * sequence for a bad continuation byte (of a two- or three-byte sequence), or the
+     * start of the sequence for a bad first byte.
+     */
+    private static IOException malformed(boolean strict, int index, String message) {
+        if(strict) {
+            return new IOException(message);
+        }
+        return new UTFDataFormatException("malformed input around byte " + index);
+    }
+}
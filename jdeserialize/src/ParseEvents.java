@@ -0,0 +1,150 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+import jdk.jfr.*;
+
+/**
+ * <p>
+ * Java Flight Recorder events emitted by jdeserialize.  They're all in the
+ * "jdeserialize" category, and are disabled unless a recording enables them, e.g.:
+ * </p>
+ *
+ * <pre>
+ *     java -XX:StartFlightRecording:filename=parse.jfr,settings=profile ...
+ *     jfr print --categories jdeserialize parse.jfr
+ * </pre>
+ *
+ * <ul>
+ *  <li>org.unsynchronized.Content: each top-level content item</li>
+ *  <li>org.unsynchronized.ResetSegment: each part of the stream between resets</li>
+ *  <li>org.unsynchronized.LargeItem: each string, blockdata or array that's at least
+ *  LARGE_ITEM elements (or bytes) long</li>
+ *  <li>org.unsynchronized.DumpPhase: each section written by dump()</li>
+ * </ul>
+ *
+ * <p>
+ * Offsets are in bytes from the start of the stream, and point at the item's typecode.
+ * Unless Flight Recorder was already running when a jdeserialize object was created (see
+ * isRecording()), it doesn't create any events, so the event classes and the rest of
+ * jdk.jfr aren't loaded.  Otherwise, when an event type is disabled, the parser only
+ * creates (and immediately discards) an event object, which the JIT can eliminate.
+ * </p>
+ */
+class ParseEvents {
+    /**
+     * Size, in elements for arrays and in bytes otherwise, from which a LargeItem event
+     * is emitted.
+     */
+    static final int LARGE_ITEM = 64 * 1024;
+
+    @Name("org.unsynchronized.Content")
+    @Label("Content Item")
+    @Description("A top-level content item read from a serialized stream")
+    @Category("jdeserialize")
+    static class item extends Event {
+        @Label("Handle")
+        int handle;
+
+        @Label("Class Name")
+        String className;
+
+        @Label("Offset")
+        long offset;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("org.unsynchronized.ResetSegment")
+    @Label("Reset Segment")
+    @Description("The part of a serialized stream read with one handle table, up to a reset")
+    @Category("jdeserialize")
+    static class segment extends Event {
+        @Label("Handles")
+        @Description("Number of handles assigned in the segment")
+        int handles;
+
+        @Label("Offset")
+        long offset;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("org.unsynchronized.LargeItem")
+    @Label("Large Item")
+    @Description("A large string, blockdata or array read from a serialized stream")
+    @Category("jdeserialize")
+    static class largeitem extends Event {
+        @Label("Handle")
+        int handle;
+
+        @Label("Class Name")
+        String className;
+
+        @Label("Offset")
+        long offset;
+
+        @Label("Size")
+        @Description("Number of elements for arrays, number of bytes otherwise")
+        long size;
+    }
+
+    @Name("org.unsynchronized.DumpPhase")
+    @Label("Dump Phase")
+    @Description("A section of the output of jdeserialize.dump()")
+    @Category("jdeserialize")
+    static class dumpphase extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Items")
+        int items;
+
+        @Label("Size")
+        @Description("Number of characters written")
+        long size;
+    }
+
+    /**
+     * Tells whether Flight Recorder has been started in this JVM, so that events could be
+     * recorded.  This only loads the FlightRecorder class; on a runtime without the
+     * jdk.jfr module, it returns false.
+     *
+     * @return true iff events should be created
+     */
+    static boolean isRecording() {
+        try {
+            return FlightRecorder.isInitialized();
+        } catch (LinkageError le) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the name of the class of a content item, for event fields.
+     */
+    static String className(content c) {
+        if(c instanceof instance) {
+            return ((instance)c).classdesc.name;
+        } else if(c instanceof arrayobj) {
+            return ((arrayobj)c).classdesc.name;
+        } else if(c instanceof enumobj) {
+            return ((enumobj)c).classdesc.name;
+        } else if(c instanceof classdesc) {
+            return "java.io.ObjectStreamClass";
+        } else if(c instanceof classobj) {
+            return "java.lang.Class";
+        } else if(c instanceof stringobj) {
+            return "java.lang.String";
+        } else if(c instanceof exceptionstate) {
+            return className(((exceptionstate)c).exceptionobj);
+        } else if(c instanceof blockdata) {
+            return "(blockdata)";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,244 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>
+ * Resource budgets for reading a stream; see jdeserialize.setLimits() and
+ * StreamScanner.setLimits().  They bound the memory and work that a stream can make the
+ * parser commit to, so that hostile or corrupt streams (a 20-byte blob that declares a
+ * 2GB string, say) are rejected with a LimitExceededException rather than exhausting the
+ * heap.  Every limit is unbounded by default.
+ * </p>
+ *
+ * <ul>
+ *  <li>bytes: the size of the stream.  This is checked as each item is started, and
+ *  before each string, blockdata, array or field name is read, so only a few bytes of
+ *  structure can be read past the limit before it's detected.</li>
+ *  <li>string: the length of a string, in bytes of modified UTF-8.</li>
+ *  <li>array: the number of elements of an array.</li>
+ *  <li>blockdata: the size of a blockdata, in bytes.</li>
+ *  <li>depth: how deeply objects, arrays and class descriptions are nested.</li>
+ *  <li>handles: the number of handles assigned, over the whole stream.</li>
+ *  <li>instances: the number of objects read, over the whole stream.</li>
+ * </ul>
+ *
+ * <p>
+ * Independently of these limits, large payloads are read in growing chunks, so that a
+ * declared length can't make the parser allocate much more memory than the stream
+ * actually holds.  Limits are read-only once a parse has started, and can be shared by
+ * any number of parsers.
+ * </p>
+ */
+public class ParseLimits {
+    private long maxBytes = Long.MAX_VALUE;
+    private long maxString = Long.MAX_VALUE;
+    private long maxArray = Long.MAX_VALUE;
+    private long maxBlockdata = Long.MAX_VALUE;
+    private long maxDepth = Long.MAX_VALUE;
+    private long maxHandles = Long.MAX_VALUE;
+    private long maxInstances = Long.MAX_VALUE;
+
+    /**
+     * Constructor for a set of limits that are all unbounded.
+     */
+    public ParseLimits() {
+    }
+
+    /**
+     * Parses a comma-separated list of name=value pairs, as given to the -limit option,
+     * e.g. "string=65536,depth=1000".
+     *
+     * @param limits the limits to set
+     * @param list the pairs
+     * @throws IllegalArgumentException if a pair can't be parsed
+     */
+    static void setAll(ParseLimits limits, String list) {
+        for(String p: list.split(",")) {
+            p = p.trim();
+            if(p.length() == 0) {
+                continue;
+            }
+            int eq = p.indexOf('=');
+            if(eq < 0) {
+                throw new IllegalArgumentException("expected name=value: " + p);
+            }
+            long value;
+            try {
+                value = Long.parseLong(p.substring(eq + 1).trim());
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("invalid value for limit: " + p);
+            }
+            limits.set(p.substring(0, eq).trim(), value);
+        }
+    }
+
+    /**
+     * Sets a limit by name.
+     *
+     * @param name one of "bytes", "string", "array", "blockdata", "depth", "handles" or
+     * "instances"
+     * @param max the limit; must not be negative
+     * @return these limits
+     * @throws IllegalArgumentException if the name is unknown, or max is negative
+     */
+    public ParseLimits set(String name, long max) {
+        if(max < 0) {
+            throw new IllegalArgumentException("invalid value for limit " + name + ": " + max);
+        }
+        if(name.equals("bytes")) {
+            maxBytes = max;
+        } else if(name.equals("string")) {
+            maxString = max;
+        } else if(name.equals("array")) {
+            maxArray = max;
+        } else if(name.equals("blockdata")) {
+            maxBlockdata = max;
+        } else if(name.equals("depth")) {
+            maxDepth = max;
+        } else if(name.equals("handles")) {
+            maxHandles = max;
+        } else if(name.equals("instances")) {
+            maxInstances = max;
+        } else {
+            throw new IllegalArgumentException("unknown limit: " + name);
+        }
+        return this;
+    }
+
+    /**
+     * Gets a limit by name.
+     *
+     * @param name the name of the limit; see set()
+     * @return the limit, or Long.MAX_VALUE if it's unbounded
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public long get(String name) {
+        if(name.equals("bytes")) {
+            return maxBytes;
+        } else if(name.equals("string")) {
+            return maxString;
+        } else if(name.equals("array")) {
+            return maxArray;
+        } else if(name.equals("blockdata")) {
+            return maxBlockdata;
+        } else if(name.equals("depth")) {
+            return maxDepth;
+        } else if(name.equals("handles")) {
+            return maxHandles;
+        } else if(name.equals("instances")) {
+            return maxInstances;
+        }
+        throw new IllegalArgumentException("unknown limit: " + name);
+    }
+
+    /**
+     * Sets the maximum size of the stream, in bytes.
+     *
+     * @param max the limit
+     * @return these limits
+     */
+    public ParseLimits setMaxBytes(long max) {
+        return set("bytes", max);
+    }
+
+    /**
+     * Sets the maximum length of a string, in bytes.
+     *
+     * @param max the limit
+     * @return these limits
+     */
+    public ParseLimits setMaxStringLength(long max) {
+        return set("string", max);
+    }
+
+    /**
+     * Sets the maximum number of elements of an array.
+     *
+     * @param max the limit
+     * @return these limits
+     */
+    public ParseLimits setMaxArrayLength(long max) {
+        return set("array", max);
+    }
+
+    /**
+     * Sets the maximum size of a blockdata, in bytes.
+     *
+     * @param max the limit
+     * @return these limits
+     */
+    public ParseLimits setMaxBlockdataLength(long max) {
+        return set("blockdata", max);
+    }
+
+    /**
+     * Sets how deeply objects, arrays and class descriptions may be nested.
+     *
+     * @param max the limit
+     * @return these limits
+     */
+    public ParseLimits setMaxDepth(long max) {
+        return set("depth", max);
+    }
+
+    /**
+     * Sets the maximum number of handles assigned in a stream.
+     *
+     * @param max the limit
+     * @return these limits
+     */
+    public ParseLimits setMaxHandles(long max) {
+        return set("handles", max);
+    }
+
+    /**
+     * Sets the maximum number of objects in a stream.
+     *
+     * @param max the limit
+     * @return these limits
+     */
+    public ParseLimits setMaxInstances(long max) {
+        return set("instances", max);
+    }
+
+    /**
+     * Checks that a read of n bytes at the given offset stays within the stream size
+     * limit.
+     */
+    void checkBytes(long offset, long n) throws LimitExceededException {
+        if(offset + n > maxBytes) {
+            throw new LimitExceededException("bytes", maxBytes, offset + n);
+        }
+    }
+    void checkString(long len) throws LimitExceededException {
+        if(len > maxString) {
+            throw new LimitExceededException("string", maxString, len);
+        }
+    }
+    void checkArray(long size) throws LimitExceededException {
+        if(size > maxArray) {
+            throw new LimitExceededException("array", maxArray, size);
+        }
+    }
+    void checkBlockdata(long size) throws LimitExceededException {
+        if(size > maxBlockdata) {
+            throw new LimitExceededException("blockdata", maxBlockdata, size);
+        }
+    }
+    void checkDepth(long depth) throws LimitExceededException {
+        if(depth > maxDepth) {
+            throw new LimitExceededException("depth", maxDepth, depth);
+        }
+    }
+    void checkHandles(long count) throws LimitExceededException {
+        if(count > maxHandles) {
+            throw new LimitExceededException("handles", maxHandles, count);
+        }
+    }
+    void checkInstances(long count) throws LimitExceededException {
+        if(count > maxInstances) {
+            throw new LimitExceededException("instances", maxInstances, count);
+        }
+    }
+}
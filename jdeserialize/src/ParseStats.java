@@ -0,0 +1,271 @@
+package org.unsynchronized;
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * <p>
+ * Statistics about a parse: for each phase, the wall time spent in it, the bytes of
+ * input it consumed and the bytes the thread allocated while in it; how many times each
+ * TC_* typecode was read; and the sizes of the largest string, array and blockdata.
+ * </p>
+ *
+ * <p>
+ * A parser only collects statistics once jdeserialize.setCollectStats(true) has been
+ * called.  jdeserialize.getStats() returns a snapshot, which isn't affected by further
+ * parsing.  StreamScanner.scan() always returns the statistics of its stream.
+ * Allocated bytes are measured with the HotSpot ThreadMXBean extension; where it isn't
+ * available (or allocated memory measurement is disabled), they're reported as -1.
+ * </p>
+ */
+public class ParseStats {
+    /**
+     * Parse phases.
+     */
+    public enum phase {
+        /**
+         * Reading the stream: jdeserialize.run(), or StreamScanner.scan().
+         */
+        READ,
+
+        /**
+         * Validating the content that was read.
+         */
+        VALIDATE,
+
+        /**
+         * jdeserialize.connectMemberClasses().
+         */
+        CONNECT,
+
+        /**
+         * jdeserialize.dump().
+         */
+        DUMP
+    }
+
+    private static final int TC_BASE = ObjectStreamConstants.TC_BASE;
+    private static final String[] TC_NAMES = {
+        "TC_NULL", "TC_REFERENCE", "TC_CLASSDESC", "TC_OBJECT", "TC_STRING", "TC_ARRAY",
+        "TC_CLASS", "TC_BLOCKDATA", "TC_ENDBLOCKDATA", "TC_RESET", "TC_BLOCKDATALONG",
+        "TC_EXCEPTION", "TC_LONGSTRING", "TC_PROXYCLASSDESC", "TC_ENUM",
+    };
+    private static final com.sun.management.ThreadMXBean threadbean;
+    static {
+        com.sun.management.ThreadMXBean tb = null;
+        try {
+            ThreadMXBean b = ManagementFactory.getThreadMXBean();
+            if(b instanceof com.sun.management.ThreadMXBean) {
+                tb = (com.sun.management.ThreadMXBean)b;
+                if(!tb.isThreadAllocatedMemorySupported()) {
+                    tb = null;
+                }
+            }
+        } catch (LinkageError le) {
+            // the jdk.management module isn't present
+        }
+        threadbean = tb;
+    }
+
+    private final long[] time = new long[phase.values().length];
+    private final long[] bytes = new long[phase.values().length];
+    private final long[] allocated = new long[phase.values().length];
+    private final long[] typecodes = new long[TC_NAMES.length];
+    private long largeststring;
+    private long largestarray;
+    private long largestblockdata;
+
+    private long starttime;
+    private long startalloc;
+
+    /**
+     * Constructor.
+     */
+    public ParseStats() {
+    }
+
+    private ParseStats(ParseStats other) {
+        System.arraycopy(other.time, 0, time, 0, time.length);
+        System.arraycopy(other.bytes, 0, bytes, 0, bytes.length);
+        System.arraycopy(other.allocated, 0, allocated, 0, allocated.length);
+        System.arraycopy(other.typecodes, 0, typecodes, 0, typecodes.length);
+        this.largeststring = other.largeststring;
+        this.largestarray = other.largestarray;
+        this.largestblockdata = other.largestblockdata;
+    }
+
+    /**
+     * Returns a copy of these statistics.
+     *
+     * @return the copy
+     */
+    public ParseStats snapshot() {
+        return new ParseStats(this);
+    }
+
+    private static long allocatedBytes() {
+        if(threadbean == null) {
+            return -1;
+        }
+        return threadbean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Marks the start of a phase.  Phases don't nest.
+     */
+    void start() {
+        starttime = System.nanoTime();
+        startalloc = allocatedBytes();
+    }
+
+    /**
+     * Marks the end of the phase that was started last.
+     *
+     * @param p the phase
+     * @param consumed the number of bytes of input consumed during the phase
+     */
+    void end(phase p, long consumed) {
+        int i = p.ordinal();
+        time[i] += System.nanoTime() - starttime;
+        bytes[i] += consumed;
+        long alloc = allocatedBytes();
+        if(alloc < 0 || startalloc < 0) {
+            allocated[i] = -1;
+        } else if(allocated[i] >= 0) {
+            allocated[i] += alloc - startalloc;
+        }
+    }
+
+    /**
+     * Counts a typecode that was read.
+     */
+    void typecode(byte tc) {
+        int i = tc - TC_BASE;
+        if(i >= 0 && i < typecodes.length) {
+            typecodes[i]++;
+        }
+    }
+    void string(long length) {
+        largeststring = Math.max(largeststring, length);
+    }
+    void array(long size) {
+        largestarray = Math.max(largestarray, size);
+    }
+    void blockdata(long size) {
+        largestblockdata = Math.max(largestblockdata, size);
+    }
+
+    /**
+     * Gets the wall time spent in a phase.
+     *
+     * @param p the phase
+     * @return the time, in nanoseconds
+     */
+    public long getTime(phase p) {
+        return time[p.ordinal()];
+    }
+
+    /**
+     * Gets the number of bytes of input consumed in a phase.  Only READ consumes input.
+     *
+     * @param p the phase
+     * @return the number of bytes
+     */
+    public long getBytes(phase p) {
+        return bytes[p.ordinal()];
+    }
+
+    /**
+     * Gets the number of bytes allocated by the parsing thread in a phase.
+     *
+     * @param p the phase
+     * @return the number of bytes, or -1 if allocations can't be measured
+     */
+    public long getAllocatedBytes(phase p) {
+        return allocated[p.ordinal()];
+    }
+
+    /**
+     * Gets the number of times a typecode was read.  This includes the typecodes of
+     * top-level content, field values, array elements, annotations, class descriptions
+     * and field type strings.
+     *
+     * @param tc the typecode; one of the TC_* values in ObjectStreamConstants
+     * @return the count
+     */
+    public long getCount(byte tc) {
+        int i = tc - TC_BASE;
+        return (i >= 0 && i < typecodes.length) ? typecodes[i] : 0;
+    }
+
+    /**
+     * Gets the number of TC_RESETs read.
+     *
+     * @return the count
+     */
+    public long getResets() {
+        return getCount(ObjectStreamConstants.TC_RESET);
+    }
+
+    /**
+     * Gets the number of back-references (TC_REFERENCEs) read.
+     *
+     * @return the count
+     */
+    public long getReferences() {
+        return getCount(ObjectStreamConstants.TC_REFERENCE);
+    }
+
+    /**
+     * Gets the length of the longest string read.
+     *
+     * @return the length, in bytes of modified UTF-8
+     */
+    public long getLargestString() {
+        return largeststring;
+    }
+
+    /**
+     * Gets the size of the largest array read.
+     *
+     * @return the size, in elements
+     */
+    public long getLargestArray() {
+        return largestarray;
+    }
+
+    /**
+     * Gets the size of the largest blockdata read.
+     *
+     * @return the size, in bytes
+     */
+    public long getLargestBlockdata() {
+        return largestblockdata;
+    }
+
+    /**
+     * Returns a multi-line report of the statistics, as printed by -stats.
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        String ls = jdeserialize.linesep;
+        sb.append("//// parse statistics").append(ls);
+        sb.append(String.format("%-10s %12s %14s %16s", "phase", "time (ms)", "bytes read", "allocated bytes")).append(ls);
+        for(phase p: phase.values()) {
+            sb.append(String.format("%-10s %12.3f %14d %16d", p.name().toLowerCase(Locale.ROOT),
+                        getTime(p) / 1e6, getBytes(p), getAllocatedBytes(p))).append(ls);
+        }
+        sb.append("typecodes:").append(ls);
+        for(int i = 0; i < typecodes.length; i++) {
+            if(typecodes[i] > 0) {
+                sb.append(String.format("    %-18s %12d", TC_NAMES[i], typecodes[i])).append(ls);
+            }
+        }
+        sb.append("resets: ").append(getResets()).append(ls);
+        sb.append("back-references: ").append(getReferences()).append(ls);
+        sb.append("largest string: ").append(largeststring).append(" bytes").append(ls);
+        sb.append("largest array: ").append(largestarray).append(" elements").append(ls);
+        sb.append("largest blockdata: ").append(largestblockdata).append(" bytes").append(ls);
+        return sb.toString();
+    }
+}
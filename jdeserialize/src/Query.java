@@ -0,0 +1,713 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>
+ * A compiled path expression over the instances of a parsed stream.  A query selects
+ * the instances of a class, optionally filters them, and yields the values at the end
+ * of a path of field names and array subscripts from each one:
+ * </p>
+ *
+ * <pre>
+ *   com.example.Session[*].attributes.user.name where lastAccess &gt; 1700000000000
+ * </pre>
+ *
+ * <p>
+ * The expression starts with a glob over class names, as in ClassFilter; it ends at the
+ * first '[' or whitespace, so a path after it must be introduced with "[*]" (every
+ * instance of the class).  Each step of the path is either ".name", the field with that
+ * name in the current instance (the most-derived class's, if several classes in the
+ * hierarchy have one), or a subscript of the current array: "[*]" for every element, or
+ * "[n]" for one.  The optional "where" clause is a list of conditions joined by "and";
+ * each compares the values at a path from the selected instance with a literal (a
+ * number, a quoted string, true, false or null), using =, !=, &lt;, &lt;=, &gt; or &gt;=.
+ * A condition holds if any of the values at its path satisfies it.  Strings compare with
+ * string and enum values; numbers compare with primitive values.  Null is only equal to
+ * null: a null value satisfies != with any other literal, but never &lt;, &lt;=, &gt; or
+ * &gt;=.
+ * </p>
+ *
+ * <p>
+ * A path that reaches null, a value of the wrong kind, or an instance without the named
+ * field yields nothing; only the last step's value may be null.  Collections that write
+ * their contents with writeObject() (HashMap, ArrayList and so on) keep them in object
+ * annotations, and can't be navigated by field name.
+ * </p>
+ *
+ * <p>
+ * The expression is parsed once, and each field name is resolved to a value slot once
+ * per class description, the first time an instance of that class is reached.  A query
+ * is thread-safe, and run() evaluates it over the handle tables in parallel.
+ * </p>
+ */
+public class Query {
+    /**
+     * Number of handles evaluated by each task of run().
+     */
+    private static final int CHUNK = 1 << 14;
+
+    /**
+     * A value yielded by a query.
+     */
+    public static class match {
+        /**
+         * The selected instance the value was reached from.
+         */
+        public final instance root;
+
+        /**
+         * The value: a content object, a boxed primitive, or null.
+         */
+        public final Object value;
+
+        match(instance root, Object value) {
+            this.root = root;
+            this.value = value;
+        }
+        public String toString() {
+            return root.classdesc.name + " _h" + jdeserialize.hex(root.handle) + ": " + format(value);
+        }
+    }
+
+    private enum op {
+        EQ, NE, LT, LE, GT, GE
+    }
+
+    /**
+     * Receives the values at the end of a path.  The primitive values of fields are
+     * passed in their slots (see FieldLayout), so that they needn't be boxed.
+     */
+    private interface sink {
+        /**
+         * @return true to stop walking the path
+         */
+        boolean accept(Object value);
+        boolean acceptPrimitive(fieldtype type, long slot);
+    }
+
+    /**
+     * A field of a class, resolved for one class description.  A field that the class
+     * doesn't have is resolved to an accessor with a slot of -1, so that the lookup is
+     * cached too.
+     */
+    private static class accessor {
+        final classdesc cd;
+        final classdesc owner;
+        final field field;
+        final int slot;
+
+        accessor(classdesc cd, classdesc owner, field field, int slot) {
+            this.cd = cd;
+            this.owner = owner;
+            this.field = field;
+            this.slot = slot;
+        }
+        static accessor of(classdesc cd, String name) {
+            FieldLayout l = FieldLayout.of(cd);
+            for(int i = l.classes.length - 1; i >= 0; i--) {
+                field[] fields = l.classes[i].fields;
+                for(int j = 0; j < l.slots[i].length; j++) {
+                    if(fields[j].name.equals(name)) {
+                        return new accessor(cd, l.classes[i], fields[j], l.slots[i][j]);
+                    }
+                }
+            }
+            return new accessor(cd, null, null, -1);
+        }
+    }
+
+    /**
+     * A step of a path: a field name, or (if name is null) a subscript.
+     */
+    private static class step {
+        final String name;
+        final int index;        // for subscripts; -1 for [*]
+        private final ConcurrentHashMap<classdesc, accessor> accessors = new ConcurrentHashMap<classdesc, accessor>();
+        private volatile accessor last;
+
+        step(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+        accessor resolve(classdesc cd) {
+            accessor a = last;
+            if(a != null && a.cd == cd) {
+                return a;
+            }
+            a = accessors.get(cd);
+            if(a == null) {
+                a = accessor.of(cd, name);
+                accessor prev = accessors.putIfAbsent(cd, a);
+                if(prev != null) {
+                    a = prev;
+                }
+            }
+            last = a;
+            return a;
+        }
+    }
+
+    /**
+     * A condition of the where clause.  It's its own sink: a value stops the walk if it
+     * satisfies the condition.
+     */
+    private static class condition implements sink {
+        final step[] path;
+        final op op;
+        final Object literal;   // Long, Double, String, Boolean, or null
+
+        condition(step[] path, op op, Object literal) {
+            this.path = path;
+            this.op = op;
+            this.literal = literal;
+        }
+        private boolean test(int cmp) {
+            switch(op) {
+                case EQ: return cmp == 0;
+                case NE: return cmp != 0;
+                case LT: return cmp < 0;
+                case LE: return cmp <= 0;
+                case GT: return cmp > 0;
+                default: return cmp >= 0;
+            }
+        }
+        private boolean test(double a, double b) {
+            switch(op) {
+                case EQ: return a == b;
+                case NE: return a != b;
+                case LT: return a < b;
+                case LE: return a <= b;
+                case GT: return a > b;
+                default: return a >= b;
+            }
+        }
+        private boolean testLong(long value) {
+            if(literal instanceof Long) {
+                return test(Long.compare(value, ((Long)literal).longValue()));
+            }
+            return (literal instanceof Double) && test((double)value, ((Double)literal).doubleValue());
+        }
+        private boolean testDouble(double value) {
+            return (literal instanceof Number) && test(value, ((Number)literal).doubleValue());
+        }
+        public boolean acceptPrimitive(fieldtype type, long slot) {
+            if(literal == null) {
+                return op == Query.op.NE;
+            }
+            switch(type) {
+                case FLOAT:
+                    return testDouble(Float.intBitsToFloat((int)slot));
+                case DOUBLE:
+                    return testDouble(Double.longBitsToDouble(slot));
+                case BOOLEAN:
+                    return (literal instanceof Boolean) && test(Boolean.compare(slot != 0, ((Boolean)literal).booleanValue()));
+                default:
+                    return testLong(slot);
+            }
+        }
+        public boolean accept(Object value) {
+            if(literal == null || value == null) {
+                // Null isn't ordered; it's only equal to itself.
+                switch(op) {
+                    case EQ: return literal == value;
+                    case NE: return literal != value;
+                    default: return false;
+                }
+            }
+            if(value instanceof Float || value instanceof Double) {
+                return testDouble(((Number)value).doubleValue());
+            } else if(value instanceof Number) {
+                return testLong(((Number)value).longValue());
+            } else if(value instanceof Character) {
+                return testLong(((Character)value).charValue());
+            } else if(value instanceof Boolean) {
+                return (literal instanceof Boolean) && test(Boolean.compare((Boolean)value, (Boolean)literal));
+            }
+            String s = null;
+            if(value instanceof stringobj) {
+                s = ((stringobj)value).value;
+            } else if(value instanceof enumobj && ((enumobj)value).value != null) {
+                s = ((enumobj)value).value.value;
+            }
+            return (s != null) && (literal instanceof String) && test(s.compareTo((String)literal));
+        }
+    }
+
+    /**
+     * Sink that collects the values of a path as matches.
+     */
+    private static class collector implements sink {
+        final List<match> matches;
+        instance root;
+
+        collector(List<match> matches) {
+            this.matches = matches;
+        }
+        public boolean accept(Object value) {
+            matches.add(new match(root, value));
+            return false;
+        }
+        public boolean acceptPrimitive(fieldtype type, long slot) {
+            return accept(FieldLayout.fromSlot(type, slot));
+        }
+    }
+
+    private final String expression;
+    private final ClassFilter classes;
+    private final ConcurrentHashMap<classdesc, Boolean> selected = new ConcurrentHashMap<classdesc, Boolean>();
+    private final step[] path;
+    private final condition[] conditions;
+
+    private Query(String expression, ClassFilter classes, step[] path, condition[] conditions) {
+        this.expression = expression;
+        this.classes = classes;
+        this.path = path;
+        this.conditions = conditions;
+    }
+
+    /**
+     * Compiles a query.
+     *
+     * @param expression the query
+     * @return the compiled query
+     * @throws IllegalArgumentException if the query can't be parsed
+     */
+    public static Query compile(String expression) {
+        return new parser(expression).parse();
+    }
+
+    /**
+     * Evaluates the query over a single instance.
+     *
+     * @param inst the instance
+     * @return the values yielded, in path order; empty if the instance isn't of a
+     * selected class, or doesn't satisfy the where clause
+     */
+    public List<match> evaluate(instance inst) {
+        ArrayList<match> matches = new ArrayList<match>();
+        evaluate(inst, new collector(matches));
+        return matches;
+    }
+
+    private void evaluate(instance inst, collector c) {
+        classdesc cd = inst.classdesc;
+        if(cd == null) {
+            return;
+        }
+        Boolean sel = selected.get(cd);
+        if(sel == null) {
+            sel = Boolean.valueOf(classes.accepts(cd.name));
+            selected.putIfAbsent(cd, sel);
+        }
+        if(!sel.booleanValue()) {
+            return;
+        }
+        for(condition cond: conditions) {
+            if(!walk(inst, 0, cond.path, cond)) {
+                return;
+            }
+        }
+        c.root = inst;
+        walk(inst, 0, path, c);
+    }
+
+    /**
+     * Walks a path from a value, passing the values at its end to a sink.
+     *
+     * @return true if the sink stopped the walk
+     */
+    private static boolean walk(Object v, int i, step[] path, sink s) {
+        if(i == path.length) {
+            return s.accept(v);
+        }
+        step st = path[i];
+        if(st.name == null) {
+            if(!(v instanceof arrayobj) || ((arrayobj)v).data == null) {
+                return false;
+            }
+            arraycoll data = ((arrayobj)v).data;
+            if(st.index >= 0) {
+                return (st.index < data.size()) && walk(data.get(st.index), i + 1, path, s);
+            }
+            for(int j = 0; j < data.size(); j++) {
+                if(walk(data.get(j), i + 1, path, s)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if(!(v instanceof instance) || ((instance)v).classdesc == null) {
+            return false;
+        }
+        instance inst = (instance)v;
+        accessor a = st.resolve(inst.classdesc);
+        if(a.slot < 0) {
+            return false;
+        }
+        fieldtype ft = a.field.type;
+        if(inst.layout == null) {
+            // Read lazily, or not decoded at all; go through the field data maps.
+            Map<field, Object> m = inst.fielddata.get(a.owner);
+            if(m == null || !m.containsKey(a.field)) {
+                return false;
+            }
+            Object value = m.get(a.field);
+            return (ft.isPrimitive() && i + 1 < path.length) ? false : walk(value, i + 1, path, s);
+        }
+        if(ft.isPrimitive()) {
+            return (i + 1 == path.length) && s.acceptPrimitive(ft, inst.prims[a.slot]);
+        }
+        return walk(inst.refs[a.slot], i + 1, path, s);
+    }
+
+    /**
+     * Runs the query over every instance of a parsed stream, on one thread per
+     * processor.
+     *
+     * @param jd the parser, after run()
+     * @return the matches, in handle order
+     */
+    public List<match> run(jdeserialize jd) {
+        return run(jd.getHandleMaps(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * <p>
+     * Runs the query over every instance in a list of handle maps, as returned by
+     * jdeserialize.getHandleMaps().  The maps are split into chunks of handles, which
+     * are evaluated on a pool of nthreads threads; the matches are returned in the
+     * order of the maps and their handles, however many threads are used.
+     * </p>
+     *
+     * <p>
+     * The content objects must not be modified while the query runs.
+     * </p>
+     *
+     * @param handlemaps the handle maps
+     * @param nthreads the number of threads; if it's 1, the query is run on the calling
+     * thread
+     * @return the matches
+     */
+    public List<match> run(List<Map<Integer,content>> handlemaps, int nthreads) {
+        ArrayList<Callable<List<match>>> tasks = new ArrayList<Callable<List<match>>>();
+        for(final Map<Integer,content> map: handlemaps) {
+            if(!(map instanceof HandleTable)) {
+                tasks.add(new Callable<List<match>>() {
+                    public List<match> call() {
+                        ArrayList<match> matches = new ArrayList<match>();
+                        collector c = new collector(matches);
+                        for(content ct: map.values()) {
+                            if(ct instanceof instance) {
+                                evaluate((instance)ct, c);
+                            }
+                        }
+                        return matches;
+                    }
+                });
+                continue;
+            }
+            final HandleTable table = (HandleTable)map;
+            for(int start = 0; start < table.extent(); start += CHUNK) {
+                final int from = start;
+                final int to = (int)Math.min((long)start + CHUNK, table.extent());
+                tasks.add(new Callable<List<match>>() {
+                    public List<match> call() {
+                        ArrayList<match> matches = new ArrayList<match>();
+                        collector c = new collector(matches);
+                        for(int idx = from; idx < to; idx++) {
+                            content ct = table.get(idx + ObjectStreamConstants.baseWireHandle);
+                            if(ct instanceof instance) {
+                                evaluate((instance)ct, c);
+                            }
+                        }
+                        return matches;
+                    }
+                });
+            }
+        }
+        ArrayList<match> matches = new ArrayList<match>();
+        if(nthreads <= 1 || tasks.size() <= 1) {
+            for(Callable<List<match>> task: tasks) {
+                try {
+                    matches.addAll(task.call());
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return matches;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(nthreads, tasks.size()));
+        try {
+            for(Future<List<match>> f: pool.invokeAll(tasks)) {
+                matches.addAll(f.get());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("query interrupted");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+        return matches;
+    }
+
+    /**
+     * Formats a value yielded by a query, as printed by the -query option: strings
+     * quoted, instances and arrays as their class name and handle, enum constants as
+     * their class and constant names.
+     *
+     * @param value the value
+     * @return the formatted value
+     */
+    public static String format(Object value) {
+        if(value == null) {
+            return "null";
+        } else if(value instanceof stringobj) {
+            return quote(((stringobj)value).value, '"');
+        } else if(value instanceof Character) {
+            return quote(value.toString(), '\'');
+        } else if(value instanceof instance) {
+            instance inst = (instance)value;
+            return inst.classdesc.name + " _h" + jdeserialize.hex(inst.handle);
+        } else if(value instanceof arrayobj) {
+            arrayobj arr = (arrayobj)value;
+            return arr.classdesc.name + " _h" + jdeserialize.hex(arr.handle);
+        } else if(value instanceof enumobj) {
+            enumobj e = (enumobj)value;
+            return e.classdesc.name + "." + ((e.value == null) ? "null" : e.value.value);
+        }
+        return value.toString();
+    }
+
+    private static String quote(String s, char q) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(q);
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == q || c == '\\') {
+                sb.append('\\').append(c);
+            } else if(c < 0x20 || c > 0x7e) {
+                sb.append("\\u").append(jdeserialize.hexnoprefix(c, 4));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append(q).toString();
+    }
+
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * Recursive-descent parser for query expressions.
+     */
+    private static class parser {
+        private final String expr;
+        private int pos;
+
+        parser(String expr) {
+            this.expr = expr;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("invalid query at position " + pos + ": " + message + ": " + expr);
+        }
+        private void skipSpace() {
+            while(pos < expr.length() && Character.isWhitespace(expr.charAt(pos))) {
+                pos++;
+            }
+        }
+        private boolean at(String s) {
+            return expr.startsWith(s, pos);
+        }
+        private boolean atKeyword(String kw) {
+            int end = pos + kw.length();
+            return expr.regionMatches(true, pos, kw, 0, kw.length())
+                && (end == expr.length() || !Character.isJavaIdentifierPart(expr.charAt(end)));
+        }
+
+        Query parse() {
+            skipSpace();
+            int start = pos;
+            while(pos < expr.length() && expr.charAt(pos) != '[' && !Character.isWhitespace(expr.charAt(pos))) {
+                pos++;
+            }
+            if(pos == start) {
+                throw error("expected a class name");
+            }
+            ClassFilter classes = new ClassFilter().include(expr.substring(start, pos));
+            ArrayList<step> path = new ArrayList<step>();
+            if(pos < expr.length() && expr.charAt(pos) == '[') {
+                if(!at("[*]")) {
+                    throw error("expected [*] after the class name");
+                }
+                pos += 3;
+                path(path);
+            }
+            ArrayList<condition> conditions = new ArrayList<condition>();
+            skipSpace();
+            if(pos < expr.length()) {
+                if(!atKeyword("where")) {
+                    throw error("expected where");
+                }
+                do {
+                    pos += (conditions.size() == 0) ? 5 : 3;
+                    skipSpace();
+                    conditions.add(condition());
+                    skipSpace();
+                } while(atKeyword("and"));
+                if(pos < expr.length()) {
+                    throw error("expected and");
+                }
+            }
+            return new Query(expr, classes, path.toArray(new step[path.size()]),
+                    conditions.toArray(new condition[conditions.size()]));
+        }
+
+        /**
+         * Parses steps after the first, each starting with '.' or '['.
+         */
+        private void path(List<step> path) {
+            while(pos < expr.length()) {
+                char c = expr.charAt(pos);
+                if(c == '.') {
+                    pos++;
+                    path.add(new step(name(), -1));
+                } else if(c == '[') {
+                    path.add(subscript());
+                } else {
+                    break;
+                }
+            }
+        }
+        private String name() {
+            int start = pos;
+            while(pos < expr.length() && Character.isJavaIdentifierPart(expr.charAt(pos))) {
+                pos++;
+            }
+            if(pos == start) {
+                throw error("expected a field name");
+            }
+            return expr.substring(start, pos);
+        }
+        private step subscript() {
+            pos++;
+            int index = -1;
+            if(at("*")) {
+                pos++;
+            } else {
+                int start = pos;
+                while(pos < expr.length() && Character.isDigit(expr.charAt(pos))) {
+                    pos++;
+                }
+                try {
+                    index = Integer.parseInt(expr.substring(start, pos));
+                } catch (NumberFormatException nfe) {
+                    pos = start;
+                    throw error("expected * or an array index");
+                }
+            }
+            if(!at("]")) {
+                throw error("expected ]");
+            }
+            pos++;
+            return new step(null, index);
+        }
+        private condition condition() {
+            ArrayList<step> path = new ArrayList<step>();
+            path.add(new step(name(), -1));
+            path(path);
+            skipSpace();
+            op o;
+            if(at("==")) {
+                o = op.EQ;
+                pos += 2;
+            } else if(at("!=")) {
+                o = op.NE;
+                pos += 2;
+            } else if(at("<=")) {
+                o = op.LE;
+                pos += 2;
+            } else if(at(">=")) {
+                o = op.GE;
+                pos += 2;
+            } else if(at("=")) {
+                o = op.EQ;
+                pos++;
+            } else if(at("<")) {
+                o = op.LT;
+                pos++;
+            } else if(at(">")) {
+                o = op.GT;
+                pos++;
+            } else {
+                throw error("expected a comparison operator");
+            }
+            skipSpace();
+            Object literal = literal();
+            if((literal == null || literal instanceof Boolean) && o != op.EQ && o != op.NE) {
+                throw error("only = and != can be used with " + literal);
+            }
+            return new condition(path.toArray(new step[path.size()]), o, literal);
+        }
+        private Object literal() {
+            if(pos >= expr.length()) {
+                throw error("expected a value");
+            }
+            char q = expr.charAt(pos);
+            if(q == '"' || q == '\'') {
+                StringBuilder sb = new StringBuilder();
+                pos++;
+                while(pos < expr.length() && expr.charAt(pos) != q) {
+                    if(expr.charAt(pos) == '\\' && pos + 1 < expr.length()) {
+                        pos++;
+                    }
+                    sb.append(expr.charAt(pos++));
+                }
+                if(pos >= expr.length()) {
+                    throw error("unterminated string");
+                }
+                pos++;
+                return sb.toString();
+            }
+            if(atKeyword("null")) {
+                pos += 4;
+                return null;
+            } else if(atKeyword("true")) {
+                pos += 4;
+                return Boolean.TRUE;
+            } else if(atKeyword("false")) {
+                pos += 5;
+                return Boolean.FALSE;
+            }
+            int start = pos;
+            while(pos < expr.length() && !Character.isWhitespace(expr.charAt(pos))) {
+                pos++;
+            }
+            String num = expr.substring(start, pos);
+            try {
+                return Long.decode(num);
+            } catch (NumberFormatException nfe) {
+                try {
+                    return Double.valueOf(num);
+                } catch (NumberFormatException nfe2) {
+                    pos = start;
+                    throw error("expected a value");
+                }
+            }
+        }
+    }
+}
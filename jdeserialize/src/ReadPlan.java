@@ -0,0 +1,170 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>
+ * What the parser needs to know about a class in order to read the class data of its
+ * instances (or the elements of its arrays): the classes of its hierarchy in stream
+ * order, what kind of data each of them has according to its SC_* flags, and the types
+ * of their fields.
+ * </p>
+ *
+ * <p>
+ * The plan for a class is computed the first time one of its instances or arrays is
+ * read, and cached on its classdesc; the class's description must be complete by then.
+ * Plans are immutable, so descriptions shared through a ClassDescCache can share them
+ * too.
+ * </p>
+ */
+class ReadPlan {
+    /**
+     * The class has no data in the stream (it's neither Serializable nor Externalizable).
+     */
+    static final byte NODATA = 0;
+
+    /**
+     * The class's data is its field values.
+     */
+    static final byte FIELDS = 1;
+
+    /**
+     * The class's data is its field values, followed by an annotation written by its
+     * writeObject() method.
+     */
+    static final byte FIELDS_ANNOTATED = 2;
+
+    /**
+     * The class is Externalizable; its data is an annotation.
+     */
+    static final byte EXTERNAL = 3;
+
+    /**
+     * The class's flags are inconsistent, and its data can't be read; see invalid().
+     */
+    static final byte INVALID = 4;
+
+    /**
+     * The classes in the hierarchy, in stream order (see classdesc.getHierarchy()).
+     */
+    final classdesc[] classes;
+
+    /**
+     * What kind of data each class has.
+     */
+    final byte[] actions;
+
+    /**
+     * The types of each class's fields.
+     */
+    final fieldtype[][] types;
+
+    /**
+     * For each class, the types of its object fields, in stream order.
+     */
+    final fieldtype[][] reftypes;
+
+    /**
+     * For each class, the number of bytes of primitive field values before each of its
+     * object fields, followed by the number of bytes after the last one; used to skip
+     * over primitive values without decoding them.
+     */
+    final int[][] gaps;
+
+    /**
+     * For array classes, the component type; null if the class isn't an array class, or
+     * its name isn't a valid array type descriptor.
+     */
+    final fieldtype component;
+
+    private ReadPlan(classdesc cd) {
+        ArrayList<classdesc> hierarchy = new ArrayList<classdesc>();
+        cd.getHierarchy(hierarchy);
+        this.classes = hierarchy.toArray(new classdesc[hierarchy.size()]);
+        this.actions = new byte[classes.length];
+        this.types = new fieldtype[classes.length][];
+        this.reftypes = new fieldtype[classes.length][];
+        this.gaps = new int[classes.length][];
+        for(int i = 0; i < classes.length; i++) {
+            classdesc c = classes[i];
+            actions[i] = action(c.descflags);
+            int n = (c.fields == null) ? 0 : c.fields.length;
+            types[i] = new fieldtype[n];
+            int nrefs = 0;
+            for(int j = 0; j < n; j++) {
+                types[i][j] = c.fields[j].type;
+                if(!types[i][j].isPrimitive()) {
+                    nrefs++;
+                }
+            }
+            reftypes[i] = new fieldtype[nrefs];
+            gaps[i] = new int[nrefs + 1];
+            int r = 0;
+            for(fieldtype ft: types[i]) {
+                if(ft.isPrimitive()) {
+                    gaps[i][r] += ft.getSize();
+                } else {
+                    reftypes[i][r++] = ft;
+                }
+            }
+        }
+        fieldtype ft = null;
+        if(cd.name != null && cd.name.length() >= 2 && cd.name.charAt(0) == '[') {
+            try {
+                ft = fieldtype.get((byte)cd.name.charAt(1));
+            } catch (ValidityException ve) {
+                // left to the parser to report
+            }
+        }
+        this.component = ft;
+    }
+
+    private static byte action(byte flags) {
+        boolean serializable = (flags & ObjectStreamConstants.SC_SERIALIZABLE) != 0;
+        boolean externalizable = (flags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0;
+        if(serializable) {
+            if(externalizable) {
+                return INVALID;
+            }
+            if((flags & ObjectStreamConstants.SC_WRITE_METHOD) != 0) {
+                return ((flags & ObjectStreamConstants.SC_ENUM) != 0) ? INVALID : FIELDS_ANNOTATED;
+            }
+            return FIELDS;
+        } else if(externalizable) {
+            return ((flags & ObjectStreamConstants.SC_BLOCK_DATA) != 0) ? INVALID : EXTERNAL;
+        }
+        return NODATA;
+    }
+
+    /**
+     * Gets the read plan for a class.
+     *
+     * @param cd the class
+     * @return the plan
+     */
+    static ReadPlan of(classdesc cd) {
+        ReadPlan p = cd.plan;
+        if(p == null) {
+            p = new ReadPlan(cd);
+            cd.plan = p;
+        }
+        return p;
+    }
+
+    /**
+     * Returns the exception that describes why the data of a class can't be read.
+     *
+     * @param i the index of a class whose action is INVALID
+     * @return the exception to throw
+     */
+    IOException invalid(int i) {
+        byte flags = classes[i].descflags;
+        if((flags & ObjectStreamConstants.SC_SERIALIZABLE) != 0) {
+            if((flags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
+                return new IOException("SC_EXTERNALIZABLE & SC_SERIALIZABLE encountered");
+            }
+            return new IOException("SC_ENUM & SC_WRITE_METHOD encountered!");
+        }
+        return new EOFException("hit externalizable with nonzero SC_BLOCK_DATA; can't interpret data");
+    }
+}
@@ -0,0 +1,945 @@
+package org.unsynchronized;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * <p>
+ * A persistent index of a serialized stream, kept in a sidecar file (by convention, the
+ * stream's name with SUFFIX appended).  The index is built by a single streaming parse,
+ * and lets later readers locate any item of the stream, and decode it on demand, without
+ * parsing the stream again.  It holds:
+ * </p>
+ *
+ * <ul>
+ *  <li>for each handle generation (the handles assigned between two resets, as in
+ *  jdeserialize.getHandleMaps()), the stream range, type and class description of the
+ *  item assigned each handle;</li>
+ *  <li>the stream range of each top-level content item, and the handles assigned in
+ *  it;</li>
+ *  <li>for each class, the handles of its instances.</li>
+ * </ul>
+ *
+ * <p>
+ * The index file is memory-mapped when it's opened, and entries are read straight out
+ * of the mapping, so opening an index takes constant time however large the stream is.
+ * Handle lookups are array accesses; top-level items and classes are found by binary
+ * search.
+ * </p>
+ *
+ * <p>
+ * Items are decoded with a decoder (see newDecoder()), which reads the top-level item
+ * holding the requested handle from its offset.  References to earlier top-level items
+ * are resolved by decoding those in turn, so only the part of the stream that the item
+ * actually depends on is read.  Top-level items that were interrupted by a serialized
+ * exception can't be decoded this way.
+ * </p>
+ *
+ * <p>
+ * The index records the size and modification time of the stream it was built from;
+ * see isCurrent().  While it's being built, the entries of the current generation and
+ * the instance lists are held in memory.  An open index is read-only, and can be shared
+ * by any number of threads; decoders can't.
+ * </p>
+ */
+public class StreamIndex {
+    /**
+     * Suffix of index files built by the command-line tool.
+     */
+    public static final String SUFFIX = ".jdx";
+
+    private static final int MAGIC = 0x4a444958;       // "JDIX"
+    private static final int VERSION = 1;
+
+    // Header layout.
+    private static final int HEADER_SIZE = 72;
+    private static final int H_STREAMSIZE = 8;
+    private static final int H_STREAMTIME = 16;
+    private static final int H_NGENS = 24;
+    private static final int H_NTOP = 28;
+    private static final int H_NNAMES = 32;
+    private static final int H_NCLASSES = 36;
+    private static final int H_GENS = 40;
+    private static final int H_TOP = 48;
+    private static final int H_NAMES = 56;
+    private static final int H_CLASSES = 64;
+
+    // Record sizes: handle entries (start, end, classdesc handle or name index, type),
+    // generations (entries offset, count), top-level items (start, end, generation,
+    // first handle, next handle, handle, flags), classes (name index, count, list
+    // offset) and instance list items (generation, handle).
+    private static final int ENTRY_SIZE = 24;
+    private static final int GEN_SIZE = 16;
+    private static final int TOP_SIZE = 40;
+    private static final int CLASS_SIZE = 16;
+    private static final int INSTANCE_SIZE = 8;
+
+    private static final int TOP_INTERRUPTED = 1;
+
+    // The file is mapped in overlapping chunks, so that no record straddles two of them.
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+    private static final int CHUNK_OVERLAP = 128 * 1024;
+
+    private static final contenttype[] TYPES = contenttype.values();
+
+    /**
+     * The location of an item that was assigned a handle.
+     */
+    public static class entry {
+        /**
+         * The handle generation; see jdeserialize.getHandleMaps().
+         */
+        public final int generation;
+        public final int handle;
+        public final contenttype type;
+
+        /**
+         * Stream offset of the item's first byte.
+         */
+        public final long start;
+
+        /**
+         * Stream offset just past the item's last byte, or -1 if the item wasn't
+         * completely read.
+         */
+        public final long end;
+
+        /**
+         * Handle of the class description of an instance, array, Class object or enum
+         * constant, or -1.
+         */
+        public final int classhandle;
+
+        entry(int generation, int handle, contenttype type, long start, long end, int classhandle) {
+            this.generation = generation;
+            this.handle = handle;
+            this.type = type;
+            this.start = start;
+            this.end = end;
+            this.classhandle = classhandle;
+        }
+        public String toString() {
+            return "[" + type + " " + generation + ":" + jdeserialize.hex(handle) + " at " + start + "-" + end + "]";
+        }
+    }
+
+    /**
+     * The location of a top-level content item.
+     */
+    public static class toplevel {
+        /**
+         * The handle generation that was current when the item started.
+         */
+        public final int generation;
+        public final long start;
+        public final long end;
+
+        /**
+         * The first handle assigned in the item.
+         */
+        public final int firsthandle;
+
+        /**
+         * The first handle assigned after the item; if it's equal to firsthandle, no
+         * handles were assigned in the item.
+         */
+        public final int nexthandle;
+
+        /**
+         * The handle of the item (or of the item it refers to), or -1 if it's null or
+         * a reference to an object.
+         */
+        public final int handle;
+
+        /**
+         * True if the item was interrupted by a serialized exception (or a reset).
+         */
+        public final boolean interrupted;
+
+        toplevel(int generation, long start, long end, int firsthandle, int nexthandle, int handle,
+                boolean interrupted) {
+            this.generation = generation;
+            this.start = start;
+            this.end = end;
+            this.firsthandle = firsthandle;
+            this.nexthandle = nexthandle;
+            this.handle = handle;
+            this.interrupted = interrupted;
+        }
+        public String toString() {
+            return "[top-level item " + generation + ":" + jdeserialize.hex(handle) + " at " + start + "-" + end + "]";
+        }
+    }
+
+    private final ByteBuffer[] chunks;
+    private final long streamsize;
+    private final long streamtime;
+    private final int ngens;
+    private final int ntop;
+    private final int nnames;
+    private final int nclasses;
+    private final long gensoff;
+    private final long topoff;
+    private final long namesoff;
+    private final long classesoff;
+
+    private StreamIndex(ByteBuffer[] chunks) throws IOException {
+        this.chunks = chunks;
+        if(chunks[0].limit() < HEADER_SIZE || getInt(0) != MAGIC) {
+            throw new ValidityException("not a stream index");
+        }
+        if(getInt(4) != VERSION) {
+            throw new ValidityException("unsupported stream index version: " + getInt(4));
+        }
+        this.streamsize = getLong(H_STREAMSIZE);
+        this.streamtime = getLong(H_STREAMTIME);
+        this.ngens = getInt(H_NGENS);
+        this.ntop = getInt(H_NTOP);
+        this.nnames = getInt(H_NNAMES);
+        this.nclasses = getInt(H_NCLASSES);
+        this.gensoff = getLong(H_GENS);
+        this.topoff = getLong(H_TOP);
+        this.namesoff = getLong(H_NAMES);
+        this.classesoff = getLong(H_CLASSES);
+    }
+
+    /**
+     * Gets the name of the index file that the command-line tool uses for a stream.
+     *
+     * @param stream the stream file
+     * @return the index file
+     */
+    public static File indexFile(File stream) {
+        return new File(stream.getPath() + SUFFIX);
+    }
+
+    /**
+     * Opens an index file, by mapping it into memory.  The file can be deleted or
+     * replaced while the index is open.
+     *
+     * @param index the index file
+     * @return the index
+     * @throws ValidityException if the file isn't an index
+     * @throws IOException if an I/O error occurs
+     */
+    public static StreamIndex open(File index) throws IOException {
+        FileChannel fc = new RandomAccessFile(index, "r").getChannel();
+        try {
+            long size = fc.size();
+            ByteBuffer[] chunks = new ByteBuffer[(int)Math.max(1, (size + CHUNK_MASK) >>> CHUNK_BITS)];
+            for(int i = 0; i < chunks.length; i++) {
+                long off = (long)i << CHUNK_BITS;
+                long len = Math.min(size - off, CHUNK_MASK + 1 + CHUNK_OVERLAP);
+                chunks[i] = fc.map(FileChannel.MapMode.READ_ONLY, off, len);
+            }
+            return new StreamIndex(chunks);
+        } finally {
+            fc.close();
+        }
+    }
+
+    /**
+     * Opens the index of a stream with the command-line tool's naming convention (see
+     * indexFile()), building it first if it doesn't exist, or is out of date or
+     * unreadable.
+     *
+     * @param stream the stream file
+     * @return the index
+     * @throws IOException if the index can't be built
+     */
+    public static StreamIndex openOrBuild(File stream) throws IOException {
+        File index = indexFile(stream);
+        if(index.exists()) {
+            try {
+                StreamIndex si = open(index);
+                if(si.isCurrent(stream)) {
+                    return si;
+                }
+            } catch (IOException ioe) {
+                // rebuild it
+            }
+        }
+        return build(stream, index);
+    }
+
+    /**
+     * Builds the index of a stream file, by parsing it in streaming mode (see
+     * jdeserialize.run(StreamInput, StreamVisitor)).  The index is written to a new
+     * temporary file in the same directory, which replaces the index file once it's
+     * complete, so concurrent builds of the same index don't write to the same file.
+     *
+     * @param stream the stream file
+     * @param index the index file to write
+     * @return the new index
+     * @throws IOException if the stream can't be parsed, or an I/O error occurs
+     */
+    public static StreamIndex build(File stream, File index) throws IOException {
+        File tmp = File.createTempFile("." + index.getName() + ".", ".tmp",
+                index.getAbsoluteFile().getParentFile());
+        long size = stream.length();
+        long time = stream.lastModified();
+        RandomAccessFile raf = null;
+        boolean done = false;
+        try {
+            raf = new RandomAccessFile(tmp, "rw");
+            builder b = new builder(new DataOutputStream(new BufferedOutputStream(
+                            Channels.newOutputStream(raf.getChannel()), 256 * 1024)));
+            b.out.write(new byte[HEADER_SIZE]);
+            StreamInput in = new MappedStreamInput(new RandomAccessFile(stream, "r").getChannel());
+            b.in = in;
+            jdeserialize jd = new jdeserialize(stream.getPath());
+            jd.setOutput(jdeserialize.NULL_OUTPUT);
+            jd.run(in, b);
+            b.finish();
+            b.out.flush();
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeLong(size);
+            raf.writeLong(time);
+            raf.writeInt(b.gen);
+            raf.writeInt(b.ntop);
+            raf.writeInt(b.names.size());
+            raf.writeInt(b.nclasses);
+            raf.writeLong(b.gensoff);
+            raf.writeLong(b.topoff);
+            raf.writeLong(b.namesoff);
+            raf.writeLong(b.classesoff);
+            done = true;
+        } finally {
+            if(raf != null) {
+                raf.close();
+            }
+            if(!done) {
+                tmp.delete();
+            }
+        }
+        if(!tmp.renameTo(index)) {
+            index.delete();
+            if(!tmp.renameTo(index)) {
+                tmp.delete();
+                throw new IOException("can't replace index file " + index);
+            }
+        }
+        return open(index);
+    }
+
+    /**
+     * StreamVisitor that collects the index entries, and writes each generation's
+     * entries out when it ends.  The rest of the index is written by finish().
+     */
+    private static class builder extends StreamVisitorAdapter {
+        final DataOutputStream out;
+        long written = HEADER_SIZE;
+        StreamInput in;
+
+        // Entries of the current generation, indexed by handle - baseWireHandle.
+        private long[] starts = new long[1024];
+        private long[] ends = new long[1024];
+        private int[] aux = new int[1024];
+        private byte[] types = new byte[1024];
+        private int count;
+        int gen;
+        private int[] gencounts = new int[16];
+        private ByteArrayOutputStream gens = new ByteArrayOutputStream();
+
+        // Top-level items.
+        private ByteArrayOutputStream top = new ByteArrayOutputStream();
+        int ntop;
+        private long last;              // offset just past the last top-level item
+        private int depth;              // nesting of objects and arrays
+        private int topgen;             // generation and first handle of the current item
+        private int topfirst = ObjectStreamConstants.baseWireHandle;
+        private boolean interrupted;
+
+        // Class names, and the instances of each class.
+        HashMap<String, Integer> nameidx = new HashMap<String, Integer>();
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<ByteArrayOutputStream> instances = new ArrayList<ByteArrayOutputStream>();
+        int nclasses;
+
+        long gensoff;
+        long topoff;
+        long namesoff;
+        long classesoff;
+
+        builder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        private int nameIndex(String name) {
+            Integer idx = nameidx.get(name);
+            if(idx == null) {
+                idx = Integer.valueOf(names.size());
+                nameidx.put(name, idx);
+                names.add(name);
+                instances.add(null);
+            }
+            return idx.intValue();
+        }
+
+        private void put(content c, int auxvalue) {
+            int idx = c.getHandle() - ObjectStreamConstants.baseWireHandle;
+            if(idx >= types.length) {
+                int ncap = Math.max(idx + 1, types.length * 2);
+                starts = Arrays.copyOf(starts, ncap);
+                ends = Arrays.copyOf(ends, ncap);
+                aux = Arrays.copyOf(aux, ncap);
+                types = Arrays.copyOf(types, ncap);
+            }
+            starts[idx] = c.getStreamStart();
+            ends[idx] = c.getStreamEnd();
+            aux[idx] = auxvalue;
+            types[idx] = (byte)(c.getType().ordinal() + 1);
+            if(idx >= count) {
+                count = idx + 1;
+            }
+        }
+
+        private void setEnd(content c) {
+            ends[c.getHandle() - ObjectStreamConstants.baseWireHandle] = c.getStreamEnd();
+        }
+
+        /**
+         * Writes out the entries of the current generation, and starts the next one.
+         */
+        private void endGeneration() throws IOException {
+            DataOutputStream g = new DataOutputStream(gens);
+            g.writeLong(written);
+            g.writeInt(count);
+            g.writeInt(0);
+            for(int i = 0; i < count; i++) {
+                out.writeLong(starts[i]);
+                out.writeLong(ends[i]);
+                out.writeInt(aux[i]);
+                out.writeByte(types[i]);
+                out.writeByte(0);
+                out.writeShort(0);
+            }
+            written += (long)count * ENTRY_SIZE;
+            Arrays.fill(types, 0, count, (byte)0);
+            if(gen == gencounts.length) {
+                gencounts = Arrays.copyOf(gencounts, gen * 2);
+            }
+            gencounts[gen++] = count;
+            count = 0;
+        }
+
+        /**
+         * Writes out the last generation, and the generation, top-level item, class
+         * name and class tables.
+         */
+        void finish() throws IOException {
+            if(count > 0) {
+                endGeneration();
+            }
+            gensoff = written;
+            gens.writeTo(out);
+            written += gens.size();
+            topoff = written;
+            top.writeTo(out);
+            written += top.size();
+
+            namesoff = written;
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(data);
+            long dataoff = namesoff + 8L * names.size();
+            for(String name: names) {
+                out.writeLong(dataoff + d.size());
+                d.writeUTF(name);
+            }
+            data.writeTo(out);
+            written = dataoff + data.size();
+
+            // Classes are sorted by name, and their instance lists follow the table.
+            ArrayList<Integer> classes = new ArrayList<Integer>();
+            for(int i = 0; i < names.size(); i++) {
+                if(instances.get(i) != null) {
+                    classes.add(Integer.valueOf(i));
+                }
+            }
+            Collections.sort(classes, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return names.get(a.intValue()).compareTo(names.get(b.intValue()));
+                }
+            });
+            nclasses = classes.size();
+            classesoff = written;
+            long listoff = classesoff + (long)nclasses * CLASS_SIZE;
+            for(Integer i: classes) {
+                ByteArrayOutputStream list = instances.get(i.intValue());
+                out.writeInt(i.intValue());
+                out.writeInt(list.size() / INSTANCE_SIZE);
+                out.writeLong(listoff);
+                listoff += list.size();
+            }
+            for(Integer i: classes) {
+                instances.get(i.intValue()).writeTo(out);
+            }
+            written = listoff;
+        }
+
+        public void reset() {
+            if(depth > 0) {
+                interrupted = true;
+            } else {
+                last = in.getPosition();
+            }
+            if(count > 0) {
+                try {
+                    endGeneration();
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }
+            if(depth == 0) {
+                topgen = gen;
+                topfirst = ObjectStreamConstants.baseWireHandle;
+            }
+        }
+        public void classDesc(classdesc cd) {
+            put(cd, nameIndex(cd.name));
+        }
+        public void startObject(instance inst) {
+            depth++;
+            put(inst, inst.classdesc.handle);
+            int idx = nameIndex(inst.classdesc.name);
+            ByteArrayOutputStream list = instances.get(idx);
+            if(list == null) {
+                list = new ByteArrayOutputStream();
+                instances.set(idx, list);
+            }
+            writeInt(list, gen);
+            writeInt(list, inst.handle);
+        }
+        public void endObject(instance inst) {
+            depth--;
+            setEnd(inst);
+        }
+        public void startArray(arrayobj arr, int size) {
+            depth++;
+            put(arr, arr.classdesc.handle);
+        }
+        public void endArray(arrayobj arr) {
+            depth--;
+            setEnd(arr);
+        }
+        public void string(stringobj s) {
+            put(s, -1);
+        }
+        public void newClass(classobj c) {
+            put(c, c.classdesc.handle);
+        }
+        public void newEnum(enumobj e) {
+            put(e, e.classdesc.handle);
+        }
+        public void exception(content ex) {
+            interrupted = true;
+        }
+        public void topLevel(content c) {
+            long end = in.getPosition();
+            int next = ObjectStreamConstants.baseWireHandle + ((topgen == gen) ? count : gencounts[topgen]);
+            // A top-level exception resets the stream as soon as it starts.
+            writeLong(top, (c instanceof exceptionstate) ? c.getStreamStart() : last);
+            writeLong(top, end);
+            writeInt(top, topgen);
+            writeInt(top, topfirst);
+            writeInt(top, next);
+            writeInt(top, (c == null) ? -1 : c.getHandle());
+            writeInt(top, interrupted ? TOP_INTERRUPTED : 0);
+            writeInt(top, 0);
+            ntop++;
+            last = end;
+            depth = 0;
+            interrupted = false;
+            topgen = gen;
+            topfirst = ObjectStreamConstants.baseWireHandle + count;
+        }
+
+        private static void writeInt(ByteArrayOutputStream bos, int v) {
+            bos.write(v >>> 24);
+            bos.write(v >>> 16);
+            bos.write(v >>> 8);
+            bos.write(v);
+        }
+        private static void writeLong(ByteArrayOutputStream bos, long v) {
+            writeInt(bos, (int)(v >>> 32));
+            writeInt(bos, (int)v);
+        }
+    }
+
+    private int getInt(long off) {
+        return chunks[(int)(off >>> CHUNK_BITS)].getInt((int)(off & CHUNK_MASK));
+    }
+    private long getLong(long off) {
+        return chunks[(int)(off >>> CHUNK_BITS)].getLong((int)(off & CHUNK_MASK));
+    }
+    private byte getByte(long off) {
+        return chunks[(int)(off >>> CHUNK_BITS)].get((int)(off & CHUNK_MASK));
+    }
+
+    /**
+     * Tells whether this index was built from the current contents of a stream file,
+     * judging by its size and modification time.
+     *
+     * @param stream the stream file
+     * @return true if the index is up to date
+     */
+    public boolean isCurrent(File stream) {
+        return stream.length() == streamsize && stream.lastModified() == streamtime;
+    }
+
+    /**
+     * Gets the size of the stream the index was built from.
+     *
+     * @return the size, in bytes
+     */
+    public long getStreamSize() {
+        return streamsize;
+    }
+
+    /**
+     * Gets the number of handle generations.
+     *
+     * @return the count
+     */
+    public int getGenerationCount() {
+        return ngens;
+    }
+
+    /**
+     * Gets the number of handles assigned in a generation.
+     *
+     * @param generation the generation
+     * @return the count
+     */
+    public int getHandleCount(int generation) {
+        if(generation < 0 || generation >= ngens) {
+            throw new IndexOutOfBoundsException("invalid generation: " + generation);
+        }
+        return getInt(gensoff + (long)generation * GEN_SIZE + 8);
+    }
+
+    /**
+     * Gets the entry for a handle.
+     *
+     * @param generation the generation
+     * @param handle the handle
+     * @return the entry, or null if the handle wasn't assigned in the generation
+     */
+    public entry getEntry(int generation, int handle) {
+        if(generation < 0 || generation >= ngens) {
+            return null;
+        }
+        long g = gensoff + (long)generation * GEN_SIZE;
+        long idx = (long)handle - ObjectStreamConstants.baseWireHandle;
+        if(idx < 0 || idx >= getInt(g + 8)) {
+            return null;
+        }
+        long off = getLong(g) + idx * ENTRY_SIZE;
+        int type = getByte(off + 20);
+        if(type <= 0 || type > TYPES.length) {
+            return null;
+        }
+        contenttype ct = TYPES[type - 1];
+        int a = getInt(off + 16);
+        return new entry(generation, handle, ct, getLong(off), getLong(off + 8),
+                (ct == contenttype.CLASSDESC) ? -1 : a);
+    }
+
+    /**
+     * Finds the entry for a handle.  If the handle was assigned in more than one
+     * generation, the entry in the last one is returned, as in
+     * jdeserialize.getContentByHandle().
+     *
+     * @param handle the handle
+     * @return the entry, or null if the handle wasn't assigned
+     */
+    public entry find(int handle) {
+        for(int g = ngens - 1; g >= 0; g--) {
+            entry e = getEntry(g, handle);
+            if(e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the name of an entry's class: the class described by a class description,
+     * or the class of an instance, array, Class object or enum constant.
+     *
+     * @param e the entry
+     * @return the class name, or null if the entry has no class
+     */
+    public String getClassName(entry e) {
+        entry cd = e;
+        if(e.type != contenttype.CLASSDESC) {
+            cd = (e.classhandle == -1) ? null : getEntry(e.generation, e.classhandle);
+            if(cd == null || cd.type != contenttype.CLASSDESC) {
+                return null;
+            }
+        }
+        long g = gensoff + (long)cd.generation * GEN_SIZE;
+        long off = getLong(g) + ((long)cd.handle - ObjectStreamConstants.baseWireHandle) * ENTRY_SIZE;
+        return getName(getInt(off + 16));
+    }
+
+    private String getName(int idx) {
+        long off = getLong(namesoff + 8L * idx);
+        ByteBuffer b = chunks[(int)(off >>> CHUNK_BITS)].duplicate();
+        b.position((int)(off & CHUNK_MASK));
+        int len = b.getShort() & 0xffff;
+        try {
+            return ModifiedUTF8.decode(b, len, false);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("invalid class name in index", ioe);
+        }
+    }
+
+    /**
+     * Gets the number of top-level content items.
+     *
+     * @return the count
+     */
+    public int getTopLevelCount() {
+        return ntop;
+    }
+
+    /**
+     * Gets a top-level content item.
+     *
+     * @param i the index of the item, in stream order
+     * @return the item
+     */
+    public toplevel getTopLevel(int i) {
+        if(i < 0 || i >= ntop) {
+            throw new IndexOutOfBoundsException("invalid top-level item: " + i);
+        }
+        long off = topoff + (long)i * TOP_SIZE;
+        return new toplevel(getInt(off + 16), getLong(off), getLong(off + 8), getInt(off + 20),
+                getInt(off + 24), getInt(off + 28), (getInt(off + 32) & TOP_INTERRUPTED) != 0);
+    }
+
+    /**
+     * Finds the top-level item in which a handle was assigned.
+     *
+     * @return the index of the item, or -1
+     */
+    int findTopLevel(int generation, int handle) {
+        int lo = 0, hi = ntop - 1, found = -1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long off = topoff + (long)mid * TOP_SIZE;
+            int g = getInt(off + 16);
+            if(g < generation || (g == generation && getInt(off + 20) <= handle)) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if(found < 0) {
+            return -1;
+        }
+        long off = topoff + (long)found * TOP_SIZE;
+        if(getInt(off + 16) != generation || handle >= getInt(off + 24)) {
+            return -1;
+        }
+        return found;
+    }
+
+    /**
+     * Gets the names of the classes that have instances in the stream.
+     *
+     * @return a read-only view of the names, in sorted order
+     */
+    public List<String> getClassNames() {
+        return new AbstractList<String>() {
+            public String get(int i) {
+                if(i < 0 || i >= nclasses) {
+                    throw new IndexOutOfBoundsException("invalid class: " + i);
+                }
+                return getName(getInt(classesoff + (long)i * CLASS_SIZE));
+            }
+            public int size() {
+                return nclasses;
+            }
+        };
+    }
+
+    /**
+     * Gets the instances of a class, in stream order.  Only the class itself is
+     * matched, not its subclasses.
+     *
+     * @param className the class name, as it appears in the stream
+     * @return a read-only view of the instances' entries, which is empty if there are
+     * none
+     */
+    public List<entry> getInstances(String className) {
+        int lo = 0, hi = nclasses - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long off = classesoff + (long)mid * CLASS_SIZE;
+            int cmp = getName(getInt(off)).compareTo(className);
+            if(cmp == 0) {
+                final int n = getInt(off + 4);
+                final long listoff = getLong(off + 8);
+                return new AbstractList<entry>() {
+                    public entry get(int i) {
+                        if(i < 0 || i >= n) {
+                            throw new IndexOutOfBoundsException("invalid instance: " + i);
+                        }
+                        long item = listoff + (long)i * INSTANCE_SIZE;
+                        return getEntry(getInt(item), getInt(item + 4));
+                    }
+                    public int size() {
+                        return n;
+                    }
+                };
+            } else if(cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return Collections.<entry>emptyList();
+    }
+
+    /**
+     * Creates a decoder for items of the stream.
+     *
+     * @param in an input on the stream the index was built from; it must be seekable
+     * (see StreamInput.isSeekable()), and stay open while the decoder is in use
+     * @return the decoder
+     */
+    public decoder newDecoder(StreamInput in) {
+        return new decoder(this, in);
+    }
+
+    /**
+     * <p>
+     * Decodes items of an indexed stream on demand.  An item is decoded by reading the
+     * top-level item in which its handle was assigned, from that item's offset; the
+     * references it makes to earlier top-level items are resolved by decoding those
+     * items as they're encountered.
+     * </p>
+     *
+     * <p>
+     * Decoded items are kept, one handle table per generation, so that each top-level
+     * item is only decoded once, and items that are decoded separately share the
+     * objects they refer to.  Member classes aren't connected.  A decoder isn't
+     * thread-safe.
+     * </p>
+     */
+    public static class decoder {
+        private final StreamIndex index;
+        private final StreamInput source;
+        private final HashMap<Integer, HandleTable> tables = new HashMap<Integer, HandleTable>();
+        private final BitSet decoded = new BitSet();
+        private final BitSet decoding = new BitSet();   // top-level items being decoded
+        private int generation;     // of the item being decoded
+
+        decoder(StreamIndex index, StreamInput source) {
+            this.index = index;
+            this.source = source;
+        }
+
+        private HandleTable table(int generation) {
+            HandleTable t = tables.get(generation);
+            if(t == null) {
+                t = new HandleTable();
+                tables.put(generation, t);
+            }
+            return t;
+        }
+
+        /**
+         * Decodes an item.
+         *
+         * @param generation the item's generation
+         * @param handle the item's handle
+         * @return the item; for an enum constant, this is its string, as for references
+         * to it in the stream
+         * @throws IOException if the item can't be found or decoded
+         */
+        public content decode(int generation, int handle) throws IOException {
+            if(index.getEntry(generation, handle) == null) {
+                throw new IOException("no item with handle " + generation + ":" + jdeserialize.hex(handle));
+            }
+            int saved = this.generation;
+            this.generation = generation;
+            try {
+                content c = resolve(handle);
+                if(c == null) {
+                    throw new IOException("no top-level item holds handle " + generation + ":" + jdeserialize.hex(handle));
+                }
+                return c;
+            } finally {
+                this.generation = saved;
+            }
+        }
+
+        /**
+         * Decodes the item for an entry.
+         *
+         * @param e the entry
+         * @return the item
+         * @throws IOException if the item can't be decoded
+         */
+        public content decode(entry e) throws IOException {
+            return decode(e.generation, e.handle);
+        }
+
+        /**
+         * Resolves a handle of the generation being decoded, decoding the top-level
+         * item that holds it if necessary.
+         *
+         * @return the item, or null if the handle isn't in any top-level item
+         */
+        content resolve(int handle) throws IOException {
+            HandleTable t = table(generation);
+            content c = t.get(handle);
+            if(c != null) {
+                return c;
+            }
+            int i = index.findTopLevel(generation, handle);
+            if(i < 0 || decoded.get(i) || decoding.get(i)) {
+                return null;
+            }
+            toplevel tl = index.getTopLevel(i);
+            if(tl.interrupted) {
+                throw new IOException("top-level item at offset " + tl.start
+                        + " was interrupted by an exception, and can't be decoded on its own");
+            }
+            // If the item can't be decoded, the handles it got as far as assigning are
+            // dropped, so that it can be tried again.
+            boolean ok = false;
+            decoding.set(i);
+            try {
+                StreamInput in = source.reopen(tl.start);
+                try {
+                    jdeserialize jd = new jdeserialize(null);
+                    jd.setOutput(jdeserialize.NULL_OUTPUT);
+                    jd.decodeItem(in, t, tl.firsthandle, this);
+                    if(in.getPosition() != tl.end) {
+                        throw new ValidityException("top-level item at offset " + tl.start + " ended at offset "
+                                + in.getPosition() + ", expected " + tl.end);
+                    }
+                } finally {
+                    in.close();
+                }
+                ok = true;
+            } finally {
+                decoding.clear(i);
+                if(!ok) {
+                    t.remove(tl.firsthandle, tl.nexthandle);
+                }
+            }
+            decoded.set(i);
+            return t.get(handle);
+        }
+    }
+}
@@ -0,0 +1,527 @@
+package org.unsynchronized;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * <p>
+ * Unsynchronized, buffered input used by the parser.  This takes the place of the
+ * DataInputStream that used to sit on top of the raw stream: data is pulled from the
+ * underlying InputStream in large chunks, and primitives are decoded directly out of the
+ * buffer.  All multi-byte values are big-endian, as written by ObjectOutputStream.
+ * </p>
+ *
+ * <p>
+ * The reader also keeps track of the absolute offset of the next byte to be read,
+ * counted from the point where the reader was created.  See getPosition().  When the
+ * underlying stream is a FileInputStream, earlier ranges of the stream can be re-read
+ * by offset with readRange(), sliceRange() and transferRange().
+ * </p>
+ *
+ * <p>
+ * Instances are not thread-safe.
+ * </p>
+ */
+public class StreamInput implements Closeable {
+    /**
+     * Default size of the internal buffer, in bytes.
+     */
+    public static final int DEFAULT_BUFSIZE = 128 * 1024;
+
+    /**
+     * Initial buffer size of inputs returned by reopen(), which typically read short
+     * ranges.
+     */
+    static final int REOPEN_BUFSIZE = 4096;
+
+    private InputStream in;
+    private FileChannel channel;
+    private long channelbase;
+
+    /**
+     * The current window of stream data.  The buffer's position is the next byte to be
+     * read, and its limit is the end of the valid data.
+     */
+    protected ByteBuffer buf;
+
+    /**
+     * Absolute stream offset of index 0 of buf.
+     */
+    protected long bufoffset;
+
+    /**
+     * Absolute offset at which recording started, or -1 if not recording.
+     */
+    private long recordstart = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param in the stream to read from
+     * @param bufsize initial size of the internal buffer
+     */
+    public StreamInput(InputStream in, int bufsize) {
+        if(bufsize < 16) {
+            bufsize = 16;
+        }
+        this.in = in;
+        this.buf = ByteBuffer.allocate(bufsize);
+        this.buf.limit(0);
+        if(in instanceof FileInputStream) {
+            try {
+                FileChannel fc = ((FileInputStream)in).getChannel();
+                this.channelbase = fc.position();
+                this.channel = fc;
+            } catch (IOException ignore) { }
+        }
+    }
+
+    /**
+     * Constructor; uses a buffer of DEFAULT_BUFSIZE bytes.
+     *
+     * @param in the stream to read from
+     */
+    public StreamInput(InputStream in) {
+        this(in, DEFAULT_BUFSIZE);
+    }
+
+    /**
+     * Constructor for subclasses that supply their own buffer management; fill() must
+     * be overridden.
+     */
+    protected StreamInput() {
+    }
+
+    /**
+     * Gets the absolute offset of the next byte to be read.
+     *
+     * @return the number of bytes consumed so far
+     */
+    public long getPosition() {
+        return bufoffset + buf.position();
+    }
+
+    /**
+     * <p>
+     * Ensures that at least n bytes are available in the buffer, refilling it from the
+     * underlying stream (and growing it, if necessary).  Bytes that were already consumed
+     * may be discarded, unless they were read after a call to record().
+     * </p>
+     *
+     * <p>
+     * The buffer grows by doubling as data arrives, rather than to n bytes at once, so
+     * that a bogus length read from the stream can't commit much more memory than the
+     * stream holds.
+     * </p>
+     *
+     * @param n the number of bytes needed
+     * @throws EOFException if the stream ends before n bytes are available
+     * @throws IOException if an I/O error occurs
+     */
+    protected void fill(int n) throws IOException {
+        if(buf.remaining() >= n) {
+            return;
+        }
+        if(in == null) {
+            throw new EOFException("unexpected end of stream");
+        }
+        int pos = buf.position();
+        int keep = (recordstart >= 0) ? (int)(recordstart - bufoffset) : pos;
+        int need = (pos - keep) + n;
+        buf.position(keep);
+        buf.compact();
+        bufoffset += keep;
+        byte[] b = buf.array();
+        try {
+            while(buf.position() < need) {
+                if(!buf.hasRemaining()) {
+                    ByteBuffer nbuf = ByteBuffer.allocate((int)Math.min(Integer.MAX_VALUE - 8, buf.capacity() * 2L));
+                    buf.flip();
+                    nbuf.put(buf);
+                    buf = nbuf;
+                    b = buf.array();
+                }
+                int r = in.read(b, buf.position(), buf.capacity() - buf.position());
+                if(r < 0) {
+                    throw new EOFException("unexpected end of stream: needed " + n
+                            + " bytes, got " + (buf.position() - (pos - keep)));
+                }
+                buf.position(buf.position() + r);
+            }
+        } finally {
+            buf.flip();
+            buf.position(pos - keep);
+        }
+    }
+
+    public byte readByte() throws IOException {
+        if(!buf.hasRemaining()) {
+            fill(1);
+        }
+        return buf.get();
+    }
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+    public short readShort() throws IOException {
+        if(buf.remaining() < 2) {
+            fill(2);
+        }
+        return buf.getShort();
+    }
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+    public char readChar() throws IOException {
+        if(buf.remaining() < 2) {
+            fill(2);
+        }
+        return buf.getChar();
+    }
+    public int readInt() throws IOException {
+        if(buf.remaining() < 4) {
+            fill(4);
+        }
+        return buf.getInt();
+    }
+    public long readLong() throws IOException {
+        if(buf.remaining() < 8) {
+            fill(8);
+        }
+        return buf.getLong();
+    }
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * Reads exactly b.length bytes into the given array.
+     *
+     * @param b the destination array
+     * @throws EOFException if the stream ends before the array is filled
+     * @throws IOException if an I/O error occurs
+     */
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    /**
+     * Reads exactly len bytes into the given array.  Large reads bypass the internal
+     * buffer.
+     *
+     * @param b the destination array
+     * @param off offset into b
+     * @param len number of bytes to read
+     * @throws EOFException if the stream ends before len bytes are read
+     * @throws IOException if an I/O error occurs
+     */
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        int avail = Math.min(len, buf.remaining());
+        buf.get(b, off, avail);
+        off += avail;
+        len -= avail;
+        if(len == 0) {
+            return;
+        }
+        if(len < buf.capacity() || in == null || recordstart >= 0) {
+            fill(len);
+            buf.get(b, off, len);
+            return;
+        }
+        // The buffer is empty at this point; read the rest straight into the caller's
+        // array and account for it in the offset.
+        bufoffset += buf.position();
+        buf.clear().limit(0);
+        while(len > 0) {
+            int r = in.read(b, off, len);
+            if(r < 0) {
+                throw new EOFException("unexpected end of stream: " + len + " bytes short");
+            }
+            off += r;
+            len -= r;
+            bufoffset += r;
+        }
+    }
+
+    /**
+     * Reads exactly len bytes into a new array.  Large arrays are allocated in growing
+     * chunks as the data arrives, so that a bogus length read from the stream can't
+     * commit much more memory than the stream holds.
+     *
+     * @param len number of bytes to read
+     * @return the bytes
+     * @throws EOFException if the stream ends before len bytes are read
+     * @throws IOException if an I/O error occurs
+     */
+    public byte[] readBytes(int len) throws IOException {
+        if(len <= DEFAULT_BUFSIZE) {
+            byte[] b = new byte[len];
+            readFully(b);
+            return b;
+        }
+        byte[] b = new byte[DEFAULT_BUFSIZE];
+        int off = 0;
+        while(true) {
+            readFully(b, off, b.length - off);
+            off = b.length;
+            if(off == len) {
+                return b;
+            }
+            b = Arrays.copyOf(b, (int)Math.min(len, b.length * 2L));
+        }
+    }
+
+    /**
+     * Skips exactly n bytes.
+     *
+     * @param n number of bytes to skip
+     * @throws EOFException if the stream ends before n bytes are skipped
+     * @throws IOException if an I/O error occurs
+     */
+    public void skipFully(long n) throws IOException {
+        while(n > 0) {
+            if(!buf.hasRemaining()) {
+                fill(1);
+            }
+            int s = (int)Math.min(n, buf.remaining());
+            buf.position(buf.position() + s);
+            n -= s;
+        }
+    }
+
+    /**
+     * Reads a string in the modified UTF-8 format used by DataOutput.writeUTF(): a
+     * two-byte unsigned length, followed by the encoded bytes.  The bytes are decoded in
+     * place, without an intermediate copy.
+     *
+     * @return the decoded string
+     * @throws UTFDataFormatException if the encoding is malformed
+     * @throws IOException if an I/O error occurs
+     */
+    public String readUTF() throws IOException {
+        int len = readUnsignedShort();
+        fill(len);
+        return ModifiedUTF8.decode(buf, len, false);
+    }
+
+    /**
+     * Starts recording at the current position.  Until recording is stopped, data read
+     * from this point on is retained in the buffer, and can be retrieved by
+     * getRecordedData().  If recording is already active, it is restarted.
+     */
+    public void record() {
+        recordstart = getPosition();
+    }
+
+    /**
+     * Stops recording.
+     */
+    public void stopRecording() {
+        recordstart = -1;
+    }
+
+    /**
+     * Returns a copy of the data read since record() was called; if recording is not
+     * active, an empty array is returned.
+     *
+     * @return the recorded data
+     * @throws IOException if an I/O error occurs while retrieving the data
+     */
+    public byte[] getRecordedData() throws IOException {
+        if(recordstart < 0) {
+            return new byte[0];
+        }
+        return readRange(recordstart, getPosition());
+    }
+
+    /**
+     * Tells whether arbitrary earlier ranges of the stream can be retrieved with
+     * readRange().  If not, only data still held in the buffer (e.g. data read since
+     * record() was called) is available.
+     *
+     * @return true iff the input can be re-read by offset
+     */
+    public boolean isSeekable() {
+        return channel != null;
+    }
+
+    /**
+     * Returns a copy of the stream data between two absolute offsets.  This doesn't
+     * affect the current position.
+     *
+     * @param start offset of the first byte
+     * @param end offset just past the last byte
+     * @return the data
+     * @throws IOException if the data is no longer available, or an I/O error occurs
+     */
+    public byte[] readRange(long start, long end) throws IOException {
+        if(end < start || start < 0) {
+            throw new IOException("invalid stream range: " + start + "-" + end);
+        }
+        byte[] data = new byte[(int)(end - start)];
+        if(start >= bufoffset && end <= bufoffset + buf.limit()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + (int)(start - bufoffset), data, 0, data.length);
+            return data;
+        }
+        if(channel == null) {
+            throw new IOException("stream range no longer available: " + start + "-" + end);
+        }
+        ByteBuffer dst = ByteBuffer.wrap(data);
+        while(dst.hasRemaining()) {
+            if(channel.read(dst, channelbase + start + dst.position()) < 0) {
+                throw new EOFException("unexpected end of file reading range " + start + "-" + end);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Returns a read-only view of the stream data between two absolute offsets, e.g.
+     * the range of a content item (see content.getStreamStart()).  This doesn't affect
+     * the current position.  A MappedStreamInput returns a view of the mapped file,
+     * without copying the data; other inputs return a copy, as readRange() does.
+     *
+     * @param start offset of the first byte
+     * @param end offset just past the last byte
+     * @return a buffer whose position is 0 and whose limit is end - start
+     * @throws IOException if the data is no longer available, or an I/O error occurs
+     */
+    public ByteBuffer sliceRange(long start, long end) throws IOException {
+        return ByteBuffer.wrap(readRange(start, end)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the stream data between two absolute offsets to a channel.  This doesn't
+     * affect the current position.  If the input is a file, the data is moved with
+     * FileChannel.transferTo(), which can pass it from the file to the target (another
+     * file, or a socket) without copying it through the heap.
+     *
+     * @param start offset of the first byte
+     * @param end offset just past the last byte
+     * @param target the channel to write to; it must be in blocking mode
+     * @return the number of bytes written
+     * @throws IOException if the data is no longer available, or an I/O error occurs
+     */
+    public long transferRange(long start, long end, WritableByteChannel target) throws IOException {
+        if(end < start || start < 0) {
+            throw new IOException("invalid stream range: " + start + "-" + end);
+        }
+        if(channel != null) {
+            return transfer(channel, channelbase + start, end - start, target);
+        }
+        ByteBuffer src = sliceRange(start, end);
+        while(src.hasRemaining()) {
+            target.write(src);
+        }
+        return end - start;
+    }
+
+    /**
+     * Transfers len bytes of a file, starting at the given file position, to a channel.
+     */
+    static long transfer(FileChannel fc, long pos, long len, WritableByteChannel target) throws IOException {
+        long done = 0;
+        while(done < len) {
+            long n = fc.transferTo(pos + done, len - done, target);
+            if(n <= 0) {
+                if(pos + done >= fc.size()) {
+                    throw new EOFException("unexpected end of file transferring range at offset " + (pos + done));
+                }
+                throw new IOException("channel accepted no data");
+            }
+            done += n;
+        }
+        return len;
+    }
+
+    /**
+     * Opens a new input that reads this input's data from the given absolute offset.
+     * Offsets reported by the new input are absolute too.  The new input shares the
+     * underlying file, which must stay open while it's in use; closing the new input
+     * doesn't close the file.  Only seekable inputs can be reopened.
+     *
+     * @param start offset of the first byte to read
+     * @return the new input
+     * @throws IOException if the input isn't seekable, or an I/O error occurs
+     */
+    public StreamInput reopen(final long start) throws IOException {
+        if(channel == null) {
+            throw new IOException("input can't be reopened: not seekable");
+        }
+        final FileChannel fc = channel;
+        final long base = channelbase;
+        StreamInput si = new StreamInput(new InputStream() {
+            private long pos = base + start;
+
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+            }
+            public int read(byte[] b, int off, int len) throws IOException {
+                int r = fc.read(ByteBuffer.wrap(b, off, len), pos);
+                if(r > 0) {
+                    pos += r;
+                }
+                return r;
+            }
+        }, REOPEN_BUFSIZE);
+        si.bufoffset = start;
+        si.channel = fc;
+        si.channelbase = base;
+        return si;
+    }
+
+    /**
+     * <p>
+     * Returns a read-only view of the next len bytes of the stream, and advances past
+     * them.
+     * </p>
+     *
+     * <p>
+     * If hasStableSlices() returns false, the returned buffer may share storage with
+     * the internal buffer, and is only valid until the next read from this object;
+     * callers that need to hold on to the data must copy it.
+     * </p>
+     *
+     * @param len number of bytes
+     * @return a buffer whose position is 0 and whose limit is len
+     * @throws EOFException if the stream ends before len bytes are available
+     * @throws IOException if an I/O error occurs
+     */
+    public ByteBuffer readSlice(int len) throws IOException {
+        if(len > buf.capacity() && buf.remaining() < len && recordstart < 0) {
+            return ByteBuffer.wrap(readBytes(len)).asReadOnlyBuffer();
+        }
+        fill(len);
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(buf.position() + len);
+        buf.position(buf.position() + len);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Tells whether buffers returned by readSlice() remain valid after subsequent reads.
+     * This is true for memory-mapped input.
+     *
+     * @return true iff slices can be retained without copying
+     */
+    public boolean hasStableSlices() {
+        return false;
+    }
+
+    /**
+     * Closes the underlying stream.
+     */
+    public void close() throws IOException {
+        if(in != null) {
+            in.close();
+        }
+    }
+}
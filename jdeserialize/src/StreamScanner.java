@@ -0,0 +1,627 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>
+ * Validate-only reader for serialized streams.  scan() walks the stream grammar and
+ * checks that the stream is structurally valid, without building any content: no
+ * instance, array, string or blockdata objects are created, and the payloads of
+ * strings, blockdata, primitive field values and primitive arrays are skipped by their
+ * lengths rather than decoded.  This is meant for vetting streams (e.g. incoming blobs)
+ * much faster than jdeserialize.run() can decode them.
+ * </p>
+ *
+ * <p>
+ * The only state that's kept is what's needed to read the rest of the stream: the
+ * class descriptions, which give the layout of their instances' data (see ReadPlan),
+ * and, for every other handle, what kind of item it was assigned to, so that
+ * back-references can be checked.  Both are dropped at each TC_RESET.  Objects and
+ * arrays are read with an explicit stack, as in jdeserialize, so deep object graphs
+ * don't need a large thread stack.
+ * </p>
+ *
+ * <p>
+ * A stream that scans cleanly would also be accepted by run(), with a few exceptions,
+ * since nothing is decoded: the modified UTF-8 of strings and field names isn't
+ * checked, and neither are field type strings (only their handles are).  Member
+ * classes aren't connected either, so the checks connectMemberClasses() makes are
+ * skipped.  Class descriptions are validated as soon as they're read, and the enum
+ * checks are made when an enum constant is read.  As in run(), an exception object
+ * embedded in the stream ends the item it's embedded in.
+ * </p>
+ *
+ * <p>
+ * A StreamScanner can be reused for any number of streams, but isn't thread-safe.
+ * </p>
+ */
+public class StreamScanner {
+    /**
+     * Handle table entries for items other than class descriptions.
+     */
+    private static final Object STRING = "string";
+    private static final Object OBJECT = "object";
+
+    /**
+     * State of an object or array whose contents are being scanned.
+     */
+    private static class frame {
+        ReadPlan plan;              // null for arrays
+        int cls;                    // index in plan.classes of the class being read
+        int ref;                    // index of the next object field, or -1 before the class data
+        boolean annotation;         // true while reading an annotation
+        fieldtype ft;               // array component type
+        int size;
+        int idx;                    // index of the next array element
+        byte tc;                    // typecode of the nested item to read next
+        boolean blockdata;
+    }
+
+    private StreamInput in;
+    private ParseStats stats;
+    private ParseLimits limits;
+    private Object[] handles = new Object[256];
+    private int nhandles;
+    private long totalhandles;                  // handles assigned in the stream, for limits
+    private long ninstances;
+    private frame[] frames = new frame[16];
+    private int depth;
+    private int descdepth;                      // nesting of class descriptions being read
+
+    /**
+     * Constructor.
+     */
+    public StreamScanner() {
+    }
+
+    /**
+     * Sets the resource budgets for scanning; see ParseLimits.  Payloads are skipped
+     * rather than read, so the limits on their lengths only matter as policy, but the
+     * depth and handle limits also bound the memory the scanner uses.
+     *
+     * @param limits the limits, or null for none
+     */
+    public void setLimits(ParseLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Gets the resource budgets for scanning.
+     *
+     * @return the limits, or null if there are none
+     */
+    public ParseLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Scans an entire ObjectOutputStream output from the given StreamInput, checking
+     * that it's valid.
+     *
+     * @param in the input to read from; it is closed when the scan completes
+     * @return statistics about the stream: typecode counts, the largest string, array
+     * and blockdata, and the time spent and bytes read (in the READ phase)
+     * @throws ValidityException if the stream isn't valid
+     * @throws IOException if the stream isn't valid, or an I/O error occurs; the message
+     * gives the offset at which the error was detected
+     */
+    public ParseStats scan(StreamInput in) throws IOException {
+        this.in = in;
+        this.stats = new ParseStats();
+        this.totalhandles = 0;
+        this.ninstances = 0;
+        long startpos = in.getPosition();
+        long start = -1;
+        stats.start();
+        try {
+            short magic = in.readShort();
+            if(magic != ObjectStreamConstants.STREAM_MAGIC) {
+                throw new ValidityException("file magic mismatch!  expected " + ObjectStreamConstants.STREAM_MAGIC + ", got " + magic);
+            }
+            short streamversion = in.readShort();
+            if(streamversion != ObjectStreamConstants.STREAM_VERSION) {
+                throw new ValidityException("file version mismatch!  expected " + ObjectStreamConstants.STREAM_VERSION + ", got " + streamversion);
+            }
+            reset();
+            while(true) {
+                byte tc;
+                try {
+                    start = in.getPosition();
+                    tc = in.readByte();
+                } catch (EOFException eoe) {
+                    break;
+                }
+                if(tc == ObjectStreamConstants.TC_RESET) {
+                    stats.typecode(tc);
+                    reset();
+                    continue;
+                }
+                try {
+                    content(tc, true);
+                } catch (ExceptionReadException ere) {
+                    // The item the exception was embedded in is abandoned.
+                    depth = 0;
+                    descdepth = 0;
+                }
+            }
+            return stats;
+        } catch (IOException ioe) {
+            throw jdeserialize.atOffset(ioe, in.getPosition(), start);
+        } finally {
+            stats.end(ParseStats.phase.READ, in.getPosition() - startpos);
+            this.in = null;
+            depth = 0;
+            descdepth = 0;
+            reset();
+            try {
+                in.close();
+            } catch (Exception ignore) { }
+        }
+    }
+
+    /**
+     * Reads a content item, including any objects and arrays nested inside it.
+     */
+    private void content(byte tc, boolean blockdata) throws IOException {
+        int base = depth;
+        start(tc, blockdata);
+        while(depth > base) {
+            frame f = frames[depth - 1];
+            if(step(f)) {
+                start(f.tc, f.blockdata);
+            } else {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Starts reading a content item.  Objects, and arrays of objects, are only begun: a
+     * frame is pushed for their contents.  Every other item is read completely.
+     */
+    private void start(byte tc, boolean blockdata) throws IOException {
+        stats.typecode(tc);
+        if(limits != null) {
+            limits.checkBytes(in.getPosition(), 0);
+        }
+        switch(tc) {
+            case ObjectStreamConstants.TC_OBJECT:
+                newObject();
+                break;
+            case ObjectStreamConstants.TC_CLASS:
+                if(classDesc(false) == null) {
+                    throw new ValidityException("null class description for a class object");
+                }
+                setHandle(newHandle(), OBJECT);
+                break;
+            case ObjectStreamConstants.TC_ARRAY:
+                newArray();
+                break;
+            case ObjectStreamConstants.TC_STRING:
+            case ObjectStreamConstants.TC_LONGSTRING:
+                newString(tc);
+                break;
+            case ObjectStreamConstants.TC_ENUM:
+                newEnum();
+                break;
+            case ObjectStreamConstants.TC_CLASSDESC:
+            case ObjectStreamConstants.TC_PROXYCLASSDESC:
+                classDesc(tc, true);
+                break;
+            case ObjectStreamConstants.TC_REFERENCE:
+                reference();
+                break;
+            case ObjectStreamConstants.TC_NULL:
+                break;
+            case ObjectStreamConstants.TC_EXCEPTION:
+                exception();
+                break;
+            case ObjectStreamConstants.TC_BLOCKDATA:
+            case ObjectStreamConstants.TC_BLOCKDATALONG:
+                if(blockdata == false) {
+                    throw new IOException("got a blockdata TC_*, but not allowed here: " + jdeserialize.hex(tc));
+                }
+                blockdata(tc);
+                break;
+            default:
+                throw new IOException("unknown content tc byte in stream: " + jdeserialize.hex(tc));
+        }
+    }
+
+    /**
+     * Scans the contents of the object or array in the given frame, up to its next
+     * object-valued field, array element or annotation item, whose typecode is left in
+     * f.tc.
+     *
+     * @return false if the object or array has been completely read
+     */
+    private boolean step(frame f) throws IOException {
+        if(f.plan == null) {
+            if(f.idx == f.size) {
+                return false;
+            }
+            f.tc = objectTc(f.ft);
+            f.blockdata = false;
+            f.idx++;
+            return true;
+        }
+        ReadPlan plan = f.plan;
+        while(f.cls < plan.classes.length) {
+            if(f.annotation) {
+                byte tc = in.readByte();
+                if(tc == ObjectStreamConstants.TC_ENDBLOCKDATA) {
+                    stats.typecode(tc);
+                    f.annotation = false;
+                    f.cls++;
+                    f.ref = -1;
+                } else if(tc == ObjectStreamConstants.TC_RESET) {
+                    stats.typecode(tc);
+                    reset();
+                } else {
+                    f.tc = tc;
+                    f.blockdata = true;
+                    return true;
+                }
+                continue;
+            }
+            byte action = plan.actions[f.cls];
+            if(f.ref < 0) {
+                switch(action) {
+                    case ReadPlan.FIELDS:
+                    case ReadPlan.FIELDS_ANNOTATED:
+                        f.ref = 0;
+                        break;
+                    case ReadPlan.EXTERNAL:
+                        f.annotation = true;
+                        continue;
+                    case ReadPlan.INVALID:
+                        throw plan.invalid(f.cls);
+                    default:
+                        f.cls++;
+                        continue;
+                }
+            }
+            fieldtype[] refs = plan.reftypes[f.cls];
+            skip(plan.gaps[f.cls][f.ref]);
+            if(f.ref < refs.length) {
+                f.tc = objectTc(refs[f.ref++]);
+                f.blockdata = false;
+                return true;
+            }
+            if(action == ReadPlan.FIELDS_ANNOTATED) {
+                f.annotation = true;
+                continue;
+            }
+            f.cls++;
+            f.ref = -1;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the typecode of a value of object or array type.
+     */
+    private byte objectTc(fieldtype ft) throws IOException {
+        byte stc = in.readByte();
+        if(ft == fieldtype.ARRAY && stc != ObjectStreamConstants.TC_ARRAY) {
+            throw new IOException("array type listed, but typecode is not TC_ARRAY: " + jdeserialize.hex(stc));
+        }
+        return stc;
+    }
+
+    private frame push() throws LimitExceededException {
+        if(limits != null) {
+            limits.checkDepth(depth + descdepth + 1);
+        }
+        if(depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+        }
+        frame f = frames[depth];
+        if(f == null) {
+            f = new frame();
+            frames[depth] = f;
+        }
+        depth++;
+        f.cls = 0;
+        f.ref = -1;
+        f.annotation = false;
+        f.idx = 0;
+        return f;
+    }
+
+    private void newObject() throws IOException {
+        classdesc cd = classDesc(false);
+        if(cd == null) {
+            throw new ValidityException("null class description for an object");
+        }
+        setHandle(newHandle(), OBJECT);
+        if(limits != null) {
+            limits.checkInstances(++ninstances);
+        }
+        frame f = push();
+        f.plan = ReadPlan.of(cd);
+    }
+
+    private void newArray() throws IOException {
+        classdesc cd = classDesc(false);
+        if(cd == null) {
+            throw new ValidityException("null class description for an array");
+        }
+        setHandle(newHandle(), OBJECT);
+        fieldtype ft = ReadPlan.of(cd).component;
+        if(ft == null) {
+            if(cd.name.length() < 2) {
+                throw new IOException("invalid name in array classdesc: " + cd.name);
+            }
+            ft = fieldtype.get((byte)cd.name.charAt(1));
+        }
+        int size = in.readInt();
+        if(size < 0) {
+            throw new IOException("invalid array size: " + size);
+        }
+        if(limits != null) {
+            limits.checkArray(size);
+            limits.checkBytes(in.getPosition(), (long)size * ft.getSize());
+        }
+        stats.array(size);
+        if(ft.isPrimitive()) {
+            skip((long)size * ft.getSize());
+            return;
+        }
+        frame f = push();
+        f.plan = null;
+        f.ft = ft;
+        f.size = size;
+    }
+
+    /**
+     * Reads a string: either a new one, after TC_STRING or TC_LONGSTRING, or a
+     * reference to one.
+     */
+    private void string(byte tc) throws IOException {
+        if(tc == ObjectStreamConstants.TC_REFERENCE) {
+            if(reference() != STRING) {
+                throw new IOException("got reference for a string, but referenced value was something else!");
+            }
+        } else if(tc == ObjectStreamConstants.TC_NULL) {
+            throw new ValidityException("stream signaled TC_NULL when string type expected!");
+        } else {
+            newString(tc);
+        }
+    }
+
+    private void newString(byte tc) throws IOException {
+        int handle = newHandle();
+        long len;
+        if(tc == ObjectStreamConstants.TC_STRING) {
+            len = in.readUnsignedShort();
+        } else if(tc == ObjectStreamConstants.TC_LONGSTRING) {
+            len = in.readLong();
+            if(len < 0) {
+                throw new IOException("invalid long string length: " + len);
+            }
+            if(len > Integer.MAX_VALUE) {
+                throw new IOException("long string is too long: " + len);
+            }
+        } else {
+            throw new IOException("invalid tc byte in string: " + jdeserialize.hex(tc));
+        }
+        if(limits != null) {
+            limits.checkString(len);
+            limits.checkBytes(in.getPosition(), len);
+        }
+        stats.string(len);
+        skip(len);
+        setHandle(handle, STRING);
+    }
+
+    private void newEnum() throws IOException {
+        classdesc cd = classDesc(false);
+        if(cd == null) {
+            throw new IOException("enum classdesc can't be null!");
+        }
+        if((cd.descflags & ObjectStreamConstants.SC_ENUM) == 0) {
+            throw new ValidityException("non-enum classes shouldn't have enum constants!");
+        }
+        int handle = newHandle();
+        string(in.readByte());
+        // jdeserialize files the constant's name under the enum's handle, so references
+        // to it are accepted wherever a string is.
+        setHandle(handle, STRING);
+    }
+
+    private void blockdata(byte tc) throws IOException {
+        int size;
+        if(tc == ObjectStreamConstants.TC_BLOCKDATA) {
+            size = in.readUnsignedByte();
+        } else {
+            size = in.readInt();
+        }
+        if(size < 0) {
+            throw new IOException("invalid value for blockdata size: " + size);
+        }
+        if(limits != null) {
+            limits.checkBlockdata(size);
+            limits.checkBytes(in.getPosition(), size);
+        }
+        stats.blockdata(size);
+        skip(size);
+    }
+
+    /**
+     * Reads an exception object (after TC_EXCEPTION), then abandons the item it's
+     * embedded in, if any, by throwing ExceptionReadException.
+     */
+    private void exception() throws IOException {
+        reset();
+        byte tc = in.readByte();
+        if(tc == ObjectStreamConstants.TC_RESET) {
+            throw new ValidityException("TC_RESET for object while reading exception: what should we do?");
+        } else if(tc == ObjectStreamConstants.TC_NULL) {
+            throw new ValidityException("stream signaled for an exception, but exception object was null!");
+        } else if(tc != ObjectStreamConstants.TC_OBJECT && tc != ObjectStreamConstants.TC_EXCEPTION) {
+            throw new ValidityException("stream signaled for an exception, but content is not an object!");
+        }
+        content(tc, false);
+        reset();
+        throw new ExceptionReadException(null);
+    }
+
+    /**
+     * Reads a class description, a reference to one, or null, as the spec grammar rule
+     * "classDesc".
+     */
+    private classdesc classDesc(boolean mustBeNew) throws IOException {
+        byte tc = in.readByte();
+        stats.typecode(tc);
+        return classDesc(tc, mustBeNew);
+    }
+    private classdesc classDesc(byte tc, boolean mustBeNew) throws IOException {
+        if(tc != ObjectStreamConstants.TC_CLASSDESC && tc != ObjectStreamConstants.TC_PROXYCLASSDESC) {
+            return decodeClassDesc(tc, mustBeNew);
+        }
+        // A description's annotation and superclass description are read recursively,
+        // so they count towards the depth limit.
+        if(limits != null) {
+            limits.checkDepth(depth + descdepth + 1);
+        }
+        descdepth++;
+        try {
+            return decodeClassDesc(tc, mustBeNew);
+        } finally {
+            descdepth--;
+        }
+    }
+    private classdesc decodeClassDesc(byte tc, boolean mustBeNew) throws IOException {
+        if(tc == ObjectStreamConstants.TC_CLASSDESC) {
+            String name = in.readUTF();
+            long serialVersionUID = in.readLong();
+            int handle = newHandle();
+            byte descflags = in.readByte();
+            short nfields = in.readShort();
+            if(nfields < 0) {
+                throw new IOException("invalid field count: " + nfields);
+            }
+            field[] fields = new field[nfields];
+            for(short s = 0; s < nfields; s++) {
+                if(limits != null) {
+                    limits.checkBytes(in.getPosition(), 0);
+                }
+                byte ftype = in.readByte();
+                if(ftype == 'B' || ftype == 'C' || ftype == 'D'
+                        || ftype == 'F' || ftype == 'I' || ftype == 'J'
+                        || ftype == 'S' || ftype == 'Z') {
+                    skip(in.readUnsignedShort());
+                } else if(ftype == '[' || ftype == 'L') {
+                    skip(in.readUnsignedShort());
+                    byte stc = in.readByte();
+                    stats.typecode(stc);
+                    string(stc);
+                } else {
+                    throw new IOException("invalid field type char: " + jdeserialize.hex(ftype));
+                }
+                fields[s] = new field(fieldtype.get(ftype), null);
+            }
+            classdesc cd = new classdesc(classdesctype.NORMALCLASS);
+            cd.name = name;
+            cd.serialVersionUID = serialVersionUID;
+            cd.handle = handle;
+            cd.descflags = descflags;
+            cd.fields = fields;
+            classAnnotation();
+            cd.superclass = classDesc(false);
+            cd.validate();
+            setHandle(handle, cd);
+            return cd;
+        } else if(tc == ObjectStreamConstants.TC_NULL) {
+            if(mustBeNew) {
+                throw new ValidityException("expected new class description -- got null!");
+            }
+            return null;
+        } else if(tc == ObjectStreamConstants.TC_REFERENCE) {
+            if(mustBeNew) {
+                throw new ValidityException("expected new class description -- got a reference!");
+            }
+            Object o = reference();
+            if(!(o instanceof classdesc)) {
+                throw new IOException("referenced object not a class description!");
+            }
+            return (classdesc)o;
+        } else if(tc == ObjectStreamConstants.TC_PROXYCLASSDESC) {
+            int handle = newHandle();
+            int icount = in.readInt();
+            if(icount < 0) {
+                throw new IOException("invalid proxy interface count: " + jdeserialize.hex(icount));
+            }
+            for(int i = 0; i < icount; i++) {
+                skip(in.readUnsignedShort());
+            }
+            classdesc cd = new classdesc(classdesctype.PROXYCLASS);
+            cd.name = "(proxy class; no name)";
+            cd.handle = handle;
+            cd.fields = new field[0];
+            classAnnotation();
+            cd.superclass = classDesc(false);
+            setHandle(handle, cd);
+            return cd;
+        } else {
+            throw new ValidityException("expected a valid class description starter got " + jdeserialize.hex(tc));
+        }
+    }
+
+    private void classAnnotation() throws IOException {
+        while(true) {
+            byte tc = in.readByte();
+            if(tc == ObjectStreamConstants.TC_ENDBLOCKDATA) {
+                stats.typecode(tc);
+                return;
+            } else if(tc == ObjectStreamConstants.TC_RESET) {
+                stats.typecode(tc);
+                reset();
+            } else {
+                content(tc, true);
+            }
+        }
+    }
+
+    /**
+     * Reads a back-reference, and returns the handle table entry it refers to.
+     */
+    private Object reference() throws IOException {
+        int handle = in.readInt();
+        int i = handle - ObjectStreamConstants.baseWireHandle;
+        if(i < 0 || i >= nhandles || handles[i] == null) {
+            throw new ValidityException("can't find an entry for handle " + jdeserialize.hex(handle));
+        }
+        return handles[i];
+    }
+
+    /**
+     * Assigns the next handle; its entry is filled in by setHandle() once the item has
+     * been read.
+     *
+     * @return the index of the handle's entry
+     */
+    private int newHandle() throws LimitExceededException {
+        if(limits != null) {
+            limits.checkHandles(++totalhandles);
+        }
+        if(nhandles == handles.length) {
+            handles = Arrays.copyOf(handles, nhandles * 2);
+        }
+        return nhandles++;
+    }
+    private void setHandle(int i, Object entry) {
+        handles[i] = entry;
+    }
+    private void reset() {
+        Arrays.fill(handles, 0, nhandles, null);
+        nhandles = 0;
+    }
+
+    private void skip(long n) throws IOException {
+        if(n > 0) {
+            in.skipFully(n);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>
+ * Receiver for parse events generated by jdeserialize, in the style of a SAX
+ * ContentHandler.  Events are delivered in stream order while the stream is being read;
+ * nested content (e.g. an object stored in a field) generates its events before the
+ * event that delivers it to its container.
+ * </p>
+ *
+ * <p>
+ * The content objects passed to these methods are the parser's representations of each
+ * item (an instance with its class description and handle, a string with its value,
+ * etc.).  The parser itself only fills in what it needs to interpret the rest of the
+ * stream; it's up to the visitor to assemble field values, array elements, and
+ * top-level items into a graph, if it wants one.  TreeBuilder is the visitor that does
+ * so, and is what jdeserialize.run(InputStream, boolean) uses.
+ * </p>
+ *
+ * <p>
+ * Handles: see content.getHandle() for a description.  Every event that announces new
+ * content carries (or is passed an object carrying) the handle assigned to it; later
+ * references to it are announced with reference().
+ * </p>
+ *
+ * <p>
+ * StreamVisitorAdapter provides empty implementations of every method.
+ * </p>
+ *
+ * @see jdeserialize#run(StreamInput, StreamVisitor)
+ */
+public interface StreamVisitor {
+    /**
+     * Called when the stream resets its handle table (TC_RESET, and before and after a
+     * serialized exception).  Handles announced before this point won't be referred to
+     * again.
+     */
+    public void reset();
+
+    /**
+     * Called when a new class description has been completely read (including its
+     * annotations and superclass description).
+     *
+     * @param cd the class description
+     */
+    public void classDesc(classdesc cd);
+
+    /**
+     * Called when a new object (TC_OBJECT) begins, before any of its data is read.
+     *
+     * @param inst the object; its classdesc and handle are set
+     */
+    public void startObject(instance inst);
+
+    /**
+     * Called before the serialized field values of one class in the object's hierarchy
+     * are read.  Classes are visited in the order given by classdesc.getHierarchy(); this
+     * is only called for Serializable classes.
+     *
+     * @param inst the object being read
+     * @param cd the class whose fields follow
+     */
+    public void startClassData(instance inst, classdesc cd);
+
+    /**
+     * Called for each primitive field value of the current class.
+     *
+     * @param f the field
+     * @param value the value
+     */
+    public void fieldValue(field f, byte value);
+    public void fieldValue(field f, char value);
+    public void fieldValue(field f, short value);
+    public void fieldValue(field f, int value);
+    public void fieldValue(field f, long value);
+    public void fieldValue(field f, float value);
+    public void fieldValue(field f, double value);
+    public void fieldValue(field f, boolean value);
+
+    /**
+     * Called for each object or array field value of the current class.
+     *
+     * @param f the field
+     * @param value the value; may be null.  If the value is a reference to a handle that
+     * the parser didn't retain, this is null as well (see reference()).
+     */
+    public void fieldValue(field f, content value);
+
+    /**
+     * Called when the object annotation data of one class in the object's hierarchy has
+     * been read (data written by writeObject() or writeExternal()).
+     *
+     * @param inst the object being read
+     * @param cd the class that wrote the annotation
+     * @param annotations the content written, in order
+     */
+    public void objectAnnotation(instance inst, classdesc cd, List<content> annotations);
+
+    /**
+     * Called when an object has been completely read.
+     *
+     * @param inst the object
+     */
+    public void endObject(instance inst);
+
+    /**
+     * Called when a new array begins, before any of its values are read.
+     *
+     * @param arr the array; its classdesc and handle are set.  For arrays of primitives,
+     * arr.data is filled in by the time endArray() is called; for other arrays, the
+     * elements are delivered through arrayElement(), and arr.data is left empty.
+     * @param size the number of elements
+     */
+    public void startArray(arrayobj arr, int size);
+
+    /**
+     * Called for each element of an array of objects or arrays.
+     *
+     * @param arr the array
+     * @param index the index of the element
+     * @param value the element; may be null
+     */
+    public void arrayElement(arrayobj arr, int index, content value);
+
+    /**
+     * Called when an array has been completely read.
+     *
+     * @param arr the array
+     */
+    public void endArray(arrayobj arr);
+
+    /**
+     * Called when a new string has been read.
+     *
+     * @param s the string
+     */
+    public void string(stringobj s);
+
+    /**
+     * Called when a block of data has been read.
+     *
+     * @param bd the block data
+     */
+    public void blockdata(blockdata bd);
+
+    /**
+     * Called when a reference to a previously-read item (TC_REFERENCE) is read.
+     *
+     * @param handle the handle referred to
+     * @param c the content with that handle, or null if the parser didn't retain it
+     */
+    public void reference(int handle, content c);
+
+    /**
+     * Called when a new Class object (TC_CLASS) has been read.
+     *
+     * @param c the class object
+     */
+    public void newClass(classobj c);
+
+    /**
+     * Called when a new enum constant (TC_ENUM) has been read.
+     *
+     * @param e the enum constant
+     */
+    public void newEnum(enumobj e);
+
+    /**
+     * Called when a serialized exception has been read.  Any objects that were still
+     * being read when the exception was written are abandoned; no further events will be
+     * delivered for them.
+     *
+     * @param ex the exception object
+     */
+    public void exception(content ex);
+
+    /**
+     * Called when a top-level content item has been completely read.  Each call generally
+     * corresponds to a call to an ObjectOutputStream writeXXX() method.
+     *
+     * @param c the item; may be null, or an exceptionstate if the item was interrupted
+     * by an exception
+     */
+    public void topLevel(content c);
+}
@@ -0,0 +1,35 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+/**
+ * A StreamVisitor with empty implementations of every method, for visitors that are
+ * only interested in a few events.
+ */
+public class StreamVisitorAdapter implements StreamVisitor {
+    public void reset() { }
+    public void classDesc(classdesc cd) { }
+    public void startObject(instance inst) { }
+    public void startClassData(instance inst, classdesc cd) { }
+    public void fieldValue(field f, byte value) { }
+    public void fieldValue(field f, char value) { }
+    public void fieldValue(field f, short value) { }
+    public void fieldValue(field f, int value) { }
+    public void fieldValue(field f, long value) { }
+    public void fieldValue(field f, float value) { }
+    public void fieldValue(field f, double value) { }
+    public void fieldValue(field f, boolean value) { }
+    public void fieldValue(field f, content value) { }
+    public void objectAnnotation(instance inst, classdesc cd, List<content> annotations) { }
+    public void endObject(instance inst) { }
+    public void startArray(arrayobj arr, int size) { }
+    public void arrayElement(arrayobj arr, int index, content value) { }
+    public void endArray(arrayobj arr) { }
+    public void string(stringobj s) { }
+    public void blockdata(blockdata bd) { }
+    public void reference(int handle, content c) { }
+    public void newClass(classobj c) { }
+    public void newEnum(enumobj e) { }
+    public void exception(content ex) { }
+    public void topLevel(content c) { }
+}
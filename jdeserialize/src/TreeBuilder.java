@@ -0,0 +1,141 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>
+ * StreamVisitor that assembles parse events into the content graph: it fills in the
+ * field data and annotations of each instance and the elements of each array, and
+ * collects the top-level content items in a list.  This is the visitor used by
+ * jdeserialize.run(InputStream, boolean).
+ * </p>
+ *
+ * <p>
+ * An instance's field data and annotations (and an array's elements) are only assigned
+ * once the object has been completely read; objects that were interrupted by a
+ * serialized exception are left as they were when they were first announced.
+ * </p>
+ */
+public class TreeBuilder extends StreamVisitorAdapter {
+    /**
+     * State of an object or array that is still being read.
+     */
+    private static class frame {
+        FieldLayout layout;
+        long[] prims;
+        Object[] refs;
+        int nprim;
+        int nref;
+        Map<classdesc, List<content>> annotations;
+        arraycoll elements;
+    }
+
+    private ArrayList<frame> stack = new ArrayList<frame>();
+    private ArrayList<content> content = new ArrayList<content>();
+
+    /**
+     * Gets the top-level content items read so far.
+     *
+     * @return the list of items
+     * @see jdeserialize#getContent()
+     */
+    public ArrayList<content> getContent() {
+        return content;
+    }
+
+    private frame top() {
+        return stack.get(stack.size() - 1);
+    }
+    private frame pop() {
+        return stack.remove(stack.size() - 1);
+    }
+    private void put(long value) {
+        frame fr = top();
+        fr.prims[fr.nprim++] = value;
+    }
+
+    /**
+     * Field values are stored in the slots of the instance's FieldLayout, in the order
+     * they're read; the events arrive in the same order the layout was computed in.
+     */
+    public void startObject(instance inst) {
+        frame fr = new frame();
+        fr.layout = FieldLayout.of(inst.classdesc);
+        fr.prims = new long[fr.layout.nprims];
+        fr.refs = new Object[fr.layout.nrefs];
+        stack.add(fr);
+    }
+    public void fieldValue(field f, byte value) {
+        put(value);
+    }
+    public void fieldValue(field f, char value) {
+        put(value);
+    }
+    public void fieldValue(field f, short value) {
+        put(value);
+    }
+    public void fieldValue(field f, int value) {
+        put(value);
+    }
+    public void fieldValue(field f, long value) {
+        put(value);
+    }
+    public void fieldValue(field f, float value) {
+        put(FieldLayout.toSlot(value));
+    }
+    public void fieldValue(field f, double value) {
+        put(FieldLayout.toSlot(value));
+    }
+    public void fieldValue(field f, boolean value) {
+        put(FieldLayout.toSlot(value));
+    }
+    public void fieldValue(field f, content value) {
+        frame fr = top();
+        fr.refs[fr.nref++] = value;
+    }
+    public void objectAnnotation(instance inst, classdesc cd, List<content> annotations) {
+        frame fr = top();
+        if(fr.annotations == null) {
+            fr.annotations = new HashMap<classdesc, List<content>>();
+        }
+        fr.annotations.put(cd, annotations);
+    }
+    public void endObject(instance inst) {
+        frame fr = pop();
+        inst.setFieldValues(fr.layout, fr.prims, fr.refs);
+        if(fr.annotations == null) {
+            inst.annotations = Collections.emptyMap();
+        } else {
+            inst.annotations = fr.annotations;
+        }
+    }
+
+    public void startArray(arrayobj arr, int size) {
+        frame fr = new frame();
+        switch(arr.classdesc.name.charAt(1)) {
+            case '[':
+                fr.elements = new arraycoll(fieldtype.ARRAY);
+                break;
+            case 'L':
+                fr.elements = new arraycoll(fieldtype.OBJECT);
+                break;
+        }
+        stack.add(fr);
+    }
+    public void arrayElement(arrayobj arr, int index, content value) {
+        top().elements.add(value);
+    }
+    public void endArray(arrayobj arr) {
+        frame fr = pop();
+        if(fr.elements != null) {
+            arr.data = fr.elements;
+        }
+    }
+
+    public void exception(content ex) {
+        stack.clear();
+    }
+    public void topLevel(content c) {
+        content.add(c);
+    }
+}
@@ -8,8 +8,31 @@ import java.util.*;
  */
 public class ValidityException extends IOException {
     public static final long serialVersionUID = 2277356908919241L;
+    private long offset = -1;
+
     public ValidityException(String msg) {
         super(msg);
     }
-}
 
+    /**
+     * Constructor.
+     *
+     * @param msg the message, which should include the offset
+     * @param offset the stream offset at which the error was detected
+     * @param cause the exception that this one annotates, or null
+     */
+    public ValidityException(String msg, long offset, Throwable cause) {
+        super(msg, cause);
+        this.offset = offset;
+    }
+
+    /**
+     * Gets the stream offset at which the error was detected.  Errors thrown out of
+     * jdeserialize.run() and StreamScanner.scan() have one.
+     *
+     * @return the offset, or -1 if it's unknown
+     */
+    public long getOffset() {
+        return offset;
+    }
+}
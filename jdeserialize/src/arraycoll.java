@@ -1,18 +1,31 @@
 package org.unsynchronized;
 import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
 import java.util.*;
 
 /**
  * <p>Typed collection used for storing the values of a serialized array.  </p>
  *
- * <p>Primitive types are stored using their corresponding objects; for instance, an int is
- * stored as an Integer.  To determine whether or not this is an array of ints or of
- * Integer instances, check the name in the arrayobj's class description.</p>
+ * <p>Arrays of references are stored as a list of objects.  Arrays of primitives are
+ * stored in a primitive array of the corresponding type (e.g. an int[] for an array of
+ * ints), or, when the stream was read from a memory mapping, in a view of the serialized
+ * element data.  Either way, the List methods present primitive values using their
+ * corresponding objects; for instance, an int is returned as an Integer.  To get at the
+ * unboxed values, use getPrimitiveArray().  To determine whether or not this is an array
+ * of ints or of Integer instances, check isPrimitive() or the name in the arrayobj's class
+ * description.</p>
+ *
+ * <p>This class used to extend ArrayList.  It's now a modifiable, random-access List that
+ * isn't an ArrayList and isn't Serializable; callers that need an ArrayList should copy
+ * it, e.g. with new ArrayList&lt;Object&gt;(coll).</p>
  */
-public class arraycoll extends ArrayList<Object> {
-    public static final long serialVersionUID = 2277356908919248L;
-
+public class arraycoll extends AbstractList<Object> implements RandomAccess {
     private fieldtype ftype;
+    private ArrayList<Object> objects;
+    private Object primarray;
+    private ByteBuffer primdata;
+    private int size;
 
     /**
      * Constructor.
@@ -21,6 +34,46 @@ public class arraycoll extends ArrayList<Object> {
     public arraycoll(fieldtype ft) {
         super();
         this.ftype = ft;
+        if(ft.isPrimitive()) {
+            this.primarray = newPrimitiveArray(ft, 10);
+        } else {
+            this.objects = new ArrayList<Object>();
+        }
+    }
+
+    /**
+     * Constructor for arrays of primitives that have already been read.
+     *
+     * @param ft field type of the array; must be a primitive type
+     * @param primarray the array of values; its type must correspond to ft (e.g. an int[]
+     * for fieldtype.INTEGER).  The array is retained, not copied.
+     */
+    public arraycoll(fieldtype ft, Object primarray) {
+        super();
+        if(!ft.isPrimitive() || primarray == null || primarray.getClass() != newPrimitiveArray(ft, 0).getClass()) {
+            throw new IllegalArgumentException("array type doesn't match field type " + ft);
+        }
+        this.ftype = ft;
+        this.primarray = primarray;
+        this.size = Array.getLength(primarray);
+    }
+
+    /**
+     * Constructor for arrays of primitives that are left in their serialized form.  The
+     * values are decoded as they are accessed.
+     *
+     * @param ft field type of the array; must be a primitive type
+     * @param data the serialized (big-endian) element data, from the buffer's position to
+     * its limit.  The buffer is retained, not copied.
+     */
+    public arraycoll(fieldtype ft, ByteBuffer data) {
+        super();
+        if(!ft.isPrimitive()) {
+            throw new IllegalArgumentException("not a primitive type: " + ft);
+        }
+        this.ftype = ft;
+        this.primdata = data.slice();
+        this.size = primdata.remaining() / ft.getSize();
     }
 
     /**
@@ -31,8 +84,184 @@ public class arraycoll extends ArrayList<Object> {
     public fieldtype getFieldType() {
         return ftype;
     }
+
+    /**
+     * Tells whether this is an array of primitives.
+     *
+     * @return true iff the elements are primitive values
+     */
+    public boolean isPrimitive() {
+        return objects == null;
+    }
+
+    /**
+     * Gets the values of an array of primitives, as an array of the corresponding type
+     * (e.g. an int[] for an array of ints).  If the values are still in serialized form,
+     * they are decoded.  The returned array is not a copy; modifications to it are
+     * visible through this collection.
+     *
+     * @return the primitive array, or null if this is not an array of primitives
+     */
+    public Object getPrimitiveArray() {
+        if(objects != null) {
+            return null;
+        }
+        Object arr = values();
+        if(Array.getLength(arr) != size) {
+            primarray = newPrimitiveArray(ftype, size);
+            System.arraycopy(arr, 0, primarray, 0, size);
+        }
+        return primarray;
+    }
+
+    /**
+     * Returns the backing primitive array, decoding the serialized data first if
+     * necessary.  The array may be longer than size.
+     */
+    private Object values() {
+        if(primdata != null) {
+            Object arr = newPrimitiveArray(ftype, size);
+            ByteBuffer bb = primdata.duplicate();
+            switch(ftype) {
+                case BYTE:
+                    bb.get((byte[])arr);
+                    break;
+                case CHAR:
+                    bb.asCharBuffer().get((char[])arr);
+                    break;
+                case DOUBLE:
+                    bb.asDoubleBuffer().get((double[])arr);
+                    break;
+                case FLOAT:
+                    bb.asFloatBuffer().get((float[])arr);
+                    break;
+                case INTEGER:
+                    bb.asIntBuffer().get((int[])arr);
+                    break;
+                case LONG:
+                    bb.asLongBuffer().get((long[])arr);
+                    break;
+                case SHORT:
+                    bb.asShortBuffer().get((short[])arr);
+                    break;
+                case BOOLEAN:
+                    boolean[] za = (boolean[])arr;
+                    for(int i = 0; i < size; i++) {
+                        za[i] = bb.get(i) != 0;
+                    }
+                    break;
+            }
+            primarray = arr;
+            primdata = null;
+        }
+        return primarray;
+    }
+
+    public int size() {
+        return objects != null ? objects.size() : size;
+    }
+
+    public Object get(int index) {
+        if(objects != null) {
+            return objects.get(index);
+        }
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        if(primdata != null) {
+            int off = index * ftype.getSize();
+            switch(ftype) {
+                case BYTE:
+                    return Byte.valueOf(primdata.get(off));
+                case CHAR:
+                    return Character.valueOf(primdata.getChar(off));
+                case DOUBLE:
+                    return Double.valueOf(primdata.getDouble(off));
+                case FLOAT:
+                    return Float.valueOf(primdata.getFloat(off));
+                case INTEGER:
+                    return Integer.valueOf(primdata.getInt(off));
+                case LONG:
+                    return Long.valueOf(primdata.getLong(off));
+                case SHORT:
+                    return Short.valueOf(primdata.getShort(off));
+                case BOOLEAN:
+                    return Boolean.valueOf(primdata.get(off) != 0);
+            }
+        }
+        return Array.get(primarray, index);
+    }
+
+    public Object set(int index, Object element) {
+        if(objects != null) {
+            return objects.set(index, element);
+        }
+        Object old = get(index);
+        Array.set(values(), index, element);
+        return old;
+    }
+
+    public void add(int index, Object element) {
+        if(objects != null) {
+            objects.add(index, element);
+            modCount++;
+            return;
+        }
+        if(index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        Object arr = values();
+        int cap = Array.getLength(arr);
+        if(size == cap) {
+            Object narr = newPrimitiveArray(ftype, Math.max(10, cap + (cap >> 1)));
+            System.arraycopy(arr, 0, narr, 0, size);
+            arr = narr;
+        }
+        System.arraycopy(arr, index, arr, index + 1, size - index);
+        Array.set(arr, index, element);
+        primarray = arr;
+        size++;
+        modCount++;
+    }
+
+    public Object remove(int index) {
+        if(objects != null) {
+            modCount++;
+            return objects.remove(index);
+        }
+        Object old = get(index);
+        Object arr = values();
+        System.arraycopy(arr, index + 1, arr, index, size - index - 1);
+        size--;
+        modCount++;
+        return old;
+    }
+
+    static Object newPrimitiveArray(fieldtype ft, int len) {
+        switch(ft) {
+            case BYTE:
+                return new byte[len];
+            case CHAR:
+                return new char[len];
+            case DOUBLE:
+                return new double[len];
+            case FLOAT:
+                return new float[len];
+            case INTEGER:
+                return new int[len];
+            case LONG:
+                return new long[len];
+            case SHORT:
+                return new short[len];
+            case BOOLEAN:
+                return new boolean[len];
+            default:
+                throw new IllegalArgumentException("not a primitive type: " + ft);
+        }
+    }
+
     public String toString() {
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
         sb.append("[arraycoll sz ").append(this.size());
         boolean first = true;
         for(Object o: this) {
@@ -42,7 +271,11 @@ public class arraycoll extends ArrayList<Object> {
             } else {
                 sb.append(", ");
             }
-            sb.append(o.toString());
+            if(o instanceof arrayobj && ((arrayobj)o).data == this) {
+                sb.append("(this array)");
+            } else {
+                sb.append(o.toString());
+            }
         }
         return sb.toString();
     }
@@ -28,7 +28,7 @@ public class arrayobj extends contentbase {
     }
     public String toString() {
         return "[array " + jdeserialize.hex(handle) + " classdesc " + classdesc.toString() + ": " 
-            + data.toString() + "]";
+            + (data == null ? "(not yet read)" : data.toString()) + "]";
     }
 }
 
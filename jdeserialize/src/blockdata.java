@@ -1,5 +1,6 @@
 package org.unsynchronized;
 import java.io.*;
+import java.nio.*;
 
 /**
  * Represents an opaque block of data written to the stream.  Primarily, these are used to
@@ -9,10 +10,14 @@ import java.io.*;
  */
 public class blockdata extends contentbase {
     /**
-     * The block data read from the stream.
+     * The block data read from the stream.  This is null if the data is held in a
+     * buffer that isn't backed by an array (e.g. a slice of a memory-mapped file); use
+     * getData() or getBytes() to access the data in either case.
      */
     public byte[] buf;
 
+    private ByteBuffer data;
+
     /**
      * Constructor.
      *
@@ -21,8 +26,53 @@ public class blockdata extends contentbase {
     public blockdata(byte[] buf) {
         super(contenttype.BLOCKDATA);
         this.buf = buf;
+        this.data = ByteBuffer.wrap(buf);
+    }
+
+    /**
+     * Constructor.  The buffer is retained, not copied; its contents are the data from
+     * its position to its limit.
+     *
+     * @param data the block data
+     */
+    public blockdata(ByteBuffer data) {
+        super(contenttype.BLOCKDATA);
+        this.data = data.slice();
+    }
+
+    /**
+     * Gets the size of the block data.
+     *
+     * @return the number of bytes of data
+     */
+    public int getSize() {
+        return data.remaining();
+    }
+
+    /**
+     * Gets a read-only view of the block data.
+     *
+     * @return a buffer whose position is 0 and whose limit is the size of the data
+     */
+    public ByteBuffer getData() {
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets the block data as an array.  If the data isn't already held in an array, a
+     * copy is returned.
+     *
+     * @return the block data
+     */
+    public byte[] getBytes() {
+        if(buf != null) {
+            return buf;
+        }
+        byte[] b = new byte[data.remaining()];
+        data.duplicate().get(b);
+        return b;
     }
     public String toString() {
-        return "[blockdata " + jdeserialize.hex(handle) + ": " + buf.length + " bytes]";
+        return "[blockdata " + jdeserialize.hex(handle) + ": " + getSize() + " bytes]";
     }
 }
@@ -137,6 +137,49 @@ public class classdesc extends contentbase {
         this.isStaticMemberClass = nis;
     }
 
+    private boolean isShared = false;
+    /**
+     * <p>
+     * True if this class description is shared through a ClassDescCache, and may be
+     * in use by several streams (and threads) at once.  Shared descriptions must not be
+     * modified; their annotation, inner class and enum constant collections are
+     * read-only, and connectMemberClasses() leaves them alone.  A parse that will
+     * connect member classes uses its own copies of them instead; see source.
+     * </p>
+     *
+     * <p>
+     * The handle of a shared description is the handle it was assigned in each of the
+     * streams that use it.
+     * </p>
+     *
+     * @return true if the description is shared
+     */
+    public boolean isShared() {
+        return isShared;
+    }
+    /**
+     * Marks the description as shared, and makes its collections read-only.
+     */
+    void share() {
+        this.annotations = Collections.unmodifiableList(annotations);
+        this.innerclasses = Collections.unmodifiableList(innerclasses);
+        this.enumconstants = Collections.unmodifiableSet(enumconstants);
+        this.isShared = true;
+    }
+
+    /**
+     * For a stream's own copy of a shared description, the shared description; null
+     * otherwise.  See jdeserialize.setClassDescCache().
+     */
+    classdesc source;
+
+    /**
+     * Read plan and field layout of instances of this class; computed on first use by
+     * ReadPlan.of() and FieldLayout.of().
+     */
+    ReadPlan plan;
+    FieldLayout layout;
+
     /**
      * Constructor.
      *
@@ -178,7 +221,7 @@ public class classdesc extends contentbase {
         }
     }
     public String toString() {
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
         sb.append("[cd ").append(jdeserialize.hex(handle)).append(": name ").append(name);
         sb.append(" uid ").append(serialVersionUID);
         sb.append("]");
@@ -193,14 +236,22 @@ public class classdesc extends contentbase {
      * @param classes a list to be filled in with the hierarchy
      */
     public void getHierarchy(ArrayList<classdesc> classes) {
-        if(superclass != null) {
-            if(superclass.classtype == classdesctype.PROXYCLASS) {
+        // Walked iteratively, since a stream can chain any number of descriptions
+        // together by reference.
+        int start = classes.size();
+        classdesc cd = this;
+        while(true) {
+            classes.add(cd);
+            if(cd.superclass == null) {
+                break;
+            }
+            if(cd.superclass.classtype == classdesctype.PROXYCLASS) {
                 jdeserialize.debugerr("warning: hit a proxy class in superclass hierarchy");
-            } else {
-                superclass.getHierarchy(classes);
+                break;
             }
-        } 
-        classes.add(this);
+            cd = cd.superclass;
+        }
+        Collections.reverse(classes.subList(start, classes.size()));
     }
     public void validate() throws ValidityException {
         // If neither SC_SERIALIZABLE nor SC_EXTERNALIZABLE is set, then the number of
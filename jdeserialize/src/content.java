@@ -37,6 +37,30 @@ public interface content {
      */
     public int getHandle();
 
+    /**
+     * <p>
+     * Gets the stream offset of the first byte of this item, i.e. its typecode.  Along
+     * with getStreamEnd(), this gives the exact range of raw bytes the item was read
+     * from; see jdeserialize's -extract option.
+     * </p>
+     *
+     * <p>
+     * The range covers the item's class description (or the reference to it) and the
+     * items nested inside it, but references to earlier items are only handles, so the
+     * range can't generally be parsed on its own.
+     * </p>
+     *
+     * @return the offset, or -1 if it's unknown
+     */
+    public long getStreamStart();
+
+    /**
+     * Gets the stream offset just past the last byte of this item.
+     *
+     * @return the offset, or -1 if it's unknown or the item wasn't completely read
+     */
+    public long getStreamEnd();
+
     /**
      * Performs extra object-specific validity checks.  
      *
@@ -8,6 +8,21 @@ import java.util.*;
 public class contentbase implements content {
     public int handle;
     public boolean isExceptionObject;
+
+    /**
+     * Stream offset of the item's first byte (its typecode), or -1 if it's unknown.
+     * Shared class descriptions, and the type strings they refer to, have no offsets,
+     * since they're shared with other streams; see ClassDescCache.
+     */
+    public long streamstart = -1;
+
+    /**
+     * Stream offset just past the item's last byte, or -1 if it's unknown.  This is
+     * also -1 if the item wasn't completely read, e.g. an object whose serialization was
+     * interrupted by an exception.
+     */
+    public long streamend = -1;
+
     protected contenttype type;
     public contentbase(contenttype type) {
         this.type = type;
@@ -24,6 +39,12 @@ public class contentbase implements content {
     public int getHandle() {
         return this.handle;
     }
+    public long getStreamStart() {
+        return streamstart;
+    }
+    public long getStreamEnd() {
+        return streamend;
+    }
     public void validate() throws ValidityException {
     }
 }
@@ -36,10 +36,10 @@ public class exceptionstate extends contentbase {
      * </p>
      *
      * <p>
-     * The uncertainty centers around the fact that this data is gathered by jdeserialize
-     * using a LoggerInputStream, and the underlying DataInputStream may have read more
-     * than is necessary.  In all tests conducted so far, the above description is
-     * accurate.
+     * The data is the range of the stream between streamstart and streamend (the
+     * top-level content item during which the exception was read, up to the end of the
+     * exception object); it is only retrieved from the input once an exception object
+     * has been read.
      * </p>
      */
     public byte[] streamdata;
@@ -55,6 +55,19 @@ public class exceptionstate extends contentbase {
         this.streamdata = data;
         this.handle = exobj.getHandle();
     }
+
+    /**
+     * Constructor.
+     * @param exobj the serialized exception object 
+     * @param data the array of stream bytes that led up to the exception
+     * @param start stream offset of the first byte of data
+     * @param end stream offset just past the last byte of data
+     */
+    public exceptionstate(content exobj, byte[] data, long start, long end) {
+        this(exobj, data);
+        this.streamstart = start;
+        this.streamend = end;
+    }
     public String toString() {
         StringBuffer sb = new StringBuffer();
         sb.append("[exceptionstate object " + exceptionobj.toString() + "  buflen " + streamdata.length);
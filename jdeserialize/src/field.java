@@ -78,8 +78,32 @@ public class field {
      * @throws IOException if a validity or I/O error occurs
      */
     public String getJavaType() throws IOException {
-        return jdeserialize.resolveJavaType(this.type, this.classname == null ? null : this.classname.value, true, false);
+        String cn = (this.classname == null) ? null : this.classname.value;
+        javatype jt = this.javatype;
+        if(jt == null || jt.type != this.type || jt.classname != cn) {
+            jt = new javatype(this.type, cn, jdeserialize.resolveJavaType(this.type, cn, true, false));
+            this.javatype = jt;
+        }
+        return jt.name;
+    }
+
+    /**
+     * The last type name returned by getJavaType(), along with what it was resolved
+     * from.  Class name strings may be shared between fields and renamed by
+     * connectMemberClasses(), so the name is resolved again if they've changed.
+     */
+    private static class javatype {
+        final fieldtype type;
+        final String classname;
+        final String name;
+
+        javatype(fieldtype type, String classname, String name) {
+            this.type = type;
+            this.classname = classname;
+            this.name = name;
+        }
     }
+    private javatype javatype;
     
     /**
      * Changes the name of an object reference to the name specified.  This is used by
@@ -13,18 +13,19 @@ import java.util.*;
  * </p>
  */
 public enum fieldtype {
-    BYTE ('B', "byte"),
-    CHAR ('C', "char"),
-    DOUBLE ('D', "double"), 
-    FLOAT ('F', "float"),
-    INTEGER ('I', "int"),
-    LONG ('J', "long"),
-    SHORT ('S', "String"),
-    BOOLEAN ('Z', "boolean"),
+    BYTE ('B', "byte", 1),
+    CHAR ('C', "char", 2),
+    DOUBLE ('D', "double", 8), 
+    FLOAT ('F', "float", 4),
+    INTEGER ('I', "int", 4),
+    LONG ('J', "long", 8),
+    SHORT ('S', "String", 2),
+    BOOLEAN ('Z', "boolean", 1),
     ARRAY ('['),
     OBJECT ('L');
     private final char ch;
     private final String javatype;
+    private final int size;
 
     /**
      * Constructor for non-object (primitive) types.
@@ -33,7 +34,7 @@ public enum fieldtype {
      * prim_typecode or obj_typecode in the Object Serialization Stream Protocol)
      */
     fieldtype(char ch) {
-        this(ch, null);
+        this(ch, null, 0);
     }
 
     /**
@@ -42,10 +43,13 @@ public enum fieldtype {
      * @param ch the character representing the type (must match one of those listed in
      * prim_typecode or obj_typecode in the Object Serialization Stream Protocol)
      * @param javatype the name of the object class, where applicable (or null if not)
+     * @param size the number of bytes a value of this type occupies in the stream, or 0
+     * for reference types
      */
-    fieldtype(char ch, String javatype) {
+    fieldtype(char ch, String javatype, int size) {
         this.ch = ch;
         this.javatype = javatype;
+        this.size = size;
     }
 
     /**
@@ -66,6 +70,20 @@ public enum fieldtype {
      */
     public char ch() { return ch; }
 
+    /**
+     * Gets the number of bytes occupied by a value of this type in the stream.
+     *
+     * @return the size of the serialized value, or 0 for reference/array types
+     */
+    public int getSize() { return size; }
+
+    /**
+     * Tells whether this is a primitive type.
+     *
+     * @return true iff this is neither a reference nor an array type
+     */
+    public boolean isPrimitive() { return size != 0; }
+
     /**
      * Given a byte containing a type code, return the corresponding enum.
      *
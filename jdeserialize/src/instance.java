@@ -9,10 +9,26 @@ import java.util.*;
  */
 public class instance extends contentbase {
     /**
+     * <p>
      * Collection of field data, organized by class description.  
+     * </p>
+     *
+     * <p>
+     * For instances read by jdeserialize, this is a read-only view of the instance's
+     * field value slots (see setFieldValues()); the field maps iterate in declaration
+     * order, and primitive values are boxed each time they're retrieved.
+     * </p>
      */
     public Map<classdesc, Map<field, Object>> fielddata;
 
+    /**
+     * Field value slots, in the layout of the instance's class; null unless
+     * setFieldValues() was called.
+     */
+    FieldLayout layout;
+    long[] prims;
+    Object[] refs;
+
     /**
      * Class description for this instance.
      */
@@ -26,7 +42,7 @@ public class instance extends contentbase {
         this.fielddata = new HashMap<classdesc, Map<field, Object>>();
     }
     public String toString() {
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
         sb.append(classdesc.name).append(' ').append("_h").append(jdeserialize.hex(handle))
             .append(" = r_").append(jdeserialize.hex(classdesc.handle)).append(";  ");
         //sb.append("// [instance " + jdeserialize.hex(handle) + ": " + jdeserialize.hex(classdesc.handle) + "/" + classdesc.name).append("]");
@@ -36,4 +52,131 @@ public class instance extends contentbase {
      * Object annotation data.
      */
     public Map<classdesc, List<content>> annotations;
+
+    /**
+     * Stores the instance's field values, and replaces fielddata with a view of them.
+     *
+     * @param layout the field layout of the instance's class
+     * @param prims the primitive field values, widened as in FieldLayout
+     * @param refs the object field values
+     */
+    void setFieldValues(FieldLayout layout, long[] prims, Object[] refs) {
+        this.layout = layout;
+        this.prims = prims;
+        this.refs = refs;
+        this.fielddata = new fieldview();
+    }
+
+    /**
+     * Read-only view of the field value slots, by class.  The per-class views are
+     * created the first time they're needed, and reused after that.
+     */
+    private class fieldview extends AbstractMap<classdesc, Map<field, Object>> {
+        private classview[] views;
+
+        private classview view(int index) {
+            classview[] vs = views;
+            if(vs == null) {
+                vs = new classview[layout.classes.length];
+                views = vs;
+            }
+            classview v = vs[index];
+            if(v == null) {
+                v = new classview(index);
+                vs[index] = v;
+            }
+            return v;
+        }
+        public Map<field, Object> get(Object key) {
+            int i = layout.indexOf(key);
+            return (i < 0) ? null : view(i);
+        }
+        public boolean containsKey(Object key) {
+            return layout.indexOf(key) >= 0;
+        }
+        public int size() {
+            return layout.classes.length;
+        }
+        public Set<Map.Entry<classdesc, Map<field, Object>>> entrySet() {
+            return new AbstractSet<Map.Entry<classdesc, Map<field, Object>>>() {
+                public int size() {
+                    return layout.classes.length;
+                }
+                public Iterator<Map.Entry<classdesc, Map<field, Object>>> iterator() {
+                    return new Iterator<Map.Entry<classdesc, Map<field, Object>>>() {
+                        private int i = 0;
+                        public boolean hasNext() {
+                            return i < layout.classes.length;
+                        }
+                        public Map.Entry<classdesc, Map<field, Object>> next() {
+                            if(i >= layout.classes.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<classdesc, Map<field, Object>> e = new AbstractMap.SimpleImmutableEntry<classdesc, Map<field, Object>>(layout.classes[i], view(i));
+                            i++;
+                            return e;
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Read-only view of the field value slots of one class.
+     */
+    private class classview extends AbstractMap<field, Object> {
+        private final field[] fields;
+        private final int[] slots;
+
+        classview(int index) {
+            this.fields = layout.classes[index].fields;
+            this.slots = layout.slots[index];
+        }
+        private int indexOf(Object key) {
+            for(int i = 0; i < slots.length; i++) {
+                if(fields[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        private Object value(int i) {
+            fieldtype ft = fields[i].type;
+            return ft.isPrimitive() ? FieldLayout.fromSlot(ft, prims[slots[i]]) : refs[slots[i]];
+        }
+        public Object get(Object key) {
+            int i = indexOf(key);
+            return (i < 0) ? null : value(i);
+        }
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+        public int size() {
+            return slots.length;
+        }
+        public Set<Map.Entry<field, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<field, Object>>() {
+                public int size() {
+                    return slots.length;
+                }
+                public Iterator<Map.Entry<field, Object>> iterator() {
+                    return new Iterator<Map.Entry<field, Object>>() {
+                        private int i = 0;
+                        public boolean hasNext() {
+                            return i < slots.length;
+                        }
+                        public Map.Entry<field, Object> next() {
+                            if(i >= slots.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<field, Object> e = new AbstractMap.SimpleImmutableEntry<field, Object>(fields[i], value(i));
+                            i++;
+                            return e;
+                        }
+                    };
+                }
+            };
+        }
+    }
 }
@@ -1,7 +1,11 @@
 package org.unsynchronized;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.regex.*;
 
 /**
@@ -17,6 +21,17 @@ import java.util.regex.*;
  * documentation of various implementors to get more information about the inner
  * representations.<br/>
  * <br/>
+ * Streams too large to hold in memory can be parsed with run(StreamInput, StreamVisitor),
+ * which passes parse events to a StreamVisitor as they are read instead of building the
+ * content list.  Alternatively, setLazy() defers decoding the field data of each
+ * instance until it's accessed.<br/>
+ * <br/>
+ * To only check that a stream is valid, without decoding it, use StreamScanner.  Streams
+ * from untrusted sources should be read with resource budgets; see setLimits().<br/>
+ * <br/>
+ * The parser keeps its own stack of the objects and arrays being read, so arbitrarily
+ * deep object graphs (long linked lists, for example) don't need a large thread stack.<br/>
+ * <br/>
  * To enable debugging on stdout, use the enableDebug() or disableDebug() options.   <br/> 
  * <br/>
  * <br/>
@@ -45,6 +60,18 @@ import java.util.regex.*;
  * Additionally, a manifest describing the size of each individual block can be generated
  * with the -blockdatamanifest <file> option.
  * <br/>
+ * Large files can be read through memory mappings rather than a stream with -mmap.
+ * <br/>
+ * With -scan, each file is only checked for validity (see StreamScanner), much faster
+ * than it can be decoded; one line is printed per file, and the exit status is 1 if any
+ * of them is invalid.
+ * <br/>
+ * Resource budgets for hostile or corrupt streams (see ParseLimits) can be set with
+ * -limit, e.g. -limit string=65536,depth=1000.
+ * <br/>
+ * Multiple files can be decoded concurrently with -threads <n>; the output for each file
+ * is buffered and written in the order the files were given.
+ * <br/>
  * References: <br/>
  *     - Java Object Serialization Specification ch. 6 (Object Serialization Stream
  *       Protocol): <br/>
@@ -63,6 +90,13 @@ public class jdeserialize {
     public static final String INDENT = "    ";
     public static final int CODEWIDTH = 90;
     public static final String linesep = System.getProperty("line.separator");
+
+    /**
+     * Output stream that discards everything; for parses whose progress output isn't
+     * wanted.
+     */
+    static final PrintStream NULL_OUTPUT = new PrintStream(OutputStream.nullOutputStream());
+    public static final int ARRAY_CHUNK = 64 * 1024;
     public static final String[] keywords = new String[] {
         "abstract", "continue", "for", "new", "switch", "assert", "default", "if",
         "package", "synchronized", "boolean", "do", "goto", "private", "this",
@@ -74,11 +108,58 @@ public class jdeserialize {
     public static HashSet<String> keywordSet;
 
     private String filename;
-    private HashMap<Integer,content> handles = new HashMap<Integer,content>();
+    private HandleTable handles = new HandleTable();
     private ArrayList<Map<Integer,content>> handlemaps = new ArrayList<Map<Integer,content>>();
+    private List<Map<Integer,content>> handlemapsview = Collections.unmodifiableList(handlemaps);
     private ArrayList<content> content;
     private int curhandle;
     private boolean debugEnabled;
+    private StreamVisitor visitor;
+    private boolean retainContent = true;
+    private ClassDescCache desccache;
+    private boolean privatedescs;               // copy shared descriptions, for connect()
+    private byte[] descbuf = new byte[256];
+    private int desclen;
+    private PrintStream out = System.out;
+    private ArrayList<frame> frames = new ArrayList<frame>();
+    private int depth;
+    private boolean lazy;
+    private boolean deferring;
+    private boolean following;                  // in follow(); old generations aren't kept
+    private boolean replaying;
+    private ParseStats stats;
+    private ClassFilter filter;
+    private ParseLimits limits;
+    private long nhandles;                      // handles assigned in the stream, for limits
+    private long ninstances;
+    private int descdepth;                      // nesting of class descriptions being read
+    private IdentityHashMap<classdesc, Boolean> excluded = new IdentityHashMap<classdesc, Boolean>();
+    private StreamInput input;                  // the input being parsed, for events
+    private final boolean events;               // emit Flight Recorder events
+    private ParseEvents.segment segment;
+    private long segmentstart;
+    private StreamIndex.decoder indexdecoder;   // resolves references, in decodeItem()
+
+    /**
+     * State of an object or array whose contents are being read by the parse loop; see
+     * drive().  Frames are reused by later objects at the same depth.
+     */
+    private static class frame {
+        instance inst;
+        arrayobj arr;
+        ReadPlan plan;              // plan of the instance's class
+        int cls;                    // index in plan.classes of the class being read
+        int fld;                    // index of the next field, or -1 before the class data
+        List<content> annotation;   // items read so far, while reading an annotation
+        fieldtype ft;               // array component type
+        int size;
+        int idx;                    // index of the next array element
+        byte tc;                    // typecode of the nested item to read next
+        boolean blockdata;
+        boolean quiet;              // true if the contents aren't passed to the visitor
+        long start;                 // offset of an instance's class data, in lazy mode
+        int firsthandle;            // first handle assigned inside it
+    }
 
     static {
         keywordSet = new HashSet<String>();
@@ -122,7 +203,12 @@ public class jdeserialize {
      * <p>
      * Although there is only one map active at a given point, a stream may have multiple
      * logical maps: when a reset happens (indicated by TC_RESET), the current map is
-     * cleared.  
+     * retired, and a new, empty one takes its place.  
+     * </p>
+     *
+     * <p>
+     * The list and the maps in it are read-only.  The maps are the handle tables that
+     * were used during parsing, not copies.
      * </p>
      *
      * <p>
@@ -131,7 +217,64 @@ public class jdeserialize {
      * @return a list of <Integer,content> maps
      */
     public List<Map<Integer,content>> getHandleMaps() {
-        return handlemaps;
+        return handlemapsview;
+    }
+
+    /**
+     * Finds the item that was assigned a handle.  If the handle was assigned more than
+     * once (because the stream was reset), the last such item is returned.
+     *
+     * @param handle the handle
+     * @return the item, or null if the handle wasn't assigned
+     */
+    public content getContentByHandle(int handle) {
+        for(int i = handlemaps.size() - 1; i >= 0; i--) {
+            content c = handlemaps.get(i).get(handle);
+            if(c != null) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private static void checkStreamRange(content c) throws IOException {
+        if(c.getStreamStart() < 0 || c.getStreamEnd() < 0) {
+            throw new IOException("stream range of item " + hex(c.getHandle()) + " is unknown");
+        }
+    }
+
+    /**
+     * Returns the raw bytes that an item was read from, from its typecode up to the end
+     * of the items nested in it.  Use a MappedStreamInput to get a view of the file,
+     * without copying the data.
+     *
+     * @param c the item
+     * @param in an input on the stream the item was read from; since the parser closes
+     * its input, this is usually a new one
+     * @return a read-only buffer holding the bytes
+     * @throws IOException if the item's range is unknown, or can't be read from the input
+     * @see StreamInput#sliceRange(long, long)
+     */
+    public static ByteBuffer getRawData(content c, StreamInput in) throws IOException {
+        checkStreamRange(c);
+        return in.sliceRange(c.getStreamStart(), c.getStreamEnd());
+    }
+
+    /**
+     * Writes the raw bytes that an item was read from to a channel; see getRawData().
+     * If the input is a file, the bytes are transferred without being copied through the
+     * heap.
+     *
+     * @param c the item
+     * @param in an input on the stream the item was read from
+     * @param target the channel to write to
+     * @return the number of bytes written
+     * @throws IOException if the item's range is unknown, or an I/O error occurs
+     * @see StreamInput#transferRange(long, long, WritableByteChannel)
+     */
+    public static long transferRawData(content c, StreamInput in, WritableByteChannel target) throws IOException {
+        checkStreamRange(c);
+        return in.transferRange(c.getStreamStart(), c.getStreamEnd(), target);
     }
 
     /**
@@ -159,194 +302,708 @@ public class jdeserialize {
     }
 
     public static String indent(int level) {
-        StringBuffer sb = new StringBuffer("");
-        for(int i = 0; i < level; i++) {
-            sb.append(INDENT);
+        return DumpWriter.indentation(level);
+    }
+
+    /**
+     * Reads the class data of an instance, passing each field value and annotation to the
+     * visitor, between its startObject() and endObject() events.
+     */
+    public void read_Classdata(StreamInput in, instance inst) throws IOException {
+        int base = depth;
+        try {
+            start_Classdata(inst, in);
+            drive(base, in);
+        } finally {
+            unwind(base);
         }
-        return sb.toString();
     }
 
-    public void read_Classdata(DataInputStream dis, instance inst) throws IOException {
-        ArrayList<classdesc> classes = new ArrayList<classdesc>();
-        inst.classdesc.getHierarchy(classes);
-        Map<classdesc, Map<field, Object>> alldata = new HashMap<classdesc, Map<field, Object>>();
-        Map<classdesc, List<content>> ann = new HashMap<classdesc, List<content>>();
-        for(classdesc cd: classes) {
-            Map<field, Object> values = new HashMap<field, Object>();
-            if((cd.descflags & ObjectStreamConstants.SC_SERIALIZABLE) != 0) {
-                if((cd.descflags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
-                    throw new IOException("SC_EXTERNALIZABLE & SC_SERIALIZABLE encountered");
-                }
-                for(field f: cd.fields) {
-                    Object o = read_FieldValue(f.type, dis);
-                    values.put(f, o);
+    /**
+     * Pushes a frame for reading the class data of an instance.  In lazy mode, and for
+     * instances of classes that the class filter excludes, the frame is quiet: the data
+     * is only scanned.  In lazy mode, the instance then gets a LazyClassdata.
+     */
+    private void start_Classdata(instance inst, StreamInput in) throws IOException {
+        frame f = push();
+        f.inst = inst;
+        f.plan = ReadPlan.of(inst.classdesc);
+        if(deferring || isExcluded(inst.classdesc)) {
+            f.quiet = true;
+            f.start = in.getPosition();
+            f.firsthandle = curhandle;
+        } else {
+            visitor.startObject(inst);
+        }
+    }
+
+    /**
+     * <p>
+     * Reads the contents of the object or array in the given frame, up to its next
+     * object-valued field, array element or annotation item.  The typecode of that item
+     * is left in f.tc.
+     * </p>
+     *
+     * <p>
+     * Primitive field values are passed to the visitor as they're read; object values
+     * are passed by accept(), once the parse loop has read them.
+     * </p>
+     *
+     * @return false if the object or array has been completely read
+     */
+    private boolean step(frame f, StreamInput in) throws IOException {
+        if(f.arr != null) {
+            if(f.idx == f.size) {
+                return false;
+            }
+            f.tc = read_ObjectTc(f.ft, in);
+            f.blockdata = false;
+            return true;
+        }
+        ReadPlan plan = f.plan;
+        while(f.cls < plan.classes.length) {
+            classdesc cd = plan.classes[f.cls];
+            if(f.annotation != null) {
+                byte tc = in.readByte();
+                if(stats != null && (tc == ObjectStreamConstants.TC_ENDBLOCKDATA || tc == ObjectStreamConstants.TC_RESET)) {
+                    stats.typecode(tc);
                 }
-                alldata.put(cd, values);
-                if((cd.descflags & ObjectStreamConstants.SC_WRITE_METHOD) != 0) {
-                    if((cd.descflags & ObjectStreamConstants.SC_ENUM) != 0) {
-                        throw new IOException("SC_ENUM & SC_WRITE_METHOD encountered!");
+                if(tc == ObjectStreamConstants.TC_ENDBLOCKDATA) {
+                    if(!f.quiet) {
+                        visitor.objectAnnotation(f.inst, cd, f.annotation);
                     }
-                    ann.put(cd, read_classAnnotation(dis));
+                    f.annotation = null;
+                    f.cls++;
+                    f.fld = -1;
+                } else if(tc == ObjectStreamConstants.TC_RESET) {
+                    checkResetDeferrable();
+                    reset();
+                } else {
+                    f.tc = tc;
+                    f.blockdata = true;
+                    return true;
+                }
+                continue;
+            }
+            byte action = plan.actions[f.cls];
+            if(f.fld < 0) {
+                switch(action) {
+                    case ReadPlan.FIELDS:
+                    case ReadPlan.FIELDS_ANNOTATED:
+                        if(!f.quiet) {
+                            visitor.startClassData(f.inst, cd);
+                        }
+                        f.fld = 0;
+                        break;
+                    case ReadPlan.EXTERNAL:
+                        f.annotation = newAnnotation(f);
+                        continue;
+                    case ReadPlan.INVALID:
+                        throw plan.invalid(f.cls);
+                    default:
+                        f.cls++;
+                        continue;
                 }
-            } else if((cd.descflags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
-                if((cd.descflags & ObjectStreamConstants.SC_SERIALIZABLE) != 0) {
-                    throw new IOException("SC_SERIALIZABLE & SC_EXTERNALIZABLE encountered");
+            }
+            fieldtype[] types = plan.types[f.cls];
+            while(f.fld < types.length) {
+                fieldtype ft = types[f.fld];
+                if(!ft.isPrimitive()) {
+                    f.tc = read_ObjectTc(ft, in);
+                    f.blockdata = false;
+                    return true;
                 }
-                if((cd.descflags & ObjectStreamConstants.SC_BLOCK_DATA) != 0) {
-                    throw new EOFException("hit externalizable with nonzero SC_BLOCK_DATA; can't interpret data");
+                if(f.quiet) {
+                    in.skipFully(ft.getSize());
                 } else {
-                    ann.put(cd, read_classAnnotation(dis));
+                    read_FieldValue(cd.fields[f.fld], in);
+                }
+                f.fld++;
+            }
+            if(action == ReadPlan.FIELDS_ANNOTATED) {
+                f.annotation = newAnnotation(f);
+                continue;
+            }
+            f.cls++;
+            f.fld = -1;
+        }
+        return false;
+    }
+
+    /**
+     * Passes a nested item that the parse loop has read to the object or array in the
+     * given frame: as a field value, array element or annotation item, according to
+     * what step() was reading.
+     */
+    private void accept(frame f, content c) throws IOException {
+        // A replayed reference may be to an object that was only flagged as an exception
+        // after it was first read.
+        if(c != null && c.isExceptionObject() && !replaying) {
+            throw new ExceptionReadException(c);
+        }
+        if(f.arr != null) {
+            if(!f.quiet) {
+                visitor.arrayElement(f.arr, f.idx, c);
+            }
+            f.idx++;
+        } else if(f.annotation != null) {
+            if(!f.quiet) {
+                f.annotation.add(c);
+            }
+        } else {
+            field fd = f.plan.classes[f.cls].fields[f.fld++];
+            if(!f.quiet) {
+                visitor.fieldValue(fd, c);
+            }
+        }
+    }
+
+    /**
+     * Returns the list that an annotation's items are collected in; quiet frames don't
+     * collect them.
+     */
+    private static List<content> newAnnotation(frame f) {
+        if(f.quiet) {
+            return Collections.<content>emptyList();
+        }
+        return new ArrayList<content>();
+    }
+
+    /**
+     * Pops the frame of an object or array that has been completely read.
+     *
+     * @return the object or array
+     */
+    private content end_Frame(frame f, StreamInput in) {
+        content c;
+        if(f.arr != null) {
+            f.arr.streamend = in.getPosition();
+            if(!f.quiet) {
+                visitor.endArray(f.arr);
+            }
+            c = f.arr;
+        } else {
+            f.inst.streamend = in.getPosition();
+            if(f.quiet) {
+                if(deferring) {
+                    new LazyClassdata(f.inst, in, handles, f.start, in.getPosition(), f.firsthandle, curhandle).install();
+                }
+            } else {
+                visitor.endObject(f.inst);
+            }
+            debug("done reading object for handle " + hex(f.inst.handle));
+            c = f.inst;
+        }
+        pop();
+        return c;
+    }
+
+    /**
+     * <p>
+     * The parse loop.  Reads the contents of the frame on top of the stack, and of every
+     * object and array nested inside it, and returns the frame's object or array.
+     * </p>
+     *
+     * <p>
+     * Nested objects and arrays get frames of their own, rather than being read by
+     * recursive calls, so the depth of the object graph is limited only by the heap.
+     * </p>
+     *
+     * @param base the stack depth below the frame
+     */
+    private content drive(int base, StreamInput in) throws IOException {
+        content c = null;
+        boolean done = false;
+        while(true) {
+            frame f = frames.get(depth - 1);
+            if(done) {
+                accept(f, c);
+            }
+            if(step(f, in)) {
+                int d = depth;
+                c = start_Content(f.tc, in, f.blockdata);
+                done = (depth == d);
+            } else {
+                c = end_Frame(f, in);
+                if(depth == base) {
+                    return c;
                 }
+                done = true;
             }
         }
-        inst.annotations = ann;
-        inst.fielddata = alldata;
     }
 
-    public Object read_FieldValue(fieldtype f, DataInputStream dis) throws IOException {
+    private frame push() throws LimitExceededException {
+        if(limits != null) {
+            limits.checkDepth(depth + descdepth + 1);
+        }
+        if(depth == frames.size()) {
+            frames.add(new frame());
+        }
+        frame f = frames.get(depth++);
+        f.plan = null;
+        f.cls = 0;
+        f.fld = -1;
+        f.idx = 0;
+        f.quiet = false;
+        return f;
+    }
+    private void pop() {
+        frame f = frames.get(--depth);
+        f.inst = null;
+        f.arr = null;
+        f.annotation = null;
+    }
+
+    /**
+     * Pops any frames above the given depth, after a parse error.
+     */
+    private void unwind(int base) {
+        while(depth > base) {
+            pop();
+        }
+    }
+
+    /**
+     * Reads the value of a primitive field of an instance, and passes it to the visitor.
+     */
+    private void read_FieldValue(field f, StreamInput in) throws IOException {
+        switch(f.type) {
+            case BYTE:
+                visitor.fieldValue(f, in.readByte());
+                break;
+            case CHAR:
+                visitor.fieldValue(f, in.readChar());
+                break;
+            case DOUBLE:
+                visitor.fieldValue(f, in.readDouble());
+                break;
+            case FLOAT:
+                visitor.fieldValue(f, in.readFloat());
+                break;
+            case INTEGER:
+                visitor.fieldValue(f, in.readInt());
+                break;
+            case LONG:
+                visitor.fieldValue(f, in.readLong());
+                break;
+            case SHORT:
+                visitor.fieldValue(f, in.readShort());
+                break;
+            case BOOLEAN:
+                visitor.fieldValue(f, in.readBoolean());
+                break;
+            default:
+                throw new IOException("not a primitive type: " + f.type.toString());
+        }
+    }
+
+    public Object read_FieldValue(fieldtype f, StreamInput in) throws IOException {
         switch(f) {
             case BYTE:
-                return Byte.valueOf(dis.readByte());
+                return Byte.valueOf(in.readByte());
             case CHAR:
-                return Character.valueOf(dis.readChar());
+                return Character.valueOf(in.readChar());
             case DOUBLE:
-                return Double.valueOf(dis.readDouble());
+                return Double.valueOf(in.readDouble());
             case FLOAT:
-                return Float.valueOf(dis.readFloat());
+                return Float.valueOf(in.readFloat());
             case INTEGER:
-                return Integer.valueOf(dis.readInt());
+                return Integer.valueOf(in.readInt());
             case LONG:
-                return Long.valueOf(dis.readLong());
+                return Long.valueOf(in.readLong());
             case SHORT:
-                return Short.valueOf(dis.readShort());
+                return Short.valueOf(in.readShort());
             case BOOLEAN:
-                return Boolean.valueOf(dis.readBoolean());
+                return Boolean.valueOf(in.readBoolean());
+            case OBJECT:
+            case ARRAY:
+                return read_ObjectValue(f, in);
+            default:
+                throw new IOException("can't process type: " + f.toString());
+        }
+    }
+
+    /**
+     * Reads a value of object or array type (a field value or array element).
+     */
+    private content read_ObjectValue(fieldtype f, StreamInput in) throws IOException {
+        content c = read_Content(read_ObjectTc(f, in), in, false);
+        if(c != null && c.isExceptionObject()) {
+            throw new ExceptionReadException(c);
+        }
+        return c;
+    }
+
+    /**
+     * Reads the typecode of a value of object or array type.
+     */
+    private byte read_ObjectTc(fieldtype f, StreamInput in) throws IOException {
+        switch(f) {
             case OBJECT:
             case ARRAY:
-                byte stc = dis.readByte();
+                byte stc = in.readByte();
                 if(f == fieldtype.ARRAY && stc != ObjectStreamConstants.TC_ARRAY) {
                     throw new IOException("array type listed, but typecode is not TC_ARRAY: " + hex(stc));
                 }
-                content c = read_Content(stc, dis, false);
-                if(c != null && c.isExceptionObject()) {
-                    throw new ExceptionReadException(c);
-                }
-                return c;
+                return stc;
             default:
                 throw new IOException("can't process type: " + f.toString());
         }
     }
     public jdeserialize(String filename) {
         this.filename = filename;
+        this.visitor = new TreeBuilder();
+        this.events = ParseEvents.isRecording();
     }
-    private int newHandle() {
+    private int newHandle() throws LimitExceededException {
+        if(limits != null) {
+            limits.checkHandles(++nhandles);
+        }
         return curhandle++;
     }
 
-    public static String resolveJavaType(fieldtype type, String classname, boolean convertSlashes, boolean fixname)  throws IOException {
-        if(type == fieldtype.ARRAY) {
-            StringBuffer asb = new StringBuffer("");
-            for(int i = 0; i < classname.length(); i++) {
-                char ch = classname.charAt(i);
-                switch(ch) {
-                    case '[':
-                        asb.append("[]");
-                        continue;
-                    case 'L':
-                        String cn = decodeClassName(classname.substring(i), convertSlashes);
-                        if(fixname) {
-                            cn = fixClassName(cn);
-                        }
-                        return cn + asb.toString();
-                    default:
-                        if(ch < 1 || ch > 127) {
-                            throw new ValidityException("invalid array field type descriptor character: " + classname);
-                        }
-                        fieldtype ft = fieldtype.get((byte)ch);
-                        if(i != (classname.length()-1)) {
-                            throw new ValidityException("array field type descriptor is too long: " + classname);
-                        }
-                        String ftn = ft.getJavaType();
-                        if(fixname) {
-                            ftn = fixClassName(ftn);
-                        }
-                        return ftn + asb.toString();
-                }
-            }
-            throw new ValidityException("array field type descriptor is too short: " + classname);
-        } else if(type == fieldtype.OBJECT) {
-            return decodeClassName(classname, convertSlashes);
-        } else {
-            return type.getJavaType();
-        }
+    /**
+     * Sets the stream that parse progress, debugging information and dump() output are
+     * written to.  The default is System.out.
+     *
+     * @param out the output stream
+     */
+    public void setOutput(PrintStream out) {
+        this.out = out;
     }
 
-    public List<content> read_classAnnotation(DataInputStream dis) throws IOException {
-        List<content> list = new ArrayList<content>();
-        while(true) {
-            byte tc = dis.readByte();
-            if(tc == ObjectStreamConstants.TC_ENDBLOCKDATA) {
-                return list;
-            }
-            if(tc == ObjectStreamConstants.TC_RESET) {
-                reset();
-                continue;
-            }
-            content c = read_Content(tc, dis, true);
-            if(c != null && c.isExceptionObject()) {
-                throw new ExceptionReadException(c);
-            }
-            list.add(c);
-        }
+    /**
+     * Gets the stream that parse progress, debugging information and dump() output are
+     * written to.
+     *
+     * @return the output stream
+     */
+    public PrintStream getOutput() {
+        return out;
     }
-    public static void dump_Instance(int indentlevel, instance inst, PrintStream ps) {
-        StringBuffer sb = new StringBuffer();
-        sb.append("[instance " + hex(inst.handle) + ": " + hex(inst.classdesc.handle) + "/" + inst.classdesc.name);
-        if(inst.annotations != null && inst.annotations.size() > 0) {
-            sb.append(linesep).append("  object annotations:").append(linesep);
-            for(classdesc cd: inst.annotations.keySet()) {
-                sb.append("    ").append(cd.name).append(linesep);
-                for(content c: inst.annotations.get(cd)) {
-                    sb.append("        ").append(c.toString()).append(linesep);
-                }
-            }
-        }
-        if(inst.fielddata != null && inst.fielddata.size() > 0) {
-            sb.append(linesep).append("  field data:").append(linesep);
-            for(classdesc cd: inst.fielddata.keySet()) {
-                sb.append("    ").append(hex(cd.handle)).append("/").append(cd.name).append(":").append(linesep);
-                for(field f: inst.fielddata.get(cd).keySet()) {
-                    Object o = inst.fielddata.get(cd).get(f);
-                    sb.append("        ").append(f.name).append(": ");
-                    if(o instanceof content) {
-                        content c = (content)o;
-                        int h = c.getHandle();
-                        if(h == inst.handle) {
-                            sb.append("this");
-                        } else {
-                            sb.append("r" + hex(h));
-                        }
-                        sb.append(": ").append(c.toString());
-                        sb.append(linesep);
-                    } else {
-                        sb.append("" + o).append(linesep);
-                    }
-                }
-            }
-        }
-        sb.append("]");
-        ps.println(sb);
+
+    /**
+     * <p>
+     * Sets a cache of class descriptions to share with other parsers.  When a cache is
+     * set, new class descriptions are looked up in it before they are decoded; see
+     * ClassDescCache for details.  This is intended for parsing large numbers of small
+     * streams that describe the same classes.
+     * </p>
+     *
+     * <p>
+     * Shared class descriptions are read-only.  When run() is asked to connect member
+     * classes, the stream gets its own copies of the shared descriptions it uses, which
+     * connectMemberClasses() can rename and link together; the copies skip decoding and
+     * validation, but not allocation.  Otherwise, the shared descriptions themselves are
+     * used, and a later call to connectMemberClasses() leaves them alone.
+     * </p>
+     *
+     * @param cache the cache to use, or null to decode every description
+     */
+    public void setClassDescCache(ClassDescCache cache) {
+        this.desccache = cache;
     }
 
     /**
-     * "Fix" the given name by transforming illegal characters, such that the end result
-     * is a legal Java identifier that is not a keyword.  
-     * If the string is modified at all, the result will be prepended with "$__".
+     * <p>
+     * Sets the filter that selects the classes whose instances are decoded.  Instances
+     * of other classes are read in skip mode: their data is checked against the stream
+     * grammar, and any objects nested in it are read (and get their handles) as usual,
+     * but no field values or annotations are built for them, and they generate no
+     * visitor events.  Their instance objects are still created, with empty field data,
+     * so that references to them can be resolved.
+     * </p>
      *
-     * @param name the name to be transformed
-     * @return the unmodified string if it is legal, otherwise a legal-identifier version
+     * <p>
+     * The filter is evaluated once per class description.  dump() leaves excluded
+     * instances out of its output; class declarations are still selected by -filter.
+     * </p>
+     *
+     * @param filter the filter, or null to decode every instance
      */
-    public static String fixClassName(String name) {
+    public void setClassFilter(ClassFilter filter) {
+        this.filter = filter;
+        this.excluded.clear();
+    }
+
+    /**
+     * Gets the class filter.
+     *
+     * @return the filter, or null if there is none
+     */
+    public ClassFilter getClassFilter() {
+        return filter;
+    }
+
+    /**
+     * Determines whether the class filter excludes a class.
+     */
+    private boolean isExcluded(classdesc cd) {
+        if(filter == null) {
+            return false;
+        }
+        Boolean b = excluded.get(cd);
+        if(b == null) {
+            b = Boolean.valueOf(!filter.accepts(cd.name));
+            excluded.put(cd, b);
+        }
+        return b.booleanValue();
+    }
+
+    /**
+     * Sets the resource budgets for parsing; see ParseLimits.  A stream that exceeds one
+     * of them is rejected with a LimitExceededException, before the parser commits any
+     * memory to the item that's over budget.
+     *
+     * @param limits the limits, or null for none
+     */
+    public void setLimits(ParseLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Gets the resource budgets for parsing.
+     *
+     * @return the limits, or null if there are none
+     */
+    public ParseLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Enables or disables the collection of parse statistics (see ParseStats).
+     * Enabling it starts a new, empty set of statistics; they accumulate over every
+     * parse and dump until collection is disabled.
+     *
+     * @param collect true to collect statistics
+     */
+    public void setCollectStats(boolean collect) {
+        this.stats = collect ? new ParseStats() : null;
+    }
+
+    /**
+     * Gets a snapshot of the statistics collected so far.
+     *
+     * @return the statistics, or null if they aren't being collected
+     */
+    public ParseStats getStats() {
+        return (stats == null) ? null : stats.snapshot();
+    }
+
+    /**
+     * Gets the cache of class descriptions in use, if any.
+     *
+     * @return the cache, or null
+     */
+    public ClassDescCache getClassDescCache() {
+        return desccache;
+    }
+
+    /**
+     * <p>
+     * Enables or disables lazy mode.  In lazy mode, run(StreamInput, boolean) doesn't
+     * decode the class data of instances: it only scans it, to register the handles of
+     * the objects nested inside it, and records where it lies in the stream.  Each
+     * instance's fielddata and annotations are then decoded the first time they're
+     * accessed; see LazyClassdata.  Arrays, strings and class descriptions are read as
+     * usual.
+     * </p>
+     *
+     * <p>
+     * The input must be seekable (see StreamInput.isSeekable()), and isn't closed by
+     * run(): it's read again as instances are accessed, so the caller should close it
+     * once it's done with the content.  Streams with a TC_RESET inside an object's data
+     * can't be read in lazy mode.
+     * </p>
+     *
+     * @param lazy true to decode class data on demand
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * Tells whether lazy mode is enabled.
+     *
+     * @return true iff class data is decoded on demand
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Decodes class data that was scanned in lazy mode, for LazyClassdata.  The class
+     * data of inst is read from the given input; the handles in it are resolved against
+     * the table of the original parse, rather than registered.
+     *
+     * @param in the input, positioned at the start of the class data
+     * @param handles the handle table that was in use when the instance was read
+     * @param firsthandle the first handle assigned inside the class data
+     * @param inst the instance to fill in
+     */
+    void replay(StreamInput in, HandleTable handles, int firsthandle, instance inst) throws IOException {
+        this.handles = handles;
+        this.curhandle = firsthandle;
+        this.replaying = true;
+        read_Classdata(in, inst);
+    }
+
+    /**
+     * Decodes a top-level item on its own, for StreamIndex.decoder.  The handles
+     * assigned in the item are added to the given table, and references to earlier
+     * handles that aren't in it are resolved by the decoder.
+     *
+     * @param in the input, positioned at the start of the item
+     * @param handles the table of decoded items of the item's generation
+     * @param firsthandle the first handle assigned in the item
+     * @param decoder the decoder
+     * @return the item
+     */
+    content decodeItem(StreamInput in, HandleTable handles, int firsthandle, StreamIndex.decoder decoder) throws IOException {
+        this.handles = handles;
+        this.curhandle = firsthandle;
+        this.indexdecoder = decoder;
+        byte tc = in.readByte();
+        content c = read_Content(tc, in, true);
+        for(int h = firsthandle; h < curhandle; h++) {
+            content nc = handles.get(h);
+            if(nc != null) {
+                nc.validate();
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Throws an exception if a TC_RESET appears inside an object's data in lazy mode,
+     * where it would invalidate the recorded handles.
+     */
+    private void checkResetDeferrable() throws ValidityException {
+        if(deferring && depth > 0) {
+            throw new ValidityException("TC_RESET inside an object's data; can't read the stream in lazy mode");
+        }
+    }
+
+    public static String resolveJavaType(fieldtype type, String classname, boolean convertSlashes, boolean fixname)  throws IOException {
+        if(type == fieldtype.ARRAY) {
+            StringBuffer asb = new StringBuffer("");
+            for(int i = 0; i < classname.length(); i++) {
+                char ch = classname.charAt(i);
+                switch(ch) {
+                    case '[':
+                        asb.append("[]");
+                        continue;
+                    case 'L':
+                        String cn = decodeClassName(classname.substring(i), convertSlashes);
+                        if(fixname) {
+                            cn = fixClassName(cn);
+                        }
+                        return cn + asb.toString();
+                    default:
+                        if(ch < 1 || ch > 127) {
+                            throw new ValidityException("invalid array field type descriptor character: " + classname);
+                        }
+                        fieldtype ft = fieldtype.get((byte)ch);
+                        if(i != (classname.length()-1)) {
+                            throw new ValidityException("array field type descriptor is too long: " + classname);
+                        }
+                        String ftn = ft.getJavaType();
+                        if(fixname) {
+                            ftn = fixClassName(ftn);
+                        }
+                        return ftn + asb.toString();
+                }
+            }
+            throw new ValidityException("array field type descriptor is too short: " + classname);
+        } else if(type == fieldtype.OBJECT) {
+            return decodeClassName(classname, convertSlashes);
+        } else {
+            return type.getJavaType();
+        }
+    }
+
+    public List<content> read_classAnnotation(StreamInput in) throws IOException {
+        return read_classAnnotation(in.readByte(), in);
+    }
+    private List<content> read_classAnnotation(byte tc, StreamInput in) throws IOException {
+        List<content> list = new ArrayList<content>();
+        while(true) {
+            if(stats != null && (tc == ObjectStreamConstants.TC_ENDBLOCKDATA || tc == ObjectStreamConstants.TC_RESET)) {
+                stats.typecode(tc);
+            }
+            if(tc == ObjectStreamConstants.TC_ENDBLOCKDATA) {
+                return list;
+            }
+            if(tc == ObjectStreamConstants.TC_RESET) {
+                checkResetDeferrable();
+                reset();
+            } else {
+                content c = read_Content(tc, in, true);
+                if(c != null && c.isExceptionObject() && !replaying) {
+                    throw new ExceptionReadException(c);
+                }
+                list.add(c);
+            }
+            tc = in.readByte();
+        }
+    }
+    public static void dump_Instance(int indentlevel, instance inst, PrintStream ps) {
+        DumpWriter dw = new DumpWriter(ps, 1024);
+        try {
+            dump_Instance(indentlevel, inst, dw);
+            dw.flush();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+    public static void dump_Instance(int indentlevel, instance inst, DumpWriter dw) throws IOException {
+        dw.append("[instance ").hex(inst.handle).append(": ").hex(inst.classdesc.handle).append('/').append(inst.classdesc.name);
+        if(inst.annotations != null && inst.annotations.size() > 0) {
+            dw.newline().append("  object annotations:").newline();
+            for(Map.Entry<classdesc, List<content>> e: inst.annotations.entrySet()) {
+                dw.append("    ").append(e.getKey().name).newline();
+                for(content c: e.getValue()) {
+                    dw.append("        ").append(c.toString()).newline();
+                }
+            }
+        }
+        if(inst.fielddata != null && inst.fielddata.size() > 0) {
+            dw.newline().append("  field data:").newline();
+            for(Map.Entry<classdesc, Map<field, Object>> e: inst.fielddata.entrySet()) {
+                classdesc cd = e.getKey();
+                dw.append("    ").hex(cd.handle).append('/').append(cd.name).append(':').newline();
+                for(Map.Entry<field, Object> fe: e.getValue().entrySet()) {
+                    Object o = fe.getValue();
+                    dw.append("        ").append(fe.getKey().name).append(": ");
+                    if(o instanceof content) {
+                        content c = (content)o;
+                        int h = c.getHandle();
+                        if(h == inst.handle) {
+                            dw.append("this");
+                        } else {
+                            dw.append('r').hex(h);
+                        }
+                        dw.append(": ").append(c.toString());
+                        dw.newline();
+                    } else {
+                        dw.append(String.valueOf(o)).newline();
+                    }
+                }
+            }
+        }
+        dw.append(']').newline();
+    }
+
+    /**
+     * "Fix" the given name by transforming illegal characters, such that the end result
+     * is a legal Java identifier that is not a keyword.  
+     * If the string is modified at all, the result will be prepended with "$__".
+     *
+     * @param name the name to be transformed
+     * @return the unmodified string if it is legal, otherwise a legal-identifier version
+     */
+    public static String fixClassName(String name) {
         if(name == null) {
             return "$__null";
         }
@@ -388,83 +1045,88 @@ public class jdeserialize {
     }
 
     public static void dump_ClassDesc(int indentlevel, classdesc cd, PrintStream ps, boolean fixname) throws IOException {
+        DumpWriter dw = new DumpWriter(ps, 1024);
+        dump_ClassDesc(indentlevel, cd, dw, fixname);
+        dw.flush();
+    }
+    public static void dump_ClassDesc(int indentlevel, classdesc cd, DumpWriter dw, boolean fixname) throws IOException {
         String classname = cd.name;
         if(fixname) {
             classname = fixClassName(classname);
         }
         if(cd.annotations != null && cd.annotations.size() > 0) {
-            ps.println(indent(indentlevel) + "// annotations: ");
+            dw.indent(indentlevel).println("// annotations: ");
             for(content c: cd.annotations) {
-                ps.print(indent(indentlevel) + "// " + indent(1));
-                ps.println(c.toString());
+                dw.indent(indentlevel).append("// ").indent(1);
+                dw.println(c.toString());
             }
         }
         if(cd.classtype == classdesctype.NORMALCLASS) {
             if((cd.descflags & ObjectStreamConstants.SC_ENUM) != 0) {
-                ps.print(indent(indentlevel) + "enum " + classname + " {");
+                dw.indent(indentlevel).append("enum ").append(classname).append(" {");
                 boolean shouldindent = true;
-                int len = indent(indentlevel+1).length();
+                int len = (indentlevel+1) * INDENT.length();
                 for(String econst: cd.enumconstants) {
                     if(shouldindent) {
-                        ps.println("");
-                        ps.print(indent(indentlevel+1));
+                        dw.newline();
+                        dw.indent(indentlevel+1);
                         shouldindent = false;
                     }
                     len += econst.length();
-                    ps.print(econst + ", ");
+                    dw.append(econst).append(", ");
                     if(len >= CODEWIDTH) {
-                        len = indent(indentlevel+1).length();
+                        len = (indentlevel+1) * INDENT.length();
                         shouldindent = true;
                     }
                 }
-                ps.println("");
-                ps.println(indent(indentlevel) + "}");
+                dw.newline();
+                dw.indent(indentlevel).println("}");
                 return;
             } 
-            ps.print(indent(indentlevel));
+            dw.indent(indentlevel);
             if(cd.isStaticMemberClass()) {
-                ps.print("static ");
+                dw.append("static ");
             }
-            ps.print("class " + (classname.charAt(0) == '[' ? resolveJavaType(fieldtype.ARRAY, cd.name, false, fixname) : classname));
+            dw.append("class ").append(classname.charAt(0) == '[' ? resolveJavaType(fieldtype.ARRAY, cd.name, false, fixname) : classname);
             if(cd.superclass != null) {
-                ps.print(" extends " + cd.superclass.name);
+                dw.append(" extends ").append(cd.superclass.name);
             }
-            ps.print(" implements ");
+            dw.append(" implements ");
             if((cd.descflags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
-                ps.print("java.io.Externalizable");
+                dw.append("java.io.Externalizable");
             } else {
-                ps.print("java.io.Serializable");
+                dw.append("java.io.Serializable");
             }
             if(cd.interfaces != null) {
                 for(String intf: cd.interfaces) {
-                    ps.print(", " + intf);
+                    dw.append(", ").append(intf);
                 }
             }
-            ps.println(" {");
+            dw.println(" {");
             for(field f: cd.fields) {
                 if(f.isInnerClassReference()) {
                     continue;
                 }
-                ps.print(indent(indentlevel+1) + f.getJavaType());
-                ps.println(" " + f.name + ";");
+                dw.indent(indentlevel+1).append(f.getJavaType());
+                dw.append(' ').append(f.name).println(";");
             }
             for(classdesc icd: cd.innerclasses) {
-                dump_ClassDesc(indentlevel+1, icd, ps, fixname);
+                dump_ClassDesc(indentlevel+1, icd, dw, fixname);
             }
-            ps.println(indent(indentlevel)+"}");
+            dw.indent(indentlevel).println("}");
         } else if(cd.classtype == classdesctype.PROXYCLASS) {
-            ps.print(indent(indentlevel) + "// proxy class " + hex(cd.handle));
+            dw.indent(indentlevel).append("// proxy class ").hex(cd.handle);
             if(cd.superclass != null) {
-                ps.print(" extends " + cd.superclass.name);
+                dw.append(" extends ").append(cd.superclass.name);
             }
-            ps.println(" implements ");
+            dw.println(" implements ");
             for(String intf: cd.interfaces) {
-                ps.println(indent(indentlevel) + "//    " + intf + ", ");
+                dw.indent(indentlevel).append("//    ").append(intf).println(", ");
             }
             if((cd.descflags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
-                ps.println(indent(indentlevel) + "//    java.io.Externalizable");
+                dw.indent(indentlevel).println("//    java.io.Externalizable");
             } else {
-                ps.println(indent(indentlevel) + "//    java.io.Serializable");
+                dw.indent(indentlevel).println("//    java.io.Serializable");
             }
         } else {
             throw new ValidityException("encountered invalid classdesc type!");
@@ -472,20 +1134,58 @@ public class jdeserialize {
     }
 
     public void setHandle(int handle, content c) throws IOException {
-        if(handles.containsKey(handle)) {
+        if(replaying) {
+            return;
+        }
+        if(handles.contains(handle)) {
             throw new IOException("trying to reset handle " + hex(handle));
         }
         handles.put(handle, c);
     }
+
+    /**
+     * Registers the handle of an instance or array, unless the parser is streaming (see
+     * run(StreamInput, StreamVisitor)), in which case only the handle's existence matters.
+     */
+    private void setContentHandle(int handle, content c) throws IOException {
+        if(retainContent) {
+            setHandle(handle, c);
+        }
+    }
+    /**
+     * Starts a new handle generation.  The current handle table is frozen and retained
+     * (if it has any entries; in follow(), it's dropped), and a new, empty table takes
+     * its place.
+     */
     public void reset() {
         debug("reset ordered!");
-        if(handles != null && handles.size() > 0) {
-            HashMap<Integer,content> hm = new HashMap<Integer,content>();
-            hm.putAll(handles);
-            handlemaps.add(hm);
+        endSegment();
+        if(handles.size() > 0) {
+            if(!following) {
+                handlemaps.add(handles.freeze());
+            }
+            handles = new HandleTable();
         }
-        handles.clear();
         curhandle = ObjectStreamConstants.baseWireHandle;  // 0x7e0000
+        visitor.reset();
+        if(input != null && events) {
+            segment = new ParseEvents.segment();
+            segment.begin();
+            segmentstart = input.getPosition();
+        }
+    }
+
+    /**
+     * Emits the ResetSegment event for the part of the stream since the last reset.
+     */
+    private void endSegment() {
+        if(segment != null && segment.shouldCommit()) {
+            segment.handles = curhandle - ObjectStreamConstants.baseWireHandle;
+            segment.offset = segmentstart;
+            segment.size = input.getPosition() - segmentstart;
+            segment.commit();
+        }
+        segment = null;
     }
     /**
      * Read the content of a thrown exception object.  According to the spec, this must be
@@ -497,13 +1197,13 @@ public class jdeserialize {
      * ensure that the written object is indeed an instance; ensuring that the object is
      * indeed a Throwable is an exercise left to the user.
      */
-    public content read_Exception(DataInputStream dis) throws IOException {
+    public content read_Exception(StreamInput in) throws IOException {
         reset();
-        byte tc = dis.readByte();
+        byte tc = in.readByte();
         if(tc == ObjectStreamConstants.TC_RESET) {
             throw new ValidityException("TC_RESET for object while reading exception: what should we do?");
         }
-        content c = read_Content(tc, dis, false);
+        content c = read_Content(tc, in, false);
         if(c == null) {
             throw new ValidityException("stream signaled for an exception, but exception object was null!");
         }
@@ -514,56 +1214,99 @@ public class jdeserialize {
             throw new ExceptionReadException(c);
         }
         c.setIsExceptionObject(true);
+        visitor.exception(c);
         reset();
         return c;
     }
 
-    public classdesc read_classDesc(DataInputStream dis) throws IOException {
-        byte tc = dis.readByte();
-        classdesc cd = handle_classDesc(tc, dis, false);
+    public classdesc read_classDesc(StreamInput in) throws IOException {
+        byte tc = in.readByte();
+        if(stats != null) {
+            stats.typecode(tc);
+        }
+        classdesc cd = handle_classDesc(tc, in, false);
         return cd;
     }
-    public classdesc read_newClassDesc(DataInputStream dis) throws IOException {
-        byte tc = dis.readByte();
-        classdesc cd = handle_newClassDesc(tc, dis);
+    public classdesc read_newClassDesc(StreamInput in) throws IOException {
+        byte tc = in.readByte();
+        if(stats != null) {
+            stats.typecode(tc);
+        }
+        classdesc cd = handle_newClassDesc(tc, in);
         return cd;
     }
-    public content read_prevObject(DataInputStream dis) throws IOException {
-            int handle = dis.readInt();
-            if(!handles.containsKey(Integer.valueOf(handle))) {
-                throw new ValidityException("can't find an entry for handle " + hex(handle));
-            }
+    public content read_prevObject(StreamInput in) throws IOException {
+            int handle = in.readInt();
             content c = handles.get(handle);
-            debug("prevObject: handle " + hex(c.getHandle()) + " classdesc " + c.toString());
+            if(c == null && indexdecoder != null) {
+                c = indexdecoder.resolve(handle);
+            }
+            if(c == null) {
+                if(retainContent || handle < ObjectStreamConstants.baseWireHandle || handle >= curhandle) {
+                    throw new ValidityException("can't find an entry for handle " + hex(handle));
+                }
+                debug("prevObject: handle " + hex(handle) + " not retained");
+            } else if(debugEnabled) {
+                debug("prevObject: handle " + hex(c.getHandle()) + " classdesc " + c.toString());
+            }
+            visitor.reference(handle, c);
             return c;
     }
 
-    public classdesc handle_newClassDesc(byte tc, DataInputStream dis) throws IOException {
-        return handle_classDesc(tc, dis, true);
+    public classdesc handle_newClassDesc(byte tc, StreamInput in) throws IOException {
+        return handle_classDesc(tc, in, true);
     }
-    public classdesc handle_classDesc(byte tc, DataInputStream dis, boolean mustBeNew) throws IOException {
-        if(tc == ObjectStreamConstants.TC_CLASSDESC) {
-            String name = dis.readUTF();
-            long serialVersionUID = dis.readLong();
+    public classdesc handle_classDesc(byte tc, StreamInput in, boolean mustBeNew) throws IOException {
+        if(limits == null || (tc != ObjectStreamConstants.TC_CLASSDESC && tc != ObjectStreamConstants.TC_PROXYCLASSDESC)) {
+            return decode_classDesc(tc, in, mustBeNew);
+        }
+        // A description's annotation and superclass description are read recursively,
+        // so they count towards the depth limit.
+        limits.checkDepth(depth + descdepth + 1);
+        descdepth++;
+        try {
+            return decode_classDesc(tc, in, mustBeNew);
+        } finally {
+            descdepth--;
+        }
+    }
+    private classdesc decode_classDesc(byte tc, StreamInput in, boolean mustBeNew) throws IOException {
+        long offset = in.getPosition() - 1;
+        if(tc == ObjectStreamConstants.TC_CLASSDESC && desccache != null) {
+            classdesc cd = read_sharedClassDesc(in);
+            if(!cd.isShared()) {
+                cd.streamstart = offset;
+                cd.streamend = in.getPosition();
+            }
+            return cd;
+        } else if(tc == ObjectStreamConstants.TC_CLASSDESC) {
+            String name = in.readUTF();
+            long serialVersionUID = in.readLong();
             int handle = newHandle();
-            byte descflags = dis.readByte();
-            short nfields = dis.readShort();
+            byte descflags = in.readByte();
+            short nfields = in.readShort();
             if(nfields < 0) {
                 throw new IOException("invalid field count: " + nfields);
             }
             field[] fields = new field[nfields];
             for(short s = 0; s < nfields; s++) {
-                byte ftype = dis.readByte();
+                if(limits != null) {
+                    limits.checkBytes(in.getPosition(), 0);
+                }
+                byte ftype = in.readByte();
                 if(ftype == 'B' || ftype == 'C' || ftype == 'D' 
                         || ftype == 'F' || ftype == 'I' || ftype == 'J'
                         || ftype == 'S' || ftype == 'Z') {
-                    String fieldname = dis.readUTF();
+                    String fieldname = in.readUTF();
                     fields[s] = new field(fieldtype.get(ftype), fieldname);
                 } else if(ftype == '[' || ftype == 'L') {
-                    String fieldname = dis.readUTF();
-                    byte stc = dis.readByte();
-                    stringobj classname = read_newString(stc, dis);
-                    //String classname = dis.readUTF();
+                    String fieldname = in.readUTF();
+                    byte stc = in.readByte();
+                    if(stats != null) {
+                        stats.typecode(stc);
+                    }
+                    stringobj classname = read_newString(stc, in);
+                    //String classname = in.readUTF();
                     fields[s] = new field(fieldtype.get(ftype), fieldname, classname);
                 } else {
                     throw new IOException("invalid field type char: " + hex(ftype));
@@ -575,10 +1318,16 @@ public class jdeserialize {
             cd.handle = handle;
             cd.descflags = descflags;
             cd.fields = fields;
-            cd.annotations = read_classAnnotation(dis);
-            cd.superclass = read_classDesc(dis);
+            cd.annotations = read_classAnnotation(in);
+            cd.superclass = read_classDesc(in);
+            if(replaying) {
+                return (classdesc)handles.get(handle);
+            }
+            cd.streamstart = offset;
+            cd.streamend = in.getPosition();
             setHandle(handle, cd);
             debug("read new classdesc: handle " + hex(handle) + " name " + name);
+            visitor.classDesc(cd);
             return cd;
         } else if(tc == ObjectStreamConstants.TC_NULL) {
             if(mustBeNew) {
@@ -590,7 +1339,7 @@ public class jdeserialize {
             if(mustBeNew) {
                 throw new ValidityException("expected new class description -- got a reference!");
             }
-            content c = read_prevObject(dis);
+            content c = read_prevObject(in);
             if(!(c instanceof classdesc)) {
                 throw new IOException("referenced object not a class description!");
             }
@@ -598,137 +1347,697 @@ public class jdeserialize {
             return cd;
         } else if(tc == ObjectStreamConstants.TC_PROXYCLASSDESC) {
             int handle = newHandle();
-            int icount = dis.readInt();
+            int icount = in.readInt();
             if(icount < 0) {
                 throw new IOException("invalid proxy interface count: " + hex(icount));
             }
             String interfaces[] = new String[icount];
             for(int i = 0; i < icount; i++) {
-                interfaces[i] = dis.readUTF();
+                interfaces[i] = in.readUTF();
             }
             classdesc cd = new classdesc(classdesctype.PROXYCLASS);
             cd.handle = handle;
             cd.interfaces = interfaces;
-            cd.annotations = read_classAnnotation(dis);
-            cd.superclass = read_classDesc(dis);
+            cd.annotations = read_classAnnotation(in);
+            cd.superclass = read_classDesc(in);
+            if(replaying) {
+                return (classdesc)handles.get(handle);
+            }
+            cd.streamstart = offset;
+            cd.streamend = in.getPosition();
             setHandle(handle, cd);
             cd.name = "(proxy class; no name)";
             debug("read new proxy classdesc: handle " + hex(handle) + " names [" + Arrays.toString(interfaces) + "]");
+            visitor.classDesc(cd);
             return cd;
         } else {
             throw new ValidityException("expected a valid class description starter got " + hex(tc));
         }
     }
-    public arrayobj read_newArray(DataInputStream dis) throws IOException {
-        classdesc cd = read_classDesc(dis);
+
+    /**
+     * <p>
+     * Reads a new class description (after TC_CLASSDESC) through the classdesc cache.
+     * </p>
+     *
+     * <p>
+     * The description's bytes up to its class annotation are copied into descbuf, along
+     * with the handle it's assigned and the values of type strings it refers to by
+     * handle; this is the cache key.  On a hit, only the handles of the description and
+     * its new type strings are registered.  Otherwise, the description is decoded from
+     * the key, validated, and added to the cache.  Nested (superclass) descriptions use
+     * the part of descbuf after the key.
+     * </p>
+     */
+    private classdesc read_sharedClassDesc(StreamInput in) throws IOException {
+        int start = desclen;
+        try {
+            int handle = newHandle();
+            desc_appendInt(handle);
+            desc_appendUTF(in);
+            desc_append(in, 9);                 // serialVersionUID, descflags
+            byte descflags = descbuf[desclen - 1];
+            short nfields = in.readShort();
+            if(nfields < 0) {
+                throw new IOException("invalid field count: " + nfields);
+            }
+            desc_appendInt(nfields);
+            for(short s = 0; s < nfields; s++) {
+                if(limits != null) {
+                    limits.checkBytes(in.getPosition(), 0);
+                }
+                byte ftype = in.readByte();
+                desc_append(ftype);
+                if(ftype == 'B' || ftype == 'C' || ftype == 'D' 
+                        || ftype == 'F' || ftype == 'I' || ftype == 'J'
+                        || ftype == 'S' || ftype == 'Z') {
+                    desc_appendUTF(in);
+                } else if(ftype == '[' || ftype == 'L') {
+                    desc_appendUTF(in);
+                    byte stc = in.readByte();
+                    if(stats != null) {
+                        stats.typecode(stc);
+                    }
+                    desc_append(stc);
+                    if(stc == ObjectStreamConstants.TC_STRING) {
+                        newHandle();
+                        desc_appendUTF(in);
+                    } else if(stc == ObjectStreamConstants.TC_REFERENCE) {
+                        // A reference to one of this description's own type strings is
+                        // already determined by the key; any other reference includes
+                        // the value of the string.
+                        int shandle = in.readInt();
+                        desc_appendInt(shandle);
+                        if(shandle > handle && shandle < curhandle) {
+                            desc_appendInt(-1);
+                            continue;
+                        }
+                        content c = handles.get(shandle);
+                        if(!(c instanceof stringobj)) {
+                            throw new IOException("got reference for a string, but referenced value was something else!");
+                        }
+                        String value = ((stringobj)c).value;
+                        desc_appendInt(value.length());
+                        for(int i = 0; i < value.length(); i++) {
+                            desc_appendChar(value.charAt(i));
+                        }
+                    } else if(stc == ObjectStreamConstants.TC_LONGSTRING) {
+                        newHandle();
+                        long llen = in.readLong();
+                        if(llen < 0 || llen > Integer.MAX_VALUE - 16) {
+                            throw new IOException("invalid long string length: " + llen);
+                        }
+                        if(limits != null) {
+                            limits.checkString(llen);
+                            limits.checkBytes(in.getPosition(), llen);
+                        }
+                        desc_appendInt((int)llen);
+                        desc_append(in, (int)llen);
+                    } else if(stc == ObjectStreamConstants.TC_NULL) {
+                        throw new ValidityException("stream signaled TC_NULL when string type expected!");
+                    } else {
+                        throw new IOException("invalid tc byte in string: " + hex(stc));
+                    }
+                } else {
+                    throw new IOException("invalid field type char: " + hex(ftype));
+                }
+            }
+            int end = desclen;
+
+            byte atc = in.readByte();
+            if(atc != ObjectStreamConstants.TC_ENDBLOCKDATA || (descflags & ObjectStreamConstants.SC_ENUM) != 0) {
+                classdesc cd = desc_decode(start, end);
+                cd.annotations = read_classAnnotation(atc, in);
+                cd.superclass = read_classDesc(in);
+                setHandle(handle, cd);
+                debug("read new classdesc: handle " + hex(handle) + " name " + cd.name);
+                visitor.classDesc(cd);
+                return cd;
+            }
+
+            if(stats != null) {
+                stats.typecode(atc);
+            }
+            classdesc cd = desccache.lookup(descbuf, start, end - start);
+            if(cd != null) {
+                field[] fields = null;
+                if(privatedescs) {
+                    fields = copyFields(cd.fields, handle, true);
+                } else {
+                    for(field f: cd.fields) {
+                        if(f.classname != null && f.classname.handle > handle && !handles.contains(f.classname.handle)) {
+                            setHandle(f.classname.handle, f.classname);
+                            visitor.string(f.classname);
+                        }
+                    }
+                }
+                classdesc superclass = read_classDesc(in);
+                if(sharedOf(superclass) == cd.superclass) {
+                    if(privatedescs) {
+                        cd = copyShared(cd, fields, superclass);
+                    }
+                    setHandle(handle, cd);
+                    debug("read shared classdesc: handle " + hex(handle) + " name " + cd.name);
+                    visitor.classDesc(cd);
+                    return cd;
+                }
+                cd = desc_decode(start, end);
+                cd.superclass = superclass;
+            } else {
+                cd = desc_decode(start, end);
+                cd.superclass = read_classDesc(in);
+            }
+            cd.annotations = new ArrayList<content>();
+            if(cd.superclass == null || sharedOf(cd.superclass) != null) {
+                cd.validate();
+                if(privatedescs) {
+                    // The stream keeps the description it decoded, and the cache gets
+                    // a copy that no stream will modify.
+                    classdesc copy = copyShared(cd, copyFields(cd.fields, handle, false), sharedOf(cd.superclass));
+                    copy.source = null;
+                    cd.source = desccache.add(descbuf, start, end - start, copy);
+                } else {
+                    cd = desccache.add(descbuf, start, end - start, cd);
+                }
+            }
+            setHandle(handle, cd);
+            debug("read new classdesc: handle " + hex(handle) + " name " + cd.name);
+            visitor.classDesc(cd);
+            return cd;
+        } finally {
+            desclen = start;
+        }
+    }
+
+    /**
+     * Returns the shared description that a class description is or was copied from, or
+     * null if it has none.
+     */
+    private static classdesc sharedOf(classdesc cd) {
+        if(cd == null || cd.isShared()) {
+            return cd;
+        }
+        return cd.source;
+    }
+
+    /**
+     * Returns a copy of a description, with the given fields and superclass, that
+     * records the original as its source.
+     */
+    private static classdesc copyShared(classdesc cd, field[] fields, classdesc superclass) {
+        classdesc copy = new classdesc(cd.classtype);
+        copy.handle = cd.handle;
+        copy.name = cd.name;
+        copy.serialVersionUID = cd.serialVersionUID;
+        copy.descflags = cd.descflags;
+        copy.fields = fields;
+        copy.interfaces = cd.interfaces;
+        copy.annotations = new ArrayList<content>();
+        copy.superclass = superclass;
+        copy.source = cd;
+        return copy;
+    }
+
+    /**
+     * Copies the fields of a description with the given handle.  Type strings that the
+     * description introduced (those with later handles) are copied too, once each; with
+     * register set, the copies are registered as the stream's strings, and other type
+     * strings are resolved to the stream's own.
+     */
+    private field[] copyFields(field[] fields, int handle, boolean register) throws IOException {
+        field[] copies = new field[fields.length];
+        IdentityHashMap<stringobj, stringobj> strings = new IdentityHashMap<stringobj, stringobj>();
+        for(int i = 0; i < fields.length; i++) {
+            field f = fields[i];
+            stringobj classname = f.classname;
+            if(classname != null) {
+                classname = strings.get(f.classname);
+                if(classname == null) {
+                    int shandle = f.classname.handle;
+                    if(register && shandle < handle) {
+                        classname = (stringobj)handles.get(shandle);
+                    } else {
+                        classname = new stringobj(shandle, f.classname.value);
+                        if(register) {
+                            setHandle(shandle, classname);
+                            visitor.string(classname);
+                        }
+                    }
+                    strings.put(f.classname, classname);
+                }
+            }
+            copies[i] = new field(f.type, f.name, classname);
+        }
+        return copies;
+    }
+
+    /**
+     * Decodes the part of a class description that read_sharedClassDesc() copied into
+     * descbuf.  New type strings are registered, unless they already have been.
+     */
+    private classdesc desc_decode(int start, int end) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(descbuf, start, end - start);
+        int handle = bb.getInt();
+        classdesc cd = new classdesc(classdesctype.NORMALCLASS);
+        cd.handle = handle;
+        cd.name = ModifiedUTF8.decode(bb, bb.getShort() & 0xffff, false);
+        cd.serialVersionUID = bb.getLong();
+        cd.descflags = bb.get();
+        int nfields = bb.getInt();
+        cd.fields = new field[nfields];
+        int shandle = handle;
+        for(int s = 0; s < nfields; s++) {
+            byte ftype = bb.get();
+            String fieldname = ModifiedUTF8.decode(bb, bb.getShort() & 0xffff, false);
+            if(ftype != '[' && ftype != 'L') {
+                cd.fields[s] = new field(fieldtype.get(ftype), fieldname);
+                continue;
+            }
+            byte stc = bb.get();
+            stringobj classname;
+            if(stc == ObjectStreamConstants.TC_REFERENCE) {
+                classname = (stringobj)handles.get(bb.getInt());
+                int vlen = bb.getInt();
+                if(vlen > 0) {
+                    bb.position(bb.position() + 2 * vlen);
+                }
+            } else {
+                int len = (stc == ObjectStreamConstants.TC_STRING) ? (bb.getShort() & 0xffff) : bb.getInt();
+                ByteBuffer data = bb.slice();
+                data.limit(len);
+                bb.position(bb.position() + len);
+                shandle++;
+                classname = (stringobj)handles.get(shandle);
+                if(classname == null) {
+                    debug("reading new string: handle " + hex(shandle) + " bufsz " + len);
+                    classname = new stringobj(shandle, data);
+                    setHandle(shandle, classname);
+                    visitor.string(classname);
+                }
+            }
+            cd.fields[s] = new field(fieldtype.get(ftype), fieldname, classname);
+        }
+        return cd;
+    }
+
+    private void desc_reserve(int n) {
+        if(desclen + n > descbuf.length) {
+            descbuf = Arrays.copyOf(descbuf, Math.max(descbuf.length * 2, desclen + n));
+        }
+    }
+    private void desc_append(byte b) {
+        desc_reserve(1);
+        descbuf[desclen++] = b;
+    }
+    private void desc_append(StreamInput in, int n) throws IOException {
+        // Read in chunks, so that descbuf only grows as the data arrives.
+        while(n > 0) {
+            int chunk = Math.min(n, ARRAY_CHUNK);
+            desc_reserve(chunk);
+            in.readFully(descbuf, desclen, chunk);
+            desclen += chunk;
+            n -= chunk;
+        }
+    }
+    private void desc_appendInt(int v) {
+        desc_reserve(4);
+        descbuf[desclen++] = (byte)(v >>> 24);
+        descbuf[desclen++] = (byte)(v >>> 16);
+        descbuf[desclen++] = (byte)(v >>> 8);
+        descbuf[desclen++] = (byte)v;
+    }
+    private void desc_appendChar(char c) {
+        desc_reserve(2);
+        descbuf[desclen++] = (byte)(c >>> 8);
+        descbuf[desclen++] = (byte)c;
+    }
+    private void desc_appendUTF(StreamInput in) throws IOException {
+        int len = in.readUnsignedShort();
+        desc_appendChar((char)len);
+        desc_append(in, len);
+    }
+    public arrayobj read_newArray(StreamInput in) throws IOException {
+        int base = depth;
+        try {
+            arrayobj ao = start_newArray(in);
+            return (ao != null) ? ao : (arrayobj)drive(base, in);
+        } finally {
+            unwind(base);
+        }
+    }
+
+    /**
+     * Reads the header of an array.  An array of primitives is read completely;
+     * otherwise, a frame is pushed for reading its elements.
+     *
+     * @return the array, or null if its elements remain to be read
+     */
+    private arrayobj start_newArray(StreamInput in) throws IOException {
+        long offset = in.getPosition() - 1;
+        classdesc cd = read_classDesc(in);
         int handle = newHandle();
         debug("reading new array: handle " + hex(handle) + " classdesc " + cd.toString());
-        if(cd.name.length() < 2) {
-            throw new IOException("invalid name in array classdesc: " + cd.name);
+        fieldtype ft = ReadPlan.of(cd).component;
+        if(ft == null) {
+            if(cd.name.length() < 2) {
+                throw new IOException("invalid name in array classdesc: " + cd.name);
+            }
+            ft = fieldtype.get((byte)cd.name.charAt(1));
+        }
+        int size = in.readInt();
+        if(size < 0) {
+            throw new IOException("invalid array size: " + size);
+        }
+        if(limits != null) {
+            checkArrayLimits(ft, size, in);
         }
-        arraycoll ac = read_arrayValues(cd.name.substring(1), dis);
-        return new arrayobj(handle, cd, ac);
+        if(stats != null) {
+            stats.array(size);
+        }
+        if(replaying) {
+            content c = handles.get(handle);
+            if(!(c instanceof arrayobj)) {
+                throw new ValidityException("no array for handle " + hex(handle));
+            }
+            arrayobj ao = (arrayobj)c;
+            if(ft.isPrimitive()) {
+                in.skipFully((long)size * ft.getSize());
+                return ao;
+            }
+            frame f = push();
+            f.arr = ao;
+            f.ft = ft;
+            f.size = size;
+            f.quiet = true;
+            return null;
+        }
+        arrayobj ao = new arrayobj(handle, cd, null);
+        ao.streamstart = offset;
+        setContentHandle(handle, ao);
+        visitor.startArray(ao, size);
+        // For arrays of objects, the event only covers the header; the elements are
+        // read later.
+        ParseEvents.largeitem event = beginLargeItem(size);
+        if(ft.isPrimitive()) {
+            ao.data = read_primitiveArrayValues(ft, size, in);
+            ao.streamend = in.getPosition();
+            visitor.endArray(ao);
+            if(event != null && event.shouldCommit()) {
+                commitLargeItem(event, handle, cd.name, offset, size);
+            }
+            return ao;
+        }
+        if(event != null && event.shouldCommit()) {
+            commitLargeItem(event, handle, cd.name, offset, size);
+        }
+        frame f = push();
+        f.arr = ao;
+        f.ft = ft;
+        f.size = size;
+        return null;
+    }
+    /**
+     * Checks an array's size against the limits; an array of primitives also has to fit
+     * in the stream size limit.
+     */
+    private void checkArrayLimits(fieldtype ft, int size, StreamInput in) throws LimitExceededException {
+        limits.checkArray(size);
+        limits.checkBytes(in.getPosition(), (long)size * ft.getSize());
+    }
+    private ParseEvents.largeitem beginLargeItem(long size) {
+        if(!events || size < ParseEvents.LARGE_ITEM) {
+            return null;
+        }
+        ParseEvents.largeitem event = new ParseEvents.largeitem();
+        event.begin();
+        return event;
+    }
+    private static void commitLargeItem(ParseEvents.largeitem event, int handle, String classname,
+            long offset, long size) {
+        event.handle = handle;
+        event.className = classname;
+        event.offset = offset;
+        event.size = size;
+        event.commit();
     }
-    public arraycoll read_arrayValues(String str, DataInputStream dis) throws IOException {
-        byte b = str.getBytes("UTF-8")[0];
-        fieldtype ft = fieldtype.get(b);
-        int size = dis.readInt();
+
+    /**
+     * Reads the size and values of an array, without generating any visitor events for
+     * the array itself.
+     *
+     * @param str the array's class name, without the leading '['
+     * @param in the input to read from
+     * @return the values
+     * @throws IOException if an I/O error occurs
+     */
+    public arraycoll read_arrayValues(String str, StreamInput in) throws IOException {
+        char ch = str.charAt(0);
+        fieldtype ft = fieldtype.get((ch < 0x80) ? (byte)ch : str.getBytes("UTF-8")[0]);
+        int size = in.readInt();
         if(size < 0) {
             throw new IOException("invalid array size: " + size);
         }
+        if(limits != null) {
+            checkArrayLimits(ft, size, in);
+        }
 
+        if(ft.isPrimitive()) {
+            return read_primitiveArrayValues(ft, size, in);
+        }
         arraycoll ac = new arraycoll(ft);
         for(int i = 0; i < size; i++) {
-            ac.add(read_FieldValue(ft, dis));
-            continue;
+            ac.add(read_FieldValue(ft, in));
         }
         return ac;
     }
-    public classobj read_newClass(DataInputStream dis) throws IOException {
-        classdesc cd = read_classDesc(dis);
+
+    /**
+     * Reads the values of an array of primitives.  The values are bulk-decoded into a
+     * primitive array, which is allocated in growing chunks as the data arrives, so that
+     * a bogus size can't commit much more memory than the stream holds.  When the input
+     * is memory-mapped, the serialized data is left in the mapping and decoded on access
+     * instead.
+     *
+     * @param ft the component type of the array; must be a primitive type
+     * @param size the number of elements
+     * @param in the input to read from
+     * @return a collection backed by the values
+     * @throws IOException if an I/O error occurs
+     */
+    public arraycoll read_primitiveArrayValues(fieldtype ft, int size, StreamInput in) throws IOException {
+        int width = ft.getSize();
+        long nbytes = (long)size * width;
+        if(in.hasStableSlices() && nbytes <= Integer.MAX_VALUE) {
+            return new arraycoll(ft, in.readSlice((int)nbytes));
+        }
+        if(ft == fieldtype.BYTE) {
+            return new arraycoll(ft, in.readBytes(size));
+        }
+        int chunk = ARRAY_CHUNK / width;
+        int cap = Math.min(size, chunk);
+        Object arr = arraycoll.newPrimitiveArray(ft, cap);
+        int off = 0;
+        while(off < size) {
+            int n = Math.min(size - off, chunk);
+            if(off + n > cap) {
+                cap = (int)Math.min(size, Math.max(cap * 2L, off + n));
+                Object narr = arraycoll.newPrimitiveArray(ft, cap);
+                System.arraycopy(arr, 0, narr, 0, off);
+                arr = narr;
+            }
+            ByteBuffer bb = in.readSlice(n * width);
+            switch(ft) {
+                case CHAR: bb.asCharBuffer().get((char[])arr, off, n); break;
+                case DOUBLE: bb.asDoubleBuffer().get((double[])arr, off, n); break;
+                case FLOAT: bb.asFloatBuffer().get((float[])arr, off, n); break;
+                case INTEGER: bb.asIntBuffer().get((int[])arr, off, n); break;
+                case LONG: bb.asLongBuffer().get((long[])arr, off, n); break;
+                case SHORT: bb.asShortBuffer().get((short[])arr, off, n); break;
+                case BOOLEAN:
+                    boolean[] za = (boolean[])arr;
+                    for(int i = 0; i < n; i++) {
+                        za[off + i] = bb.get(i) != 0;
+                    }
+                    break;
+                default:
+                    throw new IOException("not a primitive type: " + ft.toString());
+            }
+            off += n;
+        }
+        return new arraycoll(ft, arr);
+    }
+    public classobj read_newClass(StreamInput in) throws IOException {
+        long offset = in.getPosition() - 1;
+        classdesc cd = read_classDesc(in);
         int handle = newHandle();
         debug("reading new class: handle " + hex(handle) + " classdesc " + cd.toString());
+        if(replaying) {
+            return (classobj)handles.get(handle);
+        }
         classobj c = new classobj(handle, cd);
+        c.streamstart = offset;
+        c.streamend = in.getPosition();
         setHandle(handle, c);
+        visitor.newClass(c);
         return c;
     }
-    public enumobj read_newEnum(DataInputStream dis) throws IOException {
-        classdesc cd = read_classDesc(dis);
+    public enumobj read_newEnum(StreamInput in) throws IOException {
+        long offset = in.getPosition() - 1;
+        classdesc cd = read_classDesc(in);
         if(cd == null) {
             throw new IOException("enum classdesc can't be null!");
         }
+        if(cd.isShared()) {
+            throw new ValidityException("non-enum classes shouldn't have enum constants!");
+        }
         int handle = newHandle();
         debug("reading new enum: handle " + hex(handle) + " classdesc " + cd.toString());
-        byte tc = dis.readByte();
-        stringobj so = read_newString(tc, dis);
-        cd.addEnum(so.value);
+        byte tc = in.readByte();
+        stringobj so = read_newString(tc, in);
+        if(!replaying) {
+            cd.addEnum(so.value);
+        }
         setHandle(handle, so);
-        return new enumobj(handle, cd, so);
+        enumobj eo = new enumobj(handle, cd, so);
+        eo.streamstart = offset;
+        eo.streamend = in.getPosition();
+        visitor.newEnum(eo);
+        return eo;
     }
-    public stringobj read_newString(byte tc, DataInputStream dis) throws IOException {
-        byte[] data;
+    public stringobj read_newString(byte tc, StreamInput in) throws IOException {
+        int len;
         if(tc == ObjectStreamConstants.TC_REFERENCE) {
-                content c = read_prevObject(dis);
+                content c = read_prevObject(in);
                 if(!(c instanceof stringobj)) {
                     throw new IOException("got reference for a string, but referenced value was something else!");
                 }
                 return (stringobj)c;
         }
+        long offset = in.getPosition() - 1;
         int handle = newHandle();
         if(tc == ObjectStreamConstants.TC_STRING) {
-            int len = dis.readUnsignedShort();
-            data = new byte[len];
+            len = in.readUnsignedShort();
         } else if(tc == ObjectStreamConstants.TC_LONGSTRING) {
-            long len = dis.readLong();
-            if(len < 0) {
-                throw new IOException("invalid long string length: " + len);
+            long llen = in.readLong();
+            if(llen < 0) {
+                throw new IOException("invalid long string length: " + llen);
             }
-            if(len > 2147483647) {
-                throw new IOException("long string is too long: " + len);
+            if(llen > 2147483647) {
+                throw new IOException("long string is too long: " + llen);
             }
-            if(len < 65536) {
-                debugerr("warning: small string length encoded as TC_LONGSTRING: " + len);
+            if(llen < 65536) {
+                debugerr("warning: small string length encoded as TC_LONGSTRING: " + llen);
             }
-            data = new byte[(int)len];
+            len = (int)llen;
         } else if(tc == ObjectStreamConstants.TC_NULL) {
             throw new ValidityException("stream signaled TC_NULL when string type expected!");
         } else {
             throw new IOException("invalid tc byte in string: " + hex(tc));
         }
-        dis.readFully(data);
-        debug("reading new string: handle " + hex(handle) + " bufsz " + data.length);
+        if(replaying) {
+            in.skipFully(len);
+            return (stringobj)handles.get(handle);
+        }
+        if(limits != null) {
+            limits.checkString(len);
+            limits.checkBytes(in.getPosition(), len);
+        }
+        if(stats != null) {
+            stats.string(len);
+        }
+        ParseEvents.largeitem event = beginLargeItem(len);
+        // The slice is decoded immediately, so it's safe to read it straight out of the
+        // input buffer.
+        ByteBuffer data = in.readSlice(len);
+        debug("reading new string: handle " + hex(handle) + " bufsz " + len);
         stringobj sobj = new stringobj(handle, data);
+        sobj.streamstart = offset;
+        sobj.streamend = in.getPosition();
+        if(event != null && event.shouldCommit()) {
+            commitLargeItem(event, handle, "java.lang.String", offset, len);
+        }
         setHandle(handle, sobj);
+        visitor.string(sobj);
         return sobj;
     }
-    public blockdata read_blockdata(byte tc, DataInputStream dis) throws IOException {
+    public blockdata read_blockdata(byte tc, StreamInput in) throws IOException {
+        long offset = in.getPosition() - 1;
         int size;
         if(tc == ObjectStreamConstants.TC_BLOCKDATA) {
-            size = dis.readUnsignedByte();
+            size = in.readUnsignedByte();
         } else if(tc == ObjectStreamConstants.TC_BLOCKDATALONG) {
-            size = dis.readInt();
+            size = in.readInt();
         } else {
             throw new IOException("invalid tc value for blockdata: " + hex(tc));
         }
         if(size < 0) {
             throw new IOException("invalid value for blockdata size: " + size);
         }
-        byte[] b = new byte[size];
-        dis.readFully(b);
         debug("read blockdata of size " + size);
-        return new blockdata(b);
+        if(limits != null) {
+            limits.checkBlockdata(size);
+            limits.checkBytes(in.getPosition(), size);
+        }
+        if(stats != null) {
+            stats.blockdata(size);
+        }
+        ParseEvents.largeitem event = beginLargeItem(size);
+        blockdata bd;
+        if(in.hasStableSlices()) {
+            bd = new blockdata(in.readSlice(size));
+        } else {
+            bd = new blockdata(in.readBytes(size));
+        }
+        bd.streamstart = offset;
+        bd.streamend = in.getPosition();
+        if(event != null && event.shouldCommit()) {
+            commitLargeItem(event, -1, "(blockdata)", offset, size);
+        }
+        visitor.blockdata(bd);
+        return bd;
     }
-    public instance read_newObject(DataInputStream dis) throws IOException {
-        classdesc cd = read_classDesc(dis);
+    public instance read_newObject(StreamInput in) throws IOException {
+        int base = depth;
+        try {
+            instance i = start_newObject(in);
+            return (i != null) ? i : (instance)drive(base, in);
+        } finally {
+            unwind(base);
+        }
+    }
+
+    /**
+     * Reads the header of an object, and pushes a frame for reading its class data.
+     * When replaying lazily-read class data, a nested instance is skipped instead, since
+     * it has class data of its own.
+     *
+     * @return the instance, if it was skipped; otherwise null
+     */
+    private instance start_newObject(StreamInput in) throws IOException {
+        long offset = in.getPosition() - 1;
+        classdesc cd = read_classDesc(in);
         int handle = newHandle();
         debug("reading new object: handle " + hex(handle) + " classdesc " + cd.toString());
+        if(replaying) {
+            content c = handles.get(handle);
+            LazyClassdata ld = (c instanceof instance) ? LazyClassdata.of((instance)c) : null;
+            if(ld == null) {
+                throw new ValidityException("no lazily-read instance for handle " + hex(handle));
+            }
+            in.skipFully(ld.end - in.getPosition());
+            curhandle = ld.nexthandle;
+            return (instance)c;
+        }
+        if(limits != null) {
+            limits.checkInstances(++ninstances);
+        }
         instance i = new instance();
         i.classdesc = cd;
         i.handle = handle;
-        setHandle(handle, i);
-        read_Classdata(dis, i);
-        debug("done reading object for handle " + hex(handle));
-        return i;
+        i.streamstart = offset;
+        setContentHandle(handle, i);
+        start_Classdata(i, in);
+        return null;
     }
 
     /**
@@ -747,134 +2056,424 @@ public class jdeserialize {
      *
      * @param tc the last byte read from the stream; it must be one of the TC_* values
      * within ObjectStreamConstants.*
-     * @param dis the DataInputStream to read from
+     * @param in the StreamInput to read from
      * @param blockdata whether or not to read TC_BLOCKDATA (this is the difference
      * between spec rules "object" and "content").
      * @return an object representing the last read item from the stream 
      * @throws IOException when a validity or I/O error occurs while reading
      */
-    public content read_Content(byte tc, DataInputStream dis, boolean blockdata) throws IOException {
+    public content read_Content(byte tc, StreamInput in, boolean blockdata) throws IOException {
+        int base = depth;
         try {
-            switch(tc) {
-                case ObjectStreamConstants.TC_OBJECT:
-                    return read_newObject(dis);
-                case ObjectStreamConstants.TC_CLASS:
-                    return read_newClass(dis);
-                case ObjectStreamConstants.TC_ARRAY:
-                    return read_newArray(dis);
-                case ObjectStreamConstants.TC_STRING:
-                case ObjectStreamConstants.TC_LONGSTRING:
-                    return read_newString(tc, dis);
-                case ObjectStreamConstants.TC_ENUM:
-                    return read_newEnum(dis);
-                case ObjectStreamConstants.TC_CLASSDESC:
-                case ObjectStreamConstants.TC_PROXYCLASSDESC:
-                    return handle_newClassDesc(tc, dis);
-                case ObjectStreamConstants.TC_REFERENCE:
-                    return read_prevObject(dis);
-                case ObjectStreamConstants.TC_NULL:
-                    return null;
-                case ObjectStreamConstants.TC_EXCEPTION:
-                    return read_Exception(dis);
-                case ObjectStreamConstants.TC_BLOCKDATA:
-                case ObjectStreamConstants.TC_BLOCKDATALONG:
-                    if(blockdata == false) {
-                        throw new IOException("got a blockdata TC_*, but not allowed here: " + hex(tc));
+            content c = start_Content(tc, in, blockdata);
+            return (depth == base) ? c : drive(base, in);
+        } catch (ExceptionReadException ere) {
+            return ere.getExceptionObject();
+        } finally {
+            unwind(base);
+        }
+    }
+
+    /**
+     * Starts reading a content item.  Objects, and arrays of objects, are only begun: a
+     * frame is pushed for their contents, which are read by drive(), and null is
+     * returned.  Every other item is read completely and returned.
+     */
+    private content start_Content(byte tc, StreamInput in, boolean blockdata) throws IOException {
+        if(stats != null) {
+            stats.typecode(tc);
+        }
+        if(limits != null) {
+            limits.checkBytes(in.getPosition(), 0);
+        }
+        switch(tc) {
+            case ObjectStreamConstants.TC_OBJECT:
+                return start_newObject(in);
+            case ObjectStreamConstants.TC_CLASS:
+                return read_newClass(in);
+            case ObjectStreamConstants.TC_ARRAY:
+                return start_newArray(in);
+            case ObjectStreamConstants.TC_STRING:
+            case ObjectStreamConstants.TC_LONGSTRING:
+                return read_newString(tc, in);
+            case ObjectStreamConstants.TC_ENUM:
+                return read_newEnum(in);
+            case ObjectStreamConstants.TC_CLASSDESC:
+            case ObjectStreamConstants.TC_PROXYCLASSDESC:
+                return handle_newClassDesc(tc, in);
+            case ObjectStreamConstants.TC_REFERENCE:
+                return read_prevObject(in);
+            case ObjectStreamConstants.TC_NULL:
+                return null;
+            case ObjectStreamConstants.TC_EXCEPTION:
+                return read_Exception(in);
+            case ObjectStreamConstants.TC_BLOCKDATA:
+            case ObjectStreamConstants.TC_BLOCKDATALONG:
+                if(blockdata == false) {
+                    throw new IOException("got a blockdata TC_*, but not allowed here: " + hex(tc));
+                }
+                return read_blockdata(tc, in);
+            default:
+                throw new IOException("unknown content tc byte in stream: " + hex(tc));
+        }
+    }
+
+    /**
+     * <p>
+     * Reads in an entire ObjectOutputStream output on the given stream, filing 
+     * this object's content and handle maps with data about the objects in the stream.  
+     * </p>
+     *
+     * <p>
+     * If shouldConnect is true, then jdeserialize will attempt to identify member classes
+     * by their names according to the details laid out in the Inner Classes
+     * Specification.  If it finds one, it will set the classdesc's flag indicating that
+     * it is an member class, and it will create a reference in its enclosing class.
+     * </p>
+     *
+     * @param is an open InputStream on a serialized stream of data
+     * @param shouldConnect true if jdeserialize should attempt to identify and connect
+     * member classes with their enclosing classes
+     * 
+     * Also see the <pre>connectMemberClasses</pre> method for more information on the 
+     * member-class-detection algorithm.
+     */
+    public void run(InputStream is, boolean shouldConnect) throws IOException {
+        run(new StreamInput(is), shouldConnect);
+    }
+
+    /**
+     * <p>
+     * Reads in an entire ObjectOutputStream output from the given StreamInput; see
+     * run(InputStream, boolean).  Use a MappedStreamInput to parse a file through memory
+     * mappings.
+     * </p>
+     *
+     * <p>
+     * If the stream can't be read, the exception's message gives the offset at which
+     * the error was detected, and the offset of the top-level item that was being read.
+     * Each content item records the range of the stream it was read from; see
+     * content.getStreamStart().
+     * </p>
+     *
+     * @param in the input to read from; it is closed when the parse completes
+     * @param shouldConnect true if jdeserialize should attempt to identify and connect
+     * member classes with their enclosing classes
+     */
+    public void run(StreamInput in, boolean shouldConnect) throws IOException {
+        if(lazy && !in.isSeekable()) {
+            throw new IOException("lazy mode needs a seekable input");
+        }
+        TreeBuilder builder = new TreeBuilder();
+        this.visitor = builder;
+        this.retainContent = true;
+        this.content = builder.getContent();
+        this.deferring = lazy;
+        this.privatedescs = shouldConnect;
+        try {
+            parse(in);
+        } finally {
+            this.deferring = false;
+            this.privatedescs = false;
+        }
+        validateHandles();
+        if(shouldConnect) {
+            connectMemberClasses();
+            validateHandles();
+        }
+        if(handles.size() > 0) {
+            handlemaps.add(handles.freeze());
+        }
+    }
+
+    /**
+     * <p>
+     * Reads in an entire ObjectOutputStream output from the given StreamInput, passing
+     * parse events to the given visitor as they occur rather than building the content
+     * graph.  
+     * </p>
+     *
+     * <p>
+     * In this mode, instances and arrays aren't kept in the handle table once they've been
+     * read, so the memory used doesn't grow with the size of the stream; a reference to
+     * one of them is passed to the visitor (and stored in fields and arrays) as null.
+     * Class descriptions, strings, Class objects and enum constants are still retained,
+     * since later parts of the stream may depend on them.  getContent() returns null
+     * after a streaming parse, and member classes aren't connected.
+     * </p>
+     *
+     * @param in the input to read from; it is closed when the parse completes
+     * @param visitor the visitor to receive parse events
+     */
+    public void run(StreamInput in, StreamVisitor visitor) throws IOException {
+        this.visitor = visitor;
+        this.retainContent = false;
+        this.content = null;
+        try {
+            parse(in);
+            validateHandles();
+            if(handles.size() > 0) {
+                handlemaps.add(handles.freeze());
+            }
+        } finally {
+            this.visitor = new TreeBuilder();
+            this.retainContent = true;
+        }
+    }
+
+    /**
+     * <p>
+     * Reads a stream that is still being written, such as a file that a service keeps
+     * appending records to through one ObjectOutputStream.  The input should be read
+     * from a FollowInputStream, which waits for more data at the end of the file instead
+     * of reporting the end of the stream; an item that has only been partly written when
+     * the parser reaches it is completed when the rest of it arrives, with the handle
+     * table and stream position intact.
+     * </p>
+     *
+     * <p>
+     * Each top-level item is built as by run(StreamInput, boolean), and its new handles
+     * are validated; then it's passed to the listener's topLevel() method as soon as
+     * it's complete.  The listener's reset() method is called when the stream resets its
+     * handle table.  No other events are passed to the listener.  Unlike run(), the
+     * items aren't kept (getContent() returns null), and the handle table of each
+     * generation is dropped when the stream resets, so that memory use is bounded by the
+     * largest generation rather than the length of the stream.  Only the last
+     * generation is in getHandleMaps() afterwards.  Lazy mode doesn't apply, and member
+     * classes aren't connected.
+     * </p>
+     *
+     * @param in the input to read from; it is closed when the parse completes
+     * @param listener receives each top-level item
+     * @throws IOException if the stream can't be read; in particular, an EOFException
+     * if the input reports the end of the stream in the middle of an item
+     */
+    public void follow(StreamInput in, final StreamVisitor listener) throws IOException {
+        this.visitor = new TreeBuilder() {
+            public void reset() {
+                listener.reset();
+            }
+            public void topLevel(content c) {
+                listener.topLevel(c);
+            }
+        };
+        this.retainContent = true;
+        this.content = null;
+        this.following = true;
+        try {
+            parse(in);
+            if(handles.size() > 0) {
+                handlemaps.add(handles.freeze());
+            }
+        } finally {
+            this.following = false;
+            this.visitor = new TreeBuilder();
+        }
+    }
+
+    /**
+     * Validates the content in the current handle table.  Shared class descriptions were
+     * validated when they were added to the cache, and are skipped.
+     */
+    private void validateHandles() throws IOException {
+        validateHandles(ObjectStreamConstants.baseWireHandle);
+    }
+
+    /**
+     * Validates the content in the current handle table whose handles are at least
+     * first.
+     */
+    private void validateHandles(int first) throws IOException {
+        if(stats != null) {
+            stats.start();
+        }
+        try {
+            int end = ObjectStreamConstants.baseWireHandle + handles.extent();
+            for(int h = first; h < end; h++) {
+                content c = handles.get(h);
+                if(c == null || (c instanceof classdesc && ((classdesc)c).isShared())) {
+                    continue;
+                }
+                try {
+                    c.validate();
+                } catch (ValidityException ve) {
+                    long offset = c.getStreamStart();
+                    if(offset < 0) {
+                        throw ve;
                     }
-                    return read_blockdata(tc, dis);
-                default:
-                    throw new IOException("unknown content tc byte in stream: " + hex(tc));
+                    throw new ValidityException(ve.getMessage() + " (in the item at offset " + offset + ")", offset, ve);
+                }
+            }
+        } finally {
+            if(stats != null) {
+                stats.end(ParseStats.phase.VALIDATE, 0);
             }
-        } catch (ExceptionReadException ere) {
-            return ere.getExceptionObject();
         }
     }
 
     /**
-     * <p>
-     * Reads in an entire ObjectOutputStream output on the given stream, filing 
-     * this object's content and handle maps with data about the objects in the stream.  
-     * </p>
-     *
-     * <p>
-     * If shouldConnect is true, then jdeserialize will attempt to identify member classes
-     * by their names according to the details laid out in the Inner Classes
-     * Specification.  If it finds one, it will set the classdesc's flag indicating that
-     * it is an member class, and it will create a reference in its enclosing class.
-     * </p>
-     *
-     * @param is an open InputStream on a serialized stream of data
-     * @param shouldConnect true if jdeserialize should attempt to identify and connect
-     * member classes with their enclosing classes
-     * 
-     * Also see the <pre>connectMemberClasses</pre> method for more information on the 
-     * member-class-detection algorithm.
+     * Reads the stream header and every top-level content item, passing each one to the
+     * visitor's topLevel() method.
      */
-    public void run(InputStream is, boolean shouldConnect) throws IOException {
-        LoggerInputStream lis = null;
-        DataInputStream dis = null;
+    private void parse(StreamInput in) throws IOException {
+        long startpos = in.getPosition();
+        long itemstart = -1;
+        this.input = in;
+        this.nhandles = 0;
+        this.ninstances = 0;
+        if(stats != null) {
+            stats.start();
+        }
         try {
-            lis = new LoggerInputStream(is);
-            dis = new DataInputStream(lis);
-
-            short magic = dis.readShort();
+            short magic = in.readShort();
             if(magic != ObjectStreamConstants.STREAM_MAGIC) {
                 throw new ValidityException("file magic mismatch!  expected " + ObjectStreamConstants.STREAM_MAGIC + ", got " + magic);
             }
-            short streamversion = dis.readShort();
+            short streamversion = in.readShort();
             if(streamversion != ObjectStreamConstants.STREAM_VERSION) {
                 throw new ValidityException("file version mismatch!  expected " + ObjectStreamConstants.STREAM_VERSION + ", got " + streamversion);
             }
             reset();
-            content = new ArrayList<content>();
+            boolean retain = !in.isSeekable();
             while(true) {
                 byte tc;
+                long start;
                 try { 
-                    lis.record();
-                    tc = dis.readByte();
+                    // Only the offsets of each item are tracked.  If the item turns out to
+                    // hold an exception, its data is re-read from the input; inputs that
+                    // can't be re-read have to retain it in their buffer.
+                    start = in.getPosition();
+                    if(retain) {
+                        in.record();
+                    }
+                    tc = in.readByte();
                     if(tc == ObjectStreamConstants.TC_RESET) {
+                        if(stats != null) {
+                            stats.typecode(tc);
+                        }
                         reset();
                         continue;
                     }
                 } catch (EOFException eoe) {
                     break;
                 }
-                content c = read_Content(tc, dis, true);
-                System.out.println("read: " + c.toString());
+                itemstart = start;
+                ParseEvents.item event = null;
+                if(events) {
+                    event = new ParseEvents.item();
+                    event.begin();
+                }
+                HandleTable itemhandles = handles;
+                int itemfirst = curhandle;
+                content c = read_Content(tc, in, true);
+                out.println("read: " + c);
                 if(c != null && c.isExceptionObject()) {
-                    c = new exceptionstate(c, lis.getRecordedData());
+                    long end = in.getPosition();
+                    c = new exceptionstate(c, in.readRange(start, end), start, end);
+                }
+                if(following) {
+                    // An exception resets the handle table; its handles start over.
+                    validateHandles((handles == itemhandles) ? itemfirst : ObjectStreamConstants.baseWireHandle);
+                }
+                if(event != null && event.shouldCommit()) {
+                    event.handle = (c == null) ? -1 : c.getHandle();
+                    event.className = ParseEvents.className(c);
+                    event.offset = start;
+                    event.size = in.getPosition() - start;
+                    event.commit();
                 }
-                content.add(c);
+                visitor.topLevel(c);
             }
+        } catch (IOException ioe) {
+            throw atOffset(ioe, in.getPosition(), itemstart);
         } finally {
-            if(dis != null) {
-                try {
-                    dis.close();
-                } catch (Exception ignore) { }
+            endSegment();
+            this.input = null;
+            if(stats != null) {
+                stats.end(ParseStats.phase.READ, in.getPosition() - startpos);
             }
-            if(lis != null) {
+            if(in != null && !deferring) {
                 try {
-                    lis.close();
-                } catch (Exception ignore) {}
+                    in.close();
+                } catch (Exception ignore) { }
             }
         }
-        for(content c: handles.values()) {
-            c.validate();
+    }
+    /**
+     * Returns an exception like the given one, whose message also gives the offset at
+     * which the error was detected, and the offset of the top-level item that was being
+     * read.  ValidityExceptions and LimitExceededExceptions, and exceptions whose class
+     * is exactly IOException, EOFException, UTFDataFormatException or
+     * InterruptedIOException, are copied with the same type (and the offset), with the
+     * given exception as the cause.  Any other exception is returned as it is, so that
+     * callers can still tell what it was; the offset is given by an IOException added to
+     * its suppressed exceptions.
+     *
+     * @param itemstart the offset of the item, or -1 if the error was in the header
+     */
+    static IOException atOffset(IOException ioe, long offset, long itemstart) {
+        String where = " (at offset " + offset
+            + ((itemstart < 0) ? "" : ", in the top-level item at offset " + itemstart) + ")";
+        IOException e;
+        if(ioe instanceof LimitExceededException) {
+            return new LimitExceededException((LimitExceededException)ioe, where, offset);
+        } else if(ioe instanceof ValidityException) {
+            return new ValidityException(ioe.getMessage() + where, offset, ioe);
+        } else if(ioe.getClass() == EOFException.class) {
+            e = new EOFException(ioe.getMessage() + where);
+        } else if(ioe.getClass() == UTFDataFormatException.class) {
+            e = new UTFDataFormatException(ioe.getMessage() + where);
+        } else if(ioe.getClass() == InterruptedIOException.class) {
+            InterruptedIOException iioe = new InterruptedIOException(ioe.getMessage() + where);
+            iioe.bytesTransferred = ((InterruptedIOException)ioe).bytesTransferred;
+            e = iioe;
+        } else if(ioe.getClass() == IOException.class) {
+            return new IOException(ioe.getMessage() + where, ioe);
+        } else {
+            ioe.addSuppressed(new IOException("error" + where));
+            return ioe;
         }
-        if(shouldConnect) {
-            connectMemberClasses();
-            for(content c: handles.values()) {
-                c.validate();
-            }
+        e.initCause(ioe);
+        return e;
+    }
+
+    public void dump(Getopt go) throws IOException {
+        dump(go, out);
+    }
+
+    /**
+     * <p>
+     * Writes the dump selected by the given options (as for the command-line tool) to
+     * any Appendable.  The output is buffered in a DumpWriter, and passed to the sink
+     * in large chunks as it's rendered; the sink is flushed (if it's Flushable) when the
+     * dump is complete.
+     * </p>
+     *
+     * @param go the command-line options
+     * @param sink where the dump is written
+     * @throws IOException if an I/O error occurs
+     */
+    public void dump(Getopt go, Appendable sink) throws IOException {
+        DumpWriter dw = (sink instanceof DumpWriter) ? (DumpWriter)sink : new DumpWriter(sink);
+        if(stats != null) {
+            stats.start();
         }
-        if(handles != null && handles.size() > 0) {
-            HashMap<Integer,content> hm = new HashMap<Integer,content>();
-            hm.putAll(handles);
-            handlemaps.add(hm);
+        try {
+            dump(go, dw);
+        } finally {
+            dw.flush();
+            if(stats != null) {
+                stats.end(ParseStats.phase.DUMP, 0);
+            }
         }
     }
-    public void dump(Getopt go) throws IOException {
+    private void dump(Getopt go, DumpWriter dw) throws IOException {
+        ParseEvents.dumpphase event;
+        long mark;
+        int items;
         if(go.hasOption("-blockdata") || go.hasOption("-blockdatamanifest")) {
+            event = beginDumpPhase();
+            mark = dw.getCount();
             List<String> bout = go.getArguments("-blockdata");
             List<String> mout = go.getArguments("-blockdatamanifest");
             FileOutputStream bos = null, mos = null;
@@ -890,14 +2489,17 @@ public class jdeserialize {
                     pw.println("# an individual blockdata block written to the stream.");
                 }
                 for(content c: content) {
-                    System.out.println(c.toString());
+                    dw.println(c.toString());
                     if(c instanceof blockdata) {
                         blockdata bd = (blockdata)c;
                         if(mos != null) {
-                            pw.println(bd.buf.length);
+                            pw.println(bd.getSize());
                         }
                         if(bos != null) {
-                            bos.write(bd.buf);
+                            ByteBuffer data = bd.getData();
+                            while(data.hasRemaining()) {
+                                bos.getChannel().write(data);
+                            }
                         }
                     }
                 }
@@ -914,20 +2516,28 @@ public class jdeserialize {
                     } catch (IOException ignore) { }
                 }
             }
+            endDumpPhase(event, "blockdata", content.size(), dw.getCount() - mark);
         }
         if(!go.hasOption("-nocontent")) {
-            System.out.println("//// BEGIN stream content output");
+            event = beginDumpPhase();
+            mark = dw.getCount();
+            dw.println("//// BEGIN stream content output");
             for(content c: content) {
-                System.out.println(c.toString());
+                dw.println(c.toString());
             }
-            System.out.println("//// END stream content output");
-            System.out.println("");
+            dw.println("//// END stream content output");
+            dw.newline();
+            endDumpPhase(event, "content", content.size(), dw.getCount() - mark);
         }
 
         if(!go.hasOption("-noclasses")) {
+            event = beginDumpPhase();
+            mark = dw.getCount();
+            items = 0;
             boolean showarray = go.hasOption("-showarrays");
             List<String> fpat = go.getArguments("-filter");
-            System.out.println("//// BEGIN class declarations"
+            Pattern filter = (fpat != null && fpat.size() > 0) ? Pattern.compile(fpat.get(0)) : null;
+            dw.println("//// BEGIN class declarations"
                     + (showarray? "" : " (excluding array classes)")
                     + ((fpat != null && fpat.size() > 0) 
                         ? " (exclusion filter " + fpat.get(0) + ")"
@@ -943,26 +2553,52 @@ public class jdeserialize {
                     if(cl.isStaticMemberClass() || cl.isInnerClass()) {
                         continue;
                     }
-                    if(fpat != null && fpat.size() > 0 && cl.name.matches(fpat.get(0))) {
+                    if(filter != null && filter.matcher(cl.name).matches()) {
                         continue;
                     }
-                    dump_ClassDesc(0, cl, System.out, go.hasOption("-fixnames"));
-                    System.out.println("");
+                    dump_ClassDesc(0, cl, dw, go.hasOption("-fixnames"));
+                    dw.newline();
+                    items++;
                 }
             }
-            System.out.println("//// END class declarations");
-            System.out.println("");
+            dw.println("//// END class declarations");
+            dw.newline();
+            endDumpPhase(event, "classes", items, dw.getCount() - mark);
         }
         if(!go.hasOption("-noinstances")) {
-            System.out.println("//// BEGIN instance dump");
+            event = beginDumpPhase();
+            mark = dw.getCount();
+            items = 0;
+            dw.println("//// BEGIN instance dump");
             for(content c: handles.values()) {
                 if(c instanceof instance) {
                     instance i = (instance)c;
-                    dump_Instance(0, i, System.out);
+                    if(isExcluded(i.classdesc)) {
+                        continue;
+                    }
+                    dump_Instance(0, i, dw);
+                    items++;
                 }
             }
-            System.out.println("//// END instance dump");
-            System.out.println("");
+            dw.println("//// END instance dump");
+            dw.newline();
+            endDumpPhase(event, "instances", items, dw.getCount() - mark);
+        }
+    }
+    private ParseEvents.dumpphase beginDumpPhase() {
+        if(!events) {
+            return null;
+        }
+        ParseEvents.dumpphase event = new ParseEvents.dumpphase();
+        event.begin();
+        return event;
+    }
+    private static void endDumpPhase(ParseEvents.dumpphase event, String phase, int items, long size) {
+        if(event != null && event.shouldCommit()) {
+            event.phase = phase;
+            event.items = items;
+            event.size = size;
+            event.commit();
         }
     }
 
@@ -1007,9 +2643,24 @@ public class jdeserialize {
      * @throws ValidityException if the found values don't correspond to spec
      */
     public void connectMemberClasses() throws IOException {
+        if(stats != null) {
+            stats.start();
+        }
+        try {
+            connect();
+        } finally {
+            if(stats != null) {
+                stats.end(ParseStats.phase.CONNECT, 0);
+            }
+        }
+    }
+    private void connect() throws IOException {
         HashMap<classdesc, String> newnames = new HashMap<classdesc, String>();
         HashMap<String, classdesc> classes = new HashMap<String, classdesc>();
         HashSet<String> classnames = new HashSet<String>();
+        // Type strings of shared descriptions, which this stream's own descriptions may
+        // also refer to; they're never renamed in place.
+        Set<stringobj> sharedstrings = Collections.newSetFromMap(new IdentityHashMap<stringobj, Boolean>());
         for(content c: handles.values()) {
             if(!(c instanceof classdesc)) {
                 continue;
@@ -1017,11 +2668,18 @@ public class jdeserialize {
             classdesc cd = (classdesc)c;
             classes.put(cd.name, cd);
             classnames.add(cd.name);
+            if(cd.isShared()) {
+                for(field f: cd.fields) {
+                    if(f.classname != null) {
+                        sharedstrings.add(f.classname);
+                    }
+                }
+            }
         }
         Pattern fpat = Pattern.compile("^this\\$(\\d+)$");
         Pattern clpat = Pattern.compile("^((?:[^\\$]+\\$)*[^\\$]+)\\$([^\\$]+)$");
         for(classdesc cd: classes.values()) {
-            if(cd.classtype == classdesctype.PROXYCLASS) {
+            if(cd.classtype == classdesctype.PROXYCLASS || cd.isShared()) {
                 continue;
             }
             for(field f: cd.fields) {
@@ -1042,6 +2700,9 @@ public class jdeserialize {
                 if(outercd == null) {
                     throw new ValidityException("couldn't connect inner classes: outer class not found for field name " + f.name);
                 }
+                if(outercd.isShared()) {
+                    continue;
+                }
                 if(!outercd.name.equals(f.getJavaType())) {
                     throw new ValidityException("outer class field type doesn't match field type name: " + f.classname.value + " outer class name " + outercd.name);
                 }
@@ -1056,7 +2717,7 @@ public class jdeserialize {
             if(cd.classtype == classdesctype.PROXYCLASS) {
                 continue;
             }
-            if(cd.isInnerClass()) {
+            if(cd.isInnerClass() || cd.isShared()) {
                 continue;
             }
             Matcher clmat = clpat.matcher(cd.name);
@@ -1065,7 +2726,7 @@ public class jdeserialize {
             }
             String outer = clmat.group(1), inner = clmat.group(2);
             classdesc outercd = classes.get(outer);
-            if(outercd != null) {
+            if(outercd != null && !outercd.isShared()) {
                 outercd.addInnerClass(cd);
                 cd.setIsStaticMemberClass(true);
                 newnames.put(cd, inner);
@@ -1077,11 +2738,14 @@ public class jdeserialize {
                 throw new ValidityException("can't rename class from " + ncd.name + " to " + newname + " -- class already exists!");
             }
             for(classdesc cd: classes.values()) {
-                if(cd.classtype == classdesctype.PROXYCLASS) {
+                if(cd.classtype == classdesctype.PROXYCLASS || cd.isShared()) {
                     continue;
                 }
                 for(field f: cd.fields) {
                     if(f.getJavaType().equals(ncd.name)) {
+                        if(sharedstrings.contains(f.classname)) {
+                            f.classname = new stringobj(f.classname.handle, f.classname.value);
+                        }
                         f.setReferenceTypeName(newname);
                     }
                 }
@@ -1137,7 +2801,7 @@ public class jdeserialize {
     }
     public void debug(String message) {
         if(debugEnabled) {
-            System.out.println(message);
+            out.println(message);
         }
     }
 
@@ -1155,6 +2819,17 @@ public class jdeserialize {
         go.addOption("-noclasses", 0, "Don't output class declarations.");
         go.addOption("-blockdata", 1, "Write raw blockdata out to the specified file.");
         go.addOption("-blockdatamanifest", 1, "Write blockdata manifest out to the specified file.");
+        go.addOption("-include", 1, "Only decode instances of classes matching the given comma-separated globs (e.g. com.example.*); may be repeated.");
+        go.addOption("-exclude", 1, "Don't decode instances of classes matching the given comma-separated globs; may be repeated.");
+        go.addOption("-limit", 1, "Reject streams that exceed the given comma-separated name=value budgets (bytes, string, array, blockdata, depth, handles, instances); may be repeated.");
+        go.addOption("-extract", 1, "Write the raw bytes of the item with the given handle (e.g. 0x7e0003) to stdout, instead of decoding the file.");
+        go.addOption("-index", 0, "Build the index file <file>" + StreamIndex.SUFFIX + " for each file, if it's missing or out of date, instead of decoding it; with -extract, find the item through the index.");
+        go.addOption("-follow", 0, "Keep reading a file that's still being appended to, dumping the classes and instances of each top-level item as it's completed; runs until interrupted.");
+        go.addOption("-query", 1, "Print the values yielded by the given query (e.g. \"com.example.Session[*].user.name where lastAccess > 0\") instead of decoding the file; see Query.");
+        go.addOption("-scan", 0, "Only check that each file is a valid stream, without decoding it; exit with status 1 if any isn't.");
+        go.addOption("-stats", 0, "Write parse statistics (time, input and allocated bytes per phase, typecode counts, largest items) to stderr.");
+        go.addOption("-mmap", 0, "Read input files through memory mappings instead of streams.");
+        go.addOption("-threads", 1, "Decode files concurrently on the given number of threads (or \"virtual\" for a virtual thread per file); output is still written in argument order.");
         try {
             go.parse(args);
         } catch (Getopt.OptionParseException ope) {
@@ -1166,38 +2841,537 @@ public class jdeserialize {
             System.out.println(go.getDescriptionString());
             System.exit(1);
         }
+        try {
+            newParseLimits(go);
+            if(go.hasOption("-extract")) {
+                parseHandle(go);
+            }
+            if(go.hasOption("-query")) {
+                Query.compile(go.getArguments("-query").get(0));
+            }
+        } catch (IllegalArgumentException iae) {
+            debugerr("argument error: " + iae.getMessage());
+            System.exit(1);
+        }
+        if(go.hasOption("-scan") && (go.hasOption("-extract") || go.hasOption("-index"))) {
+            debugerr("argument error: -scan can't be combined with -extract or -index");
+            System.exit(1);
+        }
+        if(go.hasOption("-query") && (go.hasOption("-scan") || go.hasOption("-extract") || go.hasOption("-index"))) {
+            debugerr("argument error: -query can't be combined with -scan, -extract or -index");
+            System.exit(1);
+        }
+        if(go.hasOption("-follow") && (go.hasOption("-scan") || go.hasOption("-extract") || go.hasOption("-index")
+                    || go.hasOption("-query") || go.hasOption("-mmap") || go.hasOption("-threads"))) {
+            debugerr("argument error: -follow can't be combined with -scan, -extract, -index, -query, -mmap or -threads");
+            System.exit(1);
+        }
         List<String> fargs = go.getOtherArguments();
+        if(go.hasOption("-follow") && fargs.size() > 1) {
+            debugerr("argument error: -follow takes a single file");
+            System.exit(1);
+        }
         if(fargs.size() < 1) {
             debugerr("args: [options] file1 [file2 .. fileN]");
             System.err.println("");
             System.err.println(go.getDescriptionString());
             System.exit(1);
         }
-        for(String filename: fargs) {
-            FileInputStream fis = null;
-            try {
-                fis = new FileInputStream(filename);
-                jdeserialize jd = new jdeserialize(filename);
-                if(go.hasOption("-debug")) {
-                    jd.debugEnabled = true;
-                } else {
-                    jd.debugEnabled = false;
+        int nthreads = 0;
+        boolean virtual = false;
+        if(go.hasOption("-threads")) {
+            String targ = go.getArguments("-threads").get(0);
+            if(targ.equals("virtual")) {
+                virtual = true;
+            } else {
+                try {
+                    nthreads = Integer.parseInt(targ);
+                } catch (NumberFormatException nfe) {
+                    nthreads = -1;
+                }
+                if(nthreads < 1) {
+                    debugerr("argument error: invalid thread count: " + targ);
+                    System.exit(1);
                 }
+            }
+            if(go.hasOption("-blockdata") || go.hasOption("-blockdatamanifest")) {
+                debugerr("argument error: -threads can't be combined with -blockdata or -blockdatamanifest");
+                System.exit(1);
+            }
+        }
+        boolean ok = true;
+        if(nthreads > 1 || virtual) {
+            ok = decodeFiles(fargs, go, nthreads, virtual);
+        } else {
+            for(String filename: fargs) {
+                ok &= decodeFile(filename, go, System.out, System.err);
+            }
+        }
+        if(!ok && (go.hasOption("-scan") || go.hasOption("-extract") || go.hasOption("-index") || go.hasOption("-query")
+                    || go.hasOption("-follow"))) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Builds the class filter given by the -include and -exclude options, or returns
+     * null if there are none.
+     */
+    private static ClassFilter newClassFilter(Getopt go) {
+        if(!go.hasOption("-include") && !go.hasOption("-exclude")) {
+            return null;
+        }
+        ClassFilter cf = new ClassFilter();
+        if(go.hasOption("-include")) {
+            for(String list: go.getArguments("-include")) {
+                ClassFilter.addAll(cf, list, true);
+            }
+        }
+        if(go.hasOption("-exclude")) {
+            for(String list: go.getArguments("-exclude")) {
+                ClassFilter.addAll(cf, list, false);
+            }
+        }
+        return cf;
+    }
+
+    /**
+     * Builds the limits given by the -limit options, or returns null if there are none.
+     *
+     * @throws IllegalArgumentException if an option can't be parsed
+     */
+    private static ParseLimits newParseLimits(Getopt go) {
+        if(!go.hasOption("-limit")) {
+            return null;
+        }
+        ParseLimits limits = new ParseLimits();
+        for(String list: go.getArguments("-limit")) {
+            ParseLimits.setAll(limits, list);
+        }
+        return limits;
+    }
+
+    /**
+     * Parses the handle given by the -extract option; it may be in hex (with a 0x
+     * prefix) or decimal.
+     *
+     * @throws IllegalArgumentException if it can't be parsed
+     */
+    private static int parseHandle(Getopt go) {
+        String arg = go.getArguments("-extract").get(0);
+        try {
+            return Integer.decode(arg);
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("invalid handle: " + arg);
+        }
+    }
+
+    /**
+     * Decodes (or with -scan, scans; with -index, indexes; with -extract, extracts from;
+     * with -query, queries; with -follow, follows) a single file for the command-line
+     * tool, writing the results to out and any error messages to err.
+     *
+     * @return true if the file was read successfully
+     */
+    private static boolean decodeFile(String filename, Getopt go, PrintStream out, PrintStream err) {
+        if(go.hasOption("-scan")) {
+            return scanFile(filename, go, out, err);
+        }
+        if(go.hasOption("-index")) {
+            return indexFile(filename, go, out, err);
+        }
+        if(go.hasOption("-extract")) {
+            return extractFile(filename, go, out, err);
+        }
+        if(go.hasOption("-query")) {
+            return queryFile(filename, go, out, err);
+        }
+        if(go.hasOption("-follow")) {
+            return followFile(filename, go, out, err);
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(filename);
+            jdeserialize jd = new jdeserialize(filename);
+            jd.setOutput(out);
+            if(go.hasOption("-debug")) {
+                jd.debugEnabled = true;
+            } else {
+                jd.debugEnabled = false;
+            }
+            jd.setCollectStats(go.hasOption("-stats"));
+            jd.setClassFilter(newClassFilter(go));
+            jd.setLimits(newParseLimits(go));
+            if(go.hasOption("-mmap")) {
+                jd.run(new MappedStreamInput(fis.getChannel()), !go.hasOption("-noconnect"));
+            } else {
                 jd.run(fis, !go.hasOption("-noconnect"));
-                jd.dump(go);
-            } catch(EOFException eoe) {
-                debugerr("EOF error while attempting to decode file " + filename + ": " + eoe.getMessage());
-                eoe.printStackTrace();
-            } catch(IOException ioe) {
-                debugerr("error while attempting to decode file " + filename + ": " + ioe.getMessage());
-                ioe.printStackTrace();
+            }
+            jd.dump(go);
+            if(go.hasOption("-stats")) {
+                err.println("//// " + filename);
+                err.print(jd.getStats());
+            }
+            return true;
+        } catch(EOFException eoe) {
+            err.println("EOF error while attempting to decode file " + filename + ": " + eoe.getMessage());
+            eoe.printStackTrace(err);
+        } catch(IOException ioe) {
+            err.println("error while attempting to decode file " + filename + ": " + ioe.getMessage());
+            ioe.printStackTrace(err);
+        } finally {
+            if(fis != null) {
+                try {
+                    fis.close();
+                } catch (Exception ignore) { }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scans a single file for -scan, printing "filename: ok" to out if it's valid, and
+     * the reason to err otherwise.
+     *
+     * @return true if the file is valid
+     */
+    private static boolean scanFile(String filename, Getopt go, PrintStream out, PrintStream err) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(filename);
+            StreamInput in;
+            if(go.hasOption("-mmap")) {
+                in = new MappedStreamInput(fis.getChannel());
+            } else {
+                in = new StreamInput(fis);
+            }
+            StreamScanner scanner = new StreamScanner();
+            scanner.setLimits(newParseLimits(go));
+            ParseStats ps = scanner.scan(in);
+            out.println(filename + ": ok");
+            if(go.hasOption("-stats")) {
+                err.println("//// " + filename);
+                err.print(ps);
+            }
+            return true;
+        } catch(EOFException eoe) {
+            err.println("EOF error while attempting to scan file " + filename + ": " + eoe.getMessage());
+        } catch(IOException ioe) {
+            err.println("error while attempting to scan file " + filename + ": " + ioe.getMessage());
+        } finally {
+            if(fis != null) {
+                try {
+                    fis.close();
+                } catch (Exception ignore) { }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a single file for -extract, and writes the raw bytes of the item with the
+     * given handle to out.  The bytes are transferred from a new input on the file; when
+     * out is System.out, they're written to its file descriptor directly, so that they
+     * can be moved without being copied through the heap.
+     *
+     * @return true if the item was found and written
+     */
+    private static boolean extractFile(String filename, Getopt go, PrintStream out, PrintStream err) {
+        int handle = parseHandle(go);
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(filename);
+            jdeserialize jd = new jdeserialize(filename);
+            // The parse's own output would get mixed up with the raw bytes.
+            jd.setOutput(NULL_OUTPUT);
+            jd.setClassFilter(newClassFilter(go));
+            jd.setLimits(newParseLimits(go));
+            if(go.hasOption("-mmap")) {
+                jd.run(new MappedStreamInput(fis.getChannel()), false);
+            } else {
+                jd.run(fis, false);
+            }
+            content c = jd.getContentByHandle(handle);
+            if(c == null) {
+                err.println("error while attempting to extract from file " + filename + ": no item with handle " + hex(handle));
+                return false;
+            }
+            fis.close();
+            fis = new FileInputStream(filename);
+            StreamInput in;
+            if(go.hasOption("-mmap")) {
+                in = new MappedStreamInput(fis.getChannel());
+            } else {
+                in = new StreamInput(fis);
+            }
+            transferRawData(c, in, rawOutput(out));
+            return true;
+        } catch(IOException ioe) {
+            err.println("error while attempting to extract from file " + filename + ": " + ioe.getMessage());
+        } finally {
+            if(fis != null) {
+                try {
+                    fis.close();
+                } catch (Exception ignore) { }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a single file for -query, and prints each value the query yields to out,
+     * one per line, preceded by the class and handle of the instance it was reached
+     * from.
+     *
+     * @return true if the file was parsed and queried
+     */
+    private static boolean queryFile(String filename, Getopt go, PrintStream out, PrintStream err) {
+        Query q = Query.compile(go.getArguments("-query").get(0));
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(filename);
+            jdeserialize jd = new jdeserialize(filename);
+            jd.setOutput(NULL_OUTPUT);
+            jd.setClassFilter(newClassFilter(go));
+            jd.setLimits(newParseLimits(go));
+            if(go.hasOption("-mmap")) {
+                jd.run(new MappedStreamInput(fis.getChannel()), false);
+            } else {
+                jd.run(fis, false);
+            }
+            for(Query.match m: q.run(jd)) {
+                out.println(m);
+            }
+            return true;
+        } catch(IOException ioe) {
+            err.println("error while attempting to query file " + filename + ": " + ioe.getMessage());
+        } finally {
+            if(fis != null) {
+                try {
+                    fis.close();
+                } catch (Exception ignore) { }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Follows a single file for -follow, until the process is interrupted or the file
+     * can't be read.  As each top-level item is completed, the "read:" line for it and
+     * then the declarations of the classes and the dumps of the instances it introduced
+     * are written to out, and out is flushed.
+     *
+     * @return true if the stream ended cleanly
+     */
+    private static boolean followFile(String filename, Getopt go, PrintStream out, PrintStream err) {
+        FollowInputStream fis = null;
+        try {
+            fis = new FollowInputStream(new File(filename));
+            jdeserialize jd = new jdeserialize(filename);
+            jd.setOutput(out);
+            jd.debugEnabled = go.hasOption("-debug");
+            jd.setClassFilter(newClassFilter(go));
+            jd.setLimits(newParseLimits(go));
+            jd.follow(new StreamInput(fis), jd.new follower(go));
+            return true;
+        } catch(IOException ioe) {
+            err.println("error while attempting to follow file " + filename + ": " + ioe.getMessage());
+        } catch(UncheckedIOException uioe) {
+            err.println("error while attempting to follow file " + filename + ": " + uioe.getCause().getMessage());
+        } finally {
+            if(fis != null) {
+                try {
+                    fis.close();
+                } catch (Exception ignore) { }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Listener for -follow.  After each top-level item, it dumps the content that the
+     * item added to the handle table, as the class declaration and instance dump
+     * sections of dump() would, subject to the same options.
+     */
+    private class follower extends StreamVisitorAdapter {
+        private final Getopt go;
+        private final Pattern filter;
+        private int next = ObjectStreamConstants.baseWireHandle;
+
+        follower(Getopt go) {
+            this.go = go;
+            List<String> fpat = go.getArguments("-filter");
+            this.filter = (fpat != null && fpat.size() > 0) ? Pattern.compile(fpat.get(0)) : null;
+        }
+        public void reset() {
+            next = ObjectStreamConstants.baseWireHandle;
+        }
+        public void topLevel(content c) {
+            int end = ObjectStreamConstants.baseWireHandle + handles.extent();
+            try {
+                for(int h = next; h < end; h++) {
+                    content nc = handles.get(h);
+                    if(nc instanceof classdesc && !go.hasOption("-noclasses")) {
+                        classdesc cl = (classdesc)nc;
+                        if(!go.hasOption("-showarrays") && cl.isArrayClass()) {
+                            continue;
+                        }
+                        if(filter != null && filter.matcher(cl.name).matches()) {
+                            continue;
+                        }
+                        dump_ClassDesc(0, cl, out, go.hasOption("-fixnames"));
+                        out.println();
+                    } else if(nc instanceof instance && !go.hasOption("-noinstances")) {
+                        instance i = (instance)nc;
+                        if(!isExcluded(i.classdesc)) {
+                            dump_Instance(0, i, out);
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            next = end;
+            out.flush();
+        }
+    }
+
+    /**
+     * Returns a channel for writing raw bytes to out, after flushing it.  When out is
+     * System.out, this is a channel on its file descriptor, so that file data can be
+     * transferred to it without being copied through the heap.
+     */
+    private static WritableByteChannel rawOutput(PrintStream out) {
+        out.flush();
+        if(out == System.out) {
+            return new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        return Channels.newChannel(out);
+    }
+
+    /**
+     * Opens (building it if necessary) the index of a single file for -index.  With
+     * -extract, the raw bytes of the item with the given handle are written to out;
+     * otherwise, a summary of the index is.
+     *
+     * @return true if the index was opened, and any item was found and written
+     */
+    private static boolean indexFile(String filename, Getopt go, PrintStream out, PrintStream err) {
+        try {
+            StreamIndex si = StreamIndex.openOrBuild(new File(filename));
+            if(!go.hasOption("-extract")) {
+                int nhandles = 0;
+                for(int g = 0; g < si.getGenerationCount(); g++) {
+                    nhandles += si.getHandleCount(g);
+                }
+                out.println(filename + ": " + si.getGenerationCount() + " generations, " + nhandles + " handles, "
+                        + si.getTopLevelCount() + " top-level items, " + si.getClassNames().size() + " classes");
+                return true;
+            }
+            int handle = parseHandle(go);
+            StreamIndex.entry e = si.find(handle);
+            if(e == null) {
+                err.println("error while attempting to extract from file " + filename + ": no item with handle " + hex(handle));
+                return false;
+            }
+            if(e.end < 0) {
+                err.println("error while attempting to extract from file " + filename + ": item " + hex(handle) + " wasn't completely written");
+                return false;
+            }
+            FileInputStream fis = new FileInputStream(filename);
+            try {
+                StreamInput in = new StreamInput(fis);
+                in.transferRange(e.start, e.end, rawOutput(out));
             } finally {
-                if(fis != null) {
-                    try {
-                        fis.close();
-                    } catch (Exception ignore) { }
+                fis.close();
+            }
+            return true;
+        } catch(IOException ioe) {
+            err.println("error while attempting to index file " + filename + ": " + ioe.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * <p>
+     * Decodes files concurrently for the command-line tool.  Each file is parsed and
+     * dumped on a pool thread into its own in-memory output, and the outputs are written
+     * to System.out (and System.err) in the order the files were given.  
+     * </p>
+     *
+     * <p>
+     * A fixed pool of nthreads threads suits large, CPU-bound files.  Virtual threads
+     * (one per file) suit directories of small files, where most of the time is spent
+     * waiting on I/O; they require a JVM that supports them, and a fixed pool with one
+     * thread per processor is used otherwise.  To bound memory use, only a limited number
+     * of files beyond the oldest unfinished one are processed at a time.
+     * </p>
+     *
+     * @return true if every file was read successfully
+     */
+    private static boolean decodeFiles(List<String> filenames, final Getopt go, int nthreads, boolean virtual) {
+        ExecutorService pool = null;
+        if(virtual) {
+            try {
+                pool = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException roe) {
+                nthreads = Runtime.getRuntime().availableProcessors();
+                debugerr("warning: virtual threads aren't supported by this JVM; using " + nthreads + " threads");
+            }
+        }
+        if(pool == null) {
+            pool = Executors.newFixedThreadPool(nthreads);
+        }
+        int window = (pool instanceof ThreadPoolExecutor) ? nthreads * 4 : 1024;
+        ArrayDeque<Future<ByteArrayOutputStream[]>> pending = new ArrayDeque<Future<ByteArrayOutputStream[]>>();
+        Iterator<String> it = filenames.iterator();
+        final AtomicBoolean ok = new AtomicBoolean(true);
+        try {
+            while(it.hasNext() || !pending.isEmpty()) {
+                while(it.hasNext() && pending.size() < window) {
+                    final String filename = it.next();
+                    pending.add(pool.submit(new Callable<ByteArrayOutputStream[]>() {
+                        public ByteArrayOutputStream[] call() {
+                            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                            ByteArrayOutputStream berr = new ByteArrayOutputStream();
+                            PrintStream out = new PrintStream(bout);
+                            PrintStream err = new PrintStream(berr);
+                            boolean decoded = false;
+                            try {
+                                decoded = decodeFile(filename, go, out, err);
+                            } catch (RuntimeException e) {
+                                err.println("error while attempting to decode file " + filename + ": " + e);
+                                e.printStackTrace(err);
+                            }
+                            if(!decoded) {
+                                ok.set(false);
+                            }
+                            out.flush();
+                            err.flush();
+                            return new ByteArrayOutputStream[] { bout, berr };
+                        }
+                    }));
                 }
+                ByteArrayOutputStream[] sinks = pending.poll().get();
+                sinks[0].writeTo(System.out);
+                System.out.flush();
+                sinks[1].writeTo(System.err);
+                System.err.flush();
             }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            ok.set(false);
+        } catch (ExecutionException ee) {
+            if(ee.getCause() instanceof Error) {
+                throw (Error)ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+        } catch (IOException ioe) {
+            debugerr("error while writing output: " + ioe.getMessage());
+            ok.set(false);
+        } finally {
+            pool.shutdownNow();
         }
+        return ok.get();
     }
 }
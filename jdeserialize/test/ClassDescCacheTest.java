@@ -0,0 +1,89 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks that parsing with a ClassDescCache gives the same dump as parsing without one,
+ * for every stream in testcases: with a cold cache, with a cache that already holds the
+ * descriptions of every stream (so that one stream's member-class connections would show
+ * up in another's dump if they leaked into the shared descriptions), and with a cache
+ * that holds a single entry.  Between runs, each stream is also parsed with the shared
+ * cache without connecting member classes, and connected afterwards, which mustn't
+ * modify the shared descriptions either.
+ */
+public class ClassDescCacheTest {
+    private static String dump(File f, ClassDescCache cache) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bout, true, "UTF-8");
+        jdeserialize jd = new jdeserialize(f.getPath());
+        jd.setOutput(out);
+        jd.setClassDescCache(cache);
+        FileInputStream fis = new FileInputStream(f);
+        try {
+            jd.run(fis, true);
+        } finally {
+            fis.close();
+        }
+        Getopt go = new Getopt();
+        go.parse(new String[0]);
+        StringBuilder sb = new StringBuilder();
+        jd.dump(go, sb);
+        out.flush();
+        return bout.toString("UTF-8") + sb;
+    }
+
+    private static void connectLater(File f, ClassDescCache cache) throws Exception {
+        jdeserialize jd = new jdeserialize(f.getPath());
+        jd.setOutput(new PrintStream(new ByteArrayOutputStream()));
+        jd.setClassDescCache(cache);
+        FileInputStream fis = new FileInputStream(f);
+        try {
+            jd.run(fis, false);
+        } finally {
+            fis.close();
+        }
+        jd.connectMemberClasses();
+    }
+
+    private static void compare(File f, String expected, ClassDescCache cache, String what) throws Exception {
+        String actual = dump(f, cache);
+        if(!expected.equals(actual)) {
+            throw new AssertionError(f + ": dump with " + what + " differs from the uncached dump:\n"
+                    + expected + "\n----\n" + actual);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File[] files = new File("testcases").listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".duh");
+            }
+        });
+        Arrays.sort(files);
+        Map<File, String> expected = new LinkedHashMap<File, String>();
+        for(File f: files) {
+            try {
+                expected.put(f, dump(f, null));
+            } catch (IOException ioe) {
+                // Streams that can't be parsed aren't interesting here.
+            }
+        }
+        if(expected.size() == 0) {
+            throw new AssertionError("no test streams found in testcases");
+        }
+        ClassDescCache warm = new ClassDescCache();
+        ClassDescCache tiny = new ClassDescCache(1);
+        for(int pass = 0; pass < 2; pass++) {
+            for(Map.Entry<File, String> e: expected.entrySet()) {
+                compare(e.getKey(), e.getValue(), new ClassDescCache(), "a cold cache");
+                compare(e.getKey(), e.getValue(), warm, "a shared cache");
+                connectLater(e.getKey(), warm);
+                compare(e.getKey(), e.getValue(), tiny, "a one-entry cache");
+            }
+        }
+        if(warm.getHits() == 0) {
+            throw new AssertionError("the shared cache was never hit");
+        }
+        System.out.println("ClassDescCacheTest: " + expected.size() + " streams ok");
+    }
+}
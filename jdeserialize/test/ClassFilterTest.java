@@ -0,0 +1,93 @@
+package org.unsynchronized;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Checks ClassFilter's pattern matching against the equivalent regular expressions, for
+ * random sets of patterns and names, and checks that patterns with many '*'s don't take
+ * exponential time on names they don't match.
+ */
+public class ClassFilterTest {
+    private static final String ALPHABET = "ab.$";
+
+    private static String random(Random r, String chars, int maxlen) {
+        int len = r.nextInt(maxlen + 1);
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < len; i++) {
+            sb.append(chars.charAt(r.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+
+    private static Pattern toRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        for(String part: glob.split("\\*", -1)) {
+            if(sb.length() > 0 || glob.startsWith("*")) {
+                sb.append(".*");
+            }
+            sb.append(Pattern.quote(part));
+        }
+        return Pattern.compile(sb.toString(), Pattern.DOTALL);
+    }
+
+    private static boolean anyMatches(List<Pattern> regexes, String name) {
+        for(Pattern p: regexes) {
+            if(p.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) {
+        Random r = new Random(19);
+        int checked = 0;
+        for(int round = 0; round < 5000; round++) {
+            ClassFilter filter = new ClassFilter();
+            List<Pattern> inc = new ArrayList<Pattern>();
+            List<Pattern> exc = new ArrayList<Pattern>();
+            int ninc = r.nextInt(3);
+            int nexc = r.nextInt(3);
+            for(int i = 0; i < ninc; i++) {
+                String p = random(r, ALPHABET + "**", 6);
+                filter.include(p);
+                inc.add(toRegex(p));
+            }
+            for(int i = 0; i < nexc; i++) {
+                String p = random(r, ALPHABET + "**", 6);
+                filter.exclude(p);
+                exc.add(toRegex(p));
+            }
+            for(int i = 0; i < 20; i++) {
+                String name = random(r, ALPHABET, 8);
+                boolean expected = (inc.isEmpty() || anyMatches(inc, name)) && !anyMatches(exc, name);
+                if(filter.accepts(name) != expected) {
+                    throw new AssertionError("includes " + inc + " excludes " + exc + ": \""
+                            + name + "\" should" + (expected ? "" : "n't") + " be accepted");
+                }
+                checked++;
+            }
+        }
+
+        StringBuilder pattern = new StringBuilder();
+        StringBuilder name = new StringBuilder();
+        for(int i = 0; i < 30; i++) {
+            pattern.append("*a");
+            name.append('a');
+        }
+        pattern.append("*b");
+        ClassFilter filter = new ClassFilter().include(pattern.toString());
+        long start = System.nanoTime();
+        if(filter.accepts(name.toString() + name)) {
+            throw new AssertionError(pattern + " shouldn't match " + name + name);
+        }
+        if(!filter.accepts(name.toString() + name + "b")) {
+            throw new AssertionError(pattern + " should match " + name + name + "b");
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+        if(ms > 1000) {
+            throw new AssertionError("matching " + pattern + " took " + ms + " ms");
+        }
+        System.out.println("ClassFilterTest: " + checked + " names ok");
+    }
+}
@@ -0,0 +1,74 @@
+package org.unsynchronized;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Checks that lenient ModifiedUTF8 decoding gives the same strings and the same errors
+ * as DataInputStream.readUTF(): every sequence of up to two bytes, three-byte sequences
+ * starting with each kind of lead byte, and random longer strings with malformed bytes in
+ * them.
+ */
+public class ModifiedUTF8Test {
+    private static int checked;
+
+    private static String expected(byte[] b) {
+        try {
+            byte[] data = new byte[b.length + 2];
+            data[0] = (byte)(b.length >> 8);
+            data[1] = (byte)b.length;
+            System.arraycopy(b, 0, data, 2, b.length);
+            return "ok " + new DataInputStream(new ByteArrayInputStream(data)).readUTF();
+        } catch (IOException ioe) {
+            return ioe.getClass().getName() + ": " + ioe.getMessage();
+        }
+    }
+    private static String actual(byte[] b) {
+        // Decode from the middle of a buffer, so that offsets within the string are
+        // distinct from offsets within the buffer.
+        ByteBuffer buf = ByteBuffer.allocate(b.length + 16);
+        buf.position(7);
+        buf.put(b);
+        buf.position(7);
+        try {
+            return "ok " + ModifiedUTF8.decode(buf, b.length, false);
+        } catch (IOException ioe) {
+            return ioe.getClass().getName() + ": " + ioe.getMessage();
+        }
+    }
+    private static void check(byte[] b) {
+        String e = expected(b);
+        String a = actual(b);
+        if(!e.equals(a)) {
+            throw new AssertionError("input " + Arrays.toString(b) + ": expected <" + e + ">, got <" + a + ">");
+        }
+        checked++;
+    }
+
+    public static void main(String[] args) {
+        for(int x = 0; x < 256; x++) {
+            check(new byte[] { (byte)x });
+            for(int y = 0; y < 256; y++) {
+                check(new byte[] { (byte)x, (byte)y });
+            }
+        }
+        int[] leads = { 0x00, 0x41, 0x7f, 0x80, 0xbf, 0xc0, 0xc3, 0xdf, 0xe0, 0xe2, 0xef, 0xf0, 0xff };
+        for(int x: leads) {
+            for(int y = 0; y < 256; y++) {
+                for(int z = 0; z < 256; z++) {
+                    check(new byte[] { (byte)x, (byte)y, (byte)z });
+                }
+            }
+        }
+        Random r = new Random(1);
+        byte[] pool = { 'a', 'Z', 0, (byte)0xc3, (byte)0xa9, (byte)0xe2, (byte)0x82, (byte)0xac, (byte)0x80, (byte)0xff };
+        for(int i = 0; i < 200000; i++) {
+            byte[] b = new byte[r.nextInt(40)];
+            for(int j = 0; j < b.length; j++) {
+                b[j] = (r.nextInt(4) == 0) ? pool[r.nextInt(pool.length)] : (byte)('a' + r.nextInt(26));
+            }
+            check(b);
+        }
+        System.out.println("ModifiedUTF8Test: " + checked + " inputs ok");
+    }
+}
@@ -0,0 +1,66 @@
+package org.unsynchronized;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks how query conditions treat null: with each operator, against null fields and
+ * string fields, and against primitive fields with a null literal.
+ */
+public class QueryTest {
+    static class rec implements Serializable {
+        private static final long serialVersionUID = 1L;
+        int id;
+        int count;
+        String name;
+
+        rec(int id, int count, String name) {
+            this.id = id;
+            this.count = count;
+            this.name = name;
+        }
+    }
+
+    private static String ids(jdeserialize jd, String where) {
+        Query q = Query.compile(rec.class.getName() + "[*].id where " + where);
+        TreeSet<Integer> ids = new TreeSet<Integer>();
+        for(Query.match m: q.run(jd)) {
+            ids.add(Integer.valueOf(((Number)m.value).intValue()));
+        }
+        return ids.toString();
+    }
+
+    private static void check(jdeserialize jd, String where, String expected) {
+        String actual = ids(jd, where);
+        if(!actual.equals(expected)) {
+            throw new AssertionError("where " + where + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bout);
+        oos.writeObject(new rec(1, 5, null));
+        oos.writeObject(new rec(2, 5, "b"));
+        oos.writeObject(new rec(3, 5, "c"));
+        oos.writeObject(new rec(4, 5, "d"));
+        oos.close();
+
+        jdeserialize jd = new jdeserialize("QueryTest");
+        jd.setOutput(jdeserialize.NULL_OUTPUT);
+        jd.run(new ByteArrayInputStream(bout.toByteArray()), true);
+
+        check(jd, "name = \"c\"", "[3]");
+        check(jd, "name != \"c\"", "[1, 2, 4]");
+        check(jd, "name < \"c\"", "[2]");
+        check(jd, "name <= \"c\"", "[2, 3]");
+        check(jd, "name > \"c\"", "[4]");
+        check(jd, "name >= \"c\"", "[3, 4]");
+        check(jd, "name = null", "[1]");
+        check(jd, "name != null", "[2, 3, 4]");
+
+        check(jd, "count = 5", "[1, 2, 3, 4]");
+        check(jd, "count = null", "[]");
+        check(jd, "count != null", "[1, 2, 3, 4]");
+        System.out.println("QueryTest: ok");
+    }
+}